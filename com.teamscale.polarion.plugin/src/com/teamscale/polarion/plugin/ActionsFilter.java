@@ -14,11 +14,20 @@ import javax.servlet.http.HttpServletResponse;
 /**
  * Custom servlet filter that'll do basic checks before the servlet kicks in, such as checking if
  * the requested URL contains the at least the required elements in the path. Then, it sets the
- * required request attributes (project, space, module) as separate string objects for the servlet
- * to use.
+ * required request attributes (project, space, module, action) as separate string objects for the
+ * servlet to use.
  */
 public class ActionsFilter extends DoAsFilter implements Filter {
 
+  /** Computes the work item updates of a document */
+  public static final String WORK_ITEM_UPDATES_ACTION = "work-item-updates";
+
+  /** Cheap check whether a document changed since a revision */
+  public static final String CHANGES_SINCE_ACTION = "changes-since";
+
+  /** Work item updates of several documents of a project (path without space and document) */
+  public static final String BATCH_ACTION = "work-item-updates-batch";
+
   private final PluginLogger logger = new PluginLogger();
 
   @Override
@@ -49,19 +58,31 @@ public class ActionsFilter extends DoAsFilter implements Filter {
     // The first part is an empty string since the
     // path starts with '/'
     req.setAttribute("project", pathParts[1]);
+    if (pathParts.length == 3) {
+      // Batch requests name the documents in the body
+      req.setAttribute("action", pathParts[2]);
+      return;
+    }
     req.setAttribute("space", pathParts[2]);
     req.setAttribute("document", pathParts[3]);
-    // The fourth part should be the action name which is fixed
-    // and already validated at this point
+    // The fourth part is the action name, already validated at this point
+    req.setAttribute("action", pathParts[4]);
   }
 
   /**
    * Five parts are expected for example: For this path:
    * /elibrary/MyDummySpace/MyDummyDoc/work-item-updates The split will be: ["", "library",
    * "MyDummySpace", "MyDummyDoc", "work-item-updates"] It takes an empty string before the first
-   * slash
+   * slash. The action is either work-item-updates or changes-since. Batch requests only have the
+   * project and the action: /elibrary/work-item-updates-batch
    */
   private boolean validatePath(String path) {
-    return (path.endsWith("work-item-updates") && path.split("/").length == 5);
+    String[] pathParts = path.split("/");
+    if (pathParts.length == 3) {
+      return pathParts[2].equals(BATCH_ACTION);
+    }
+    return pathParts.length == 5
+        && (pathParts[4].equals(WORK_ITEM_UPDATES_ACTION)
+            || pathParts[4].equals(CHANGES_SINCE_ACTION));
   }
 }
@@ -0,0 +1,75 @@
+package com.teamscale.polarion.plugin;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Paces the work of a background precomputation (see {@link PrecomputationScheduler}): it only
+ * starts an item while no request of a client is in progress, and only as long as the processing
+ * time of its items stays within the configured share of the elapsed time (the CPU budget). The
+ * processing time of an item is its wall time, which includes the time waiting on Polarion
+ * persistence, so it is an upper bound of the CPU time spent on it.
+ */
+public class BackgroundThrottle {
+
+  /** How long the background work waits before checking again if requests are still in progress */
+  private static final long YIELD_MILLIS = 100;
+
+  /** Requests of clients currently in progress */
+  private static final AtomicInteger activeRequests = new AtomicInteger();
+
+  /** Share of the elapsed time the background work may spend processing items, in percent */
+  private final int cpuPercent;
+
+  private final long startNanos = System.nanoTime();
+
+  private final AtomicLong processingNanos = new AtomicLong();
+
+  public BackgroundThrottle(int cpuPercent) {
+    this.cpuPercent = Math.max(1, Math.min(100, cpuPercent));
+  }
+
+  /** Called when a request of a client starts, background work yields until it is finished. */
+  public static void requestStarted() {
+    activeRequests.incrementAndGet();
+  }
+
+  public static void requestFinished() {
+    activeRequests.decrementAndGet();
+  }
+
+  public static int getActiveRequests() {
+    return activeRequests.get();
+  }
+
+  /**
+   * Blocks until the next item may be started. Returns false if the thread was interrupted (e.g.
+   * because Polarion shuts down), so no further items should be started.
+   */
+  public boolean awaitTurn() {
+    try {
+      while (true) {
+        if (activeRequests.get() > 0) {
+          Thread.sleep(YIELD_MILLIS);
+          continue;
+        }
+        // Processing time / elapsed time must not exceed the budget after the wait
+        long elapsedNanos = System.nanoTime() - startNanos;
+        long waitNanos = processingNanos.get() * 100 / cpuPercent - elapsedNanos;
+        if (waitNanos <= 0) {
+          return true;
+        }
+        Thread.sleep(Math.min(TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1, YIELD_MILLIS * 10));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /** Records the processing time of an item. Called by the workers. */
+  public void recordProcessingTime(long nanos) {
+    processingNanos.addAndGet(nanos);
+  }
+}
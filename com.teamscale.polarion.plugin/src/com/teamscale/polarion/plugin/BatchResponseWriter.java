@@ -0,0 +1,88 @@
+package com.teamscale.polarion.plugin;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import com.teamscale.polarion.plugin.model.Response;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams the combined json response of a batch request. Each document is written (and flushed) as
+ * soon as it is processed:
+ *
+ * <pre>
+ * {"documents": [
+ *   {"space": "Specification", "document": "Requirements", "status": 200, "response": {...}},
+ *   {"space": "Specification", "document": "Missing", "status": 404, "message": "..."}
+ * ]}
+ * </pre>
+ *
+ * The response of a document has the same structure as the one of a single document request (see
+ * {@link JsonResponseWriter}). A response that ends before the closing brackets is incomplete.
+ */
+public class BatchResponseWriter {
+
+  /** Size (in chars) of the buffer between the json writer and the output stream */
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private final JsonWriter jsonWriter;
+
+  /** Writes the response of each document into the shared json writer */
+  private final JsonResponseWriter documentWriter;
+
+  public BatchResponseWriter(OutputStream outputStream, boolean compactIds) throws IOException {
+    jsonWriter =
+        new Gson()
+            .newJsonWriter(
+                new BufferedWriter(
+                    new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), BUFFER_SIZE));
+    documentWriter = new DocumentResponseWriter(jsonWriter, compactIds);
+  }
+
+  public void begin() throws IOException {
+    jsonWriter.beginObject();
+    jsonWriter.name("documents");
+    jsonWriter.beginArray();
+  }
+
+  /** Writes the (successful) response of a document and flushes it. */
+  public void writeDocument(String space, String document, Response response) throws IOException {
+    beginDocument(space, document, 200);
+    jsonWriter.name("response");
+    documentWriter.write(response);
+    jsonWriter.endObject();
+    jsonWriter.flush();
+  }
+
+  /** Writes the error status (http status code) of a document and flushes it. */
+  public void writeError(String space, String document, int status, String message)
+      throws IOException {
+    beginDocument(space, document, status);
+    jsonWriter.name("message").value(message);
+    jsonWriter.endObject();
+    jsonWriter.flush();
+  }
+
+  public void end() throws IOException {
+    jsonWriter.endArray();
+    jsonWriter.endObject();
+    jsonWriter.flush();
+  }
+
+  private void beginDocument(String space, String document, int status) throws IOException {
+    jsonWriter.beginObject();
+    jsonWriter.name("space").value(space);
+    jsonWriter.name("document").value(document);
+    jsonWriter.name("status").value(status);
+  }
+
+  private static class DocumentResponseWriter extends JsonResponseWriter {
+
+    private DocumentResponseWriter(JsonWriter jsonWriter, boolean compactIds) {
+      super(jsonWriter, compactIds);
+    }
+  }
+}
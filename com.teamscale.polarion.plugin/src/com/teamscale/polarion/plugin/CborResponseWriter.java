@@ -0,0 +1,22 @@
+package com.teamscale.polarion.plugin;
+
+import com.teamscale.polarion.plugin.utils.CborWriter;
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Streams a {@link com.teamscale.polarion.plugin.model.Response} as CBOR (binary json, RFC 8949).
+ * The structure is the same as the one of the json response, it's only encoded differently. CBOR is
+ * returned if the client accepts {@link #MEDIA_TYPE} (Accept header).
+ */
+public class CborResponseWriter extends JsonResponseWriter {
+
+  public static final String MEDIA_TYPE = "application/cbor";
+
+  /** Size (in bytes) of the buffer between the CBOR writer and the output stream */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  public CborResponseWriter(OutputStream outputStream, boolean compactIds) {
+    super(new CborWriter(new BufferedOutputStream(outputStream, BUFFER_SIZE)), compactIds);
+  }
+}
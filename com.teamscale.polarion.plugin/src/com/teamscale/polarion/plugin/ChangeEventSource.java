@@ -0,0 +1,39 @@
+package com.teamscale.polarion.plugin;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Source of the changes committed to Polarion, which feeds the {@link ChangeIndex}. Decouples the
+ * index from Polarion's listener API (see {@link PolarionChangeEventSource}), so it can also be fed
+ * by a local stand-in.
+ */
+public interface ChangeEventSource {
+
+  /** Starts reporting the changes committed from now on to the given sink. */
+  void start(Sink sink);
+
+  /** Stops reporting changes. */
+  void stop();
+
+  /**
+   * Loads the URIs of the work items whose last revision is after the given one, by their last
+   * revision, with a single query. Used to resync the sink after revisions whose changes were not
+   * reported (yet). Called by the requests, never while the source reports to the sink.
+   */
+  Map<Integer, Set<String>> loadItemsChangedAfter(int revision);
+
+  /** Receives the changes reported by a source. */
+  interface Sink {
+
+    /** Reports a work item (by its URI) that was changed, created or deleted in a revision. */
+    void workItemChanged(int revision, String workItemUri);
+
+    /**
+     * Reports that all changed work items of the given revision (and the revisions before it) were
+     * reported. Revisions must be reported in ascending order; a revision that is skipped is
+     * treated as a revision whose changes are unknown.
+     */
+    void revisionCommitted(int revision);
+  }
+}
@@ -0,0 +1,238 @@
+package com.teamscale.polarion.plugin;
+
+import com.teamscale.polarion.plugin.utils.PluginLogger;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory index, shared by all requests, of the work items changed in each revision, fed by a
+ * {@link ChangeEventSource} as the revisions are committed. With the index, stage 2 of a request
+ * (see {@link WorkItemQueryPlan}) doesn't have to query the items whose last revision is after
+ * lastUpdate: the items of the document (stage 1) are filtered by the items the index reports as
+ * changed. The document of an item is always taken from stage 1, so the index is keyed by revision
+ * only and items moved between documents need no special handling.
+ *
+ * <p>The index covers the revisions after its start (the latest revision when it was started) up to
+ * its watermark, the latest revision whose changes are known completely. If the source skips a
+ * revision (e.g., one committed while the listener was being added), or a request needs revisions
+ * after the watermark (e.g., right after a commit, before the source reported it as complete), the
+ * index resyncs: a single query loads the work items whose last revision is after the watermark,
+ * and the watermark moves up to the latest revision. A skipped revision only holds the watermark
+ * back; the query is run by the next request, outside the lock of the index, never by the listener
+ * callbacks of the source. So the index only misses requests whose lastUpdate is before its start,
+ * i.e. the first poll of each document after Polarion (or the plugin) was started, or whose
+ * revisions were dropped because the index was full. For clients polling in regular intervals, the
+ * expected hit rate is close to 100% once every document was polled after the start, provided the
+ * index holds the items changed within a polling interval.
+ *
+ * <p>The index is disabled by default. It is enabled by setting the JVM arg
+ * com.teamscale.polarion.plugin.change-index-size to the maximum number of changed items it holds,
+ * the oldest revisions are dropped once it is full.
+ */
+public class ChangeIndex implements ChangeEventSource.Sink {
+
+  private static final int MAX_SIZE =
+      Math.max(0, Integer.getInteger("com.teamscale.polarion.plugin.change-index-size", 0));
+
+  private static final ChangeIndex INSTANCE = new ChangeIndex(MAX_SIZE);
+
+  private final PluginLogger logger = new PluginLogger();
+
+  /** Max. number of changed items, 0 if the index is disabled */
+  private final int maxSize;
+
+  /** Serializes resyncs, so concurrent requests wait for a running one instead of repeating it */
+  private final Object resyncLock = new Object();
+
+  /** URIs of the changed work items by revision */
+  private final TreeMap<Integer, Set<String>> changedItems = new TreeMap<>();
+
+  /** Number of URIs in {@link #changedItems} */
+  private int size;
+
+  /** Changes of revisions up to the start are unknown */
+  private int start = -1;
+
+  /** Latest revision whose changes are known completely, -1 while the index is not fed */
+  private int watermark = -1;
+
+  /** Null while the index is not fed */
+  private ChangeEventSource source;
+
+  /** Requests whose changed items were taken from the index */
+  private final LongAdder hits = new LongAdder();
+
+  /** Requests that had to query the changed items, as the index didn't cover their window */
+  private final LongAdder misses = new LongAdder();
+
+  /** Queries run to resync the index after skipped or not yet reported revisions */
+  private final LongAdder resyncs = new LongAdder();
+
+  /** Package-private for the tests, the plugin uses the instance configured by the JVM arg. */
+  ChangeIndex(int maxSize) {
+    this.maxSize = Math.max(0, maxSize);
+  }
+
+  public static ChangeIndex getInstance() {
+    return INSTANCE;
+  }
+
+  public static boolean isEnabled() {
+    return MAX_SIZE > 0;
+  }
+
+  /**
+   * Starts feeding the index from the given source, if the index is enabled. The index covers the
+   * revisions after the given latest revision. The source is started and stopped outside the lock
+   * of the index, since it calls the index while holding its own lock.
+   */
+  public void start(ChangeEventSource source, int latestRevision) {
+    synchronized (this) {
+      if (maxSize == 0 || this.source != null) {
+        return;
+      }
+      this.source = source;
+      start = latestRevision;
+      watermark = latestRevision;
+    }
+    source.start(this);
+  }
+
+  /** Stops feeding the index and drops its entries, since they would become incomplete. */
+  public void stop() {
+    ChangeEventSource stoppedSource;
+    synchronized (this) {
+      stoppedSource = source;
+      source = null;
+      reset(-1);
+      watermark = -1;
+    }
+    if (stoppedSource != null) {
+      stoppedSource.stop();
+    }
+  }
+
+  @Override
+  public synchronized void workItemChanged(int revision, String workItemUri) {
+    if (source == null || revision <= start) {
+      return;
+    }
+    if (changedItems.computeIfAbsent(revision, key -> new HashSet<>()).add(workItemUri)) {
+      size++;
+    }
+    while (size > maxSize && !changedItems.isEmpty()) {
+      Map.Entry<Integer, Set<String>> oldest = changedItems.pollFirstEntry();
+      size -= oldest.getValue().size();
+      start = oldest.getKey();
+    }
+  }
+
+  /**
+   * Moves the watermark to the given revision if it follows the watermark. If revisions were
+   * skipped, the watermark stays behind, so the next request resyncs the index (see {@link
+   * #resync(int)}). No query runs in the listener callbacks of the source.
+   */
+  @Override
+  public synchronized void revisionCommitted(int revision) {
+    if (source != null && revision == watermark + 1) {
+      watermark = revision;
+    }
+  }
+
+  /**
+   * Loads the items changed after the watermark with a single query, if the given revision is after
+   * it, and moves the watermark up to the given revision. Items are indexed with their last
+   * revision, which may be after the given one, so items changed again meanwhile are not missed. If
+   * the query fails, the index starts over after the given revision. The query runs outside the
+   * lock of the index, so the source keeps reporting changes meanwhile.
+   */
+  private void resync(int revision) {
+    synchronized (resyncLock) {
+      ChangeEventSource resyncedSource;
+      int resyncedWatermark;
+      synchronized (this) {
+        if (source == null || watermark >= revision) {
+          return;
+        }
+        resyncedSource = source;
+        resyncedWatermark = watermark;
+      }
+      resyncs.increment();
+      Map<Integer, Set<String>> changes = null;
+      try {
+        changes = resyncedSource.loadItemsChangedAfter(resyncedWatermark);
+      } catch (RuntimeException e) {
+        logger.error("Failed to resync the change index after revision " + resyncedWatermark, e);
+      }
+      synchronized (this) {
+        if (source != resyncedSource) {
+          // Stopped (or restarted) meanwhile
+          return;
+        }
+        if (changes == null) {
+          reset(revision);
+        } else {
+          changes.forEach(
+              (changeRevision, uris) -> uris.forEach(uri -> workItemChanged(changeRevision, uri)));
+        }
+        watermark = Math.max(watermark, revision);
+      }
+    }
+  }
+
+  /** Drops the changes up to the given revision, the index then starts after it. */
+  private void reset(int newStart) {
+    while (!changedItems.isEmpty() && changedItems.firstKey() <= newStart) {
+      size -= changedItems.pollFirstEntry().getValue().size();
+    }
+    start = newStart;
+  }
+
+  /**
+   * Returns the URIs of the work items changed after lastUpdate (of all documents), or null if the
+   * index doesn't cover the revisions after lastUpdate. Resyncs the index first if the latest
+   * storage revision is after its watermark.
+   */
+  public Set<String> getItemsChangedAfter(int lastUpdate, int latestRevision) {
+    resync(latestRevision);
+    synchronized (this) {
+      if (source == null || lastUpdate < start) {
+        misses.increment();
+        return null;
+      }
+      Set<String> result = new HashSet<>();
+      for (Set<String> uris : changedItems.tailMap(lastUpdate, false).values()) {
+        result.addAll(uris);
+      }
+      hits.increment();
+      return result;
+    }
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getResyncs() {
+    return resyncs.sum();
+  }
+
+  /** Summary of the index for logging */
+  public synchronized String getStatistics() {
+    StringJoiner statistics = new StringJoiner(", ");
+    statistics.add("revisions (" + start + ", " + watermark + "]");
+    statistics.add("changed items: " + size);
+    statistics.add("hits: " + getHits());
+    statistics.add("misses: " + getMisses());
+    statistics.add("resyncs: " + getResyncs());
+    return statistics.toString();
+  }
+}
@@ -0,0 +1,139 @@
+package com.teamscale.polarion.plugin;
+
+import com.polarion.platform.persistence.IDataService;
+import com.polarion.platform.security.ISecurityService;
+import com.teamscale.polarion.plugin.utils.HashUtils;
+import com.teamscale.polarion.plugin.utils.PluginLogger;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent journals of the work item changes served per document (see {@link DocumentJournal}).
+ * Incremental requests are served from the journal for the revisions it covers, so Polarion only
+ * has to load the history of the work items for the revisions after the head of the journal. The
+ * journal survives restarts of Polarion, unlike the {@link HistoryCache}.
+ *
+ * <p>The journal is disabled by default. It is enabled by setting the JVM arg
+ * com.teamscale.polarion.plugin.journal-dir to the directory the journals should be stored in. Each
+ * combination of user, document and parameters that the changes depend on (work item types, custom
+ * fields, link roles, standard fields) has its own journal, in a sub directory named after the hash
+ * of these parameters. The journal is per user, since the journaled items only contain what the
+ * user may read (see {@link HistoryCache}).
+ *
+ * <p>A journal whose head is after the latest revision of Polarion (e.g. after a restore of the
+ * repository) or that turns out to be inconsistent with the history of a work item is deleted and
+ * rebuilt by the following requests.
+ */
+public class ChangeJournal {
+
+  private static final String JOURNAL_DIR =
+      System.getProperty("com.teamscale.polarion.plugin.journal-dir");
+
+  private static final ChangeJournal INSTANCE = new ChangeJournal();
+
+  private final PluginLogger logger = new PluginLogger();
+
+  private final ISecurityService securityService = PlatformServices.lookup(ISecurityService.class);
+
+  /** Open journals by their key, see {@link #journalKey(RequestContext)} */
+  private final Map<String, DocumentJournal> journals = new ConcurrentHashMap<>();
+
+  private ChangeJournal() {}
+
+  public static ChangeJournal getInstance() {
+    return INSTANCE;
+  }
+
+  public boolean isEnabled() {
+    return JOURNAL_DIR != null && !JOURNAL_DIR.isEmpty();
+  }
+
+  /**
+   * Opens a session on the journal of the document and parameters of the given (validated) request.
+   * Returns null if the journal is disabled or can't be opened.
+   */
+  public JournalSession openSession(RequestContext context, IDataService dataService) {
+    if (!isEnabled()) {
+      return null;
+    }
+    String key = journalKey(context);
+    DocumentJournal journal = getJournal(key);
+    if (journal == null) {
+      return null;
+    }
+    int latestRevision = Integer.parseInt(dataService.getLastStorageRevision().getName());
+    if (journal.getHead() > latestRevision) {
+      logger.info(
+          "Change journal of document "
+              + context.getDocumentId()
+              + " is ahead of the latest revision "
+              + latestRevision);
+      invalidate(key, journal);
+      journal = getJournal(key);
+      if (journal == null) {
+        return null;
+      }
+    }
+    return new JournalSession(this, key, journal, context);
+  }
+
+  /** Deletes the given journal, the next request starts a new one. */
+  void invalidate(String key, DocumentJournal journal) {
+    journals.remove(key, journal);
+    journal.delete();
+  }
+
+  private DocumentJournal getJournal(String key) {
+    try {
+      return journals.computeIfAbsent(
+          key,
+          journalKey -> {
+            try {
+              return DocumentJournal.open(Paths.get(JOURNAL_DIR, journalKey));
+            } catch (IOException e) {
+              throw new JournalUnavailableException(e);
+            }
+          });
+    } catch (JournalUnavailableException e) {
+      logger.error("Failed to open change journal in " + JOURNAL_DIR, e.getCause());
+      return null;
+    }
+  }
+
+  /**
+   * Key of the journal of the current user, the document and the parameters of the given request.
+   * The link roles are the validated ones, so the journal changes if a link role becomes (in)valid.
+   */
+  private String journalKey(RequestContext context) {
+    return HashUtils.sha256Hex(
+        String.valueOf(securityService.getCurrentUser()),
+        context.getProjectId(),
+        context.getSpaceId(),
+        context.getDocumentId(),
+        normalize(context.getWorkItemTypes()),
+        HistoryCache.parametersKey(
+            context.getIncludeCustomFields(),
+            context.getIncludeLinkRoles(),
+            context.getIncludeFields()));
+  }
+
+  private static String normalize(String[] values) {
+    if (values == null) {
+      return "";
+    }
+    return Arrays.toString(Arrays.stream(values).distinct().sorted().toArray());
+  }
+
+  /** Thrown out of the computation of a journal, which can't throw checked exceptions */
+  private static class JournalUnavailableException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private JournalUnavailableException(IOException cause) {
+      super(cause);
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package com.teamscale.polarion.plugin;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.teamscale.polarion.plugin.utils.FieldProjection;
+import com.teamscale.polarion.plugin.utils.HashUtils;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Position of a partial response in the (stable) work item order of a request. A partial response
+ * carries an encoded cursor, and a follow-up request passing it back (request parameter
+ * continuationCursor) resumes right after the last processed item, instead of walking the items
+ * processed by the previous requests again.
+ *
+ * <p>The cursor pins the revision window (lastUpdate, endRevision) of the first request and a hash
+ * of its other parameters, so a cursor cannot be used with a different parameter set. For the
+ * client, the encoded cursor is opaque (base64url encoded json).
+ */
+public class ContinuationCursor {
+
+  private final int lastUpdate;
+
+  private final int endRevision;
+
+  /**
+   * See {@link #hashParameters(String, String, String, String[], String[], String[],
+   * FieldProjection, boolean, boolean)}
+   */
+  private final String parametersHash;
+
+  /** Id of the last processed work item. Items with ids up to this one (included) are skipped. */
+  private final String lastItemId;
+
+  public ContinuationCursor(
+      int lastUpdate, int endRevision, String parametersHash, String lastItemId) {
+    this.lastUpdate = lastUpdate;
+    this.endRevision = endRevision;
+    this.parametersHash = parametersHash;
+    this.lastItemId = lastItemId;
+  }
+
+  public int getLastUpdate() {
+    return lastUpdate;
+  }
+
+  public int getEndRevision() {
+    return endRevision;
+  }
+
+  public String getParametersHash() {
+    return parametersHash;
+  }
+
+  public String getLastItemId() {
+    return lastItemId;
+  }
+
+  /** Encodes the cursor into the opaque string sent to the client. */
+  public String encode() {
+    byte[] json = new Gson().toJson(this).getBytes(StandardCharsets.UTF_8);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(json);
+  }
+
+  /** Returns the decoded cursor or null if the given string is not a valid cursor. */
+  public static ContinuationCursor decode(String encodedCursor) {
+    ContinuationCursor cursor;
+    try {
+      byte[] json = Base64.getUrlDecoder().decode(encodedCursor);
+      cursor =
+          new Gson().fromJson(new String(json, StandardCharsets.UTF_8), ContinuationCursor.class);
+    } catch (IllegalArgumentException | JsonParseException e) {
+      return null;
+    }
+    if (cursor == null
+        || cursor.parametersHash == null
+        || cursor.lastItemId == null
+        || cursor.lastUpdate < 0
+        || cursor.lastUpdate >= cursor.endRevision) {
+      return null;
+    }
+    return cursor;
+  }
+
+  /**
+   * Hash (SHA-256, hex) of the request parameters that define which work items and fields are part
+   * of the response and how they are represented (id encoding and payload), so a continuation
+   * doesn't mix representations. The revision numbers are not part of it, since they're kept in the
+   * cursor.
+   */
+  public static String hashParameters(
+      String projectId,
+      String spaceId,
+      String documentId,
+      String[] workItemTypes,
+      String[] includeCustomFields,
+      String[] includeLinkRoles,
+      FieldProjection includeFields,
+      boolean compactIdEncoding,
+      boolean sparsePayload) {
+    return HashUtils.sha256Hex(
+        projectId,
+        spaceId,
+        documentId,
+        Arrays.toString(workItemTypes),
+        Arrays.toString(includeCustomFields),
+        Arrays.toString(includeLinkRoles),
+        includeFields.key(),
+        String.valueOf(compactIdEncoding),
+        String.valueOf(sparsePayload));
+  }
+}
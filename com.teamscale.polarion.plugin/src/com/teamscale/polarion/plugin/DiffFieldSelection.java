@@ -0,0 +1,101 @@
+package com.teamscale.polarion.plugin;
+
+import com.polarion.alm.tracker.model.IWorkItem;
+import com.polarion.platform.persistence.model.IPrototype;
+import com.teamscale.polarion.plugin.utils.CastUtils;
+import com.teamscale.polarion.plugin.utils.FieldProjection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fields of a request whose changes are part of the response: the standard fields of the {@link
+ * FieldProjection}, the requested custom fields and the links (if any link roles are requested).
+ * Created once per request, so the fields are only derived once.
+ *
+ * <p>The other fields are passed to the diff manager as ignored fields, so Polarion doesn't diff
+ * them at all. The ignored fields depend on the custom fields of the work item type, so they're
+ * computed once per type (pair, in case the type changed between two versions).
+ *
+ * <p>If all standard fields are requested, fields that are neither standard, custom nor link fields
+ * (e.g. approvals) are kept as well, as they were before the projection existed.
+ */
+public class DiffFieldSelection {
+
+  private final FieldProjection includeFields;
+
+  private final Set<String> includeCustomFields;
+
+  private final boolean includeLinks;
+
+  /** Ignored fields per type ids of the previous and the next version */
+  private final Map<String, Set<String>> ignoredFieldsByTypes = new ConcurrentHashMap<>();
+
+  public DiffFieldSelection(
+      FieldProjection includeFields, String[] includeCustomFields, String[] includeLinkRoles) {
+    this.includeFields = includeFields;
+    this.includeCustomFields =
+        includeCustomFields == null
+            ? Collections.emptySet()
+            : new HashSet<>(Arrays.asList(includeCustomFields));
+    this.includeLinks = includeLinkRoles != null && includeLinkRoles.length > 0;
+  }
+
+  /**
+   * Checks if changes of the given field (Polarion field id, as in the field diffs) are part of the
+   * response. Custom fields are identified by the custom fields of the given version.
+   */
+  public boolean keeps(String fieldId, Collection<String> customFieldIds) {
+    if (CastUtils.LINKED_WORK_ITEMS_FIELD_NAME.equals(fieldId)) {
+      return includeLinks;
+    }
+    if (customFieldIds != null && customFieldIds.contains(fieldId)) {
+      return includeCustomFields.contains(fieldId);
+    }
+    return includeFields.includesPolarionField(fieldId);
+  }
+
+  /** Returns the fields the diff manager can ignore when diffing the given versions. */
+  public Set<String> getIgnoredFields(IWorkItem previousVersion, IWorkItem nextVersion) {
+    String typesKey = typeId(previousVersion) + "|" + typeId(nextVersion);
+    return ignoredFieldsByTypes.computeIfAbsent(
+        typesKey, key -> computeIgnoredFields(previousVersion, nextVersion));
+  }
+
+  private Set<String> computeIgnoredFields(IWorkItem previousVersion, IWorkItem nextVersion) {
+    Set<String> customFieldIds = new HashSet<>();
+    addCustomFieldIds(customFieldIds, previousVersion);
+    addCustomFieldIds(customFieldIds, nextVersion);
+
+    Set<String> ignoredFields = new HashSet<>();
+    for (String customFieldId : customFieldIds) {
+      if (!includeCustomFields.contains(customFieldId)) {
+        ignoredFields.add(customFieldId);
+      }
+    }
+    IPrototype prototype = nextVersion.getPrototype();
+    if (prototype != null && prototype.getKeyNames() != null) {
+      for (Object key : prototype.getKeyNames()) {
+        String fieldId = String.valueOf(key);
+        if (!keeps(fieldId, customFieldIds)) {
+          ignoredFields.add(fieldId);
+        }
+      }
+    }
+    return Collections.unmodifiableSet(ignoredFields);
+  }
+
+  private static void addCustomFieldIds(Set<String> customFieldIds, IWorkItem version) {
+    if (version.getCustomFieldsList() != null) {
+      customFieldIds.addAll(version.getCustomFieldsList());
+    }
+  }
+
+  private static String typeId(IWorkItem version) {
+    return version.getType() == null ? "" : version.getType().getId();
+  }
+}
@@ -0,0 +1,635 @@
+package com.teamscale.polarion.plugin;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializationContext;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+import com.teamscale.polarion.plugin.model.LinkFieldDiff;
+import com.teamscale.polarion.plugin.model.WorkItemChange;
+import com.teamscale.polarion.plugin.model.WorkItemFieldDiff;
+import com.teamscale.polarion.plugin.model.WorkItemForJson;
+import com.teamscale.polarion.plugin.utils.PluginLogger;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the work item changes and snapshots computed for a document (and a set of
+ * request parameters, see {@link ChangeJournal}). The journal covers the revision window (start,
+ * head]: it contains all changes of the work items of the document in that window and the snapshot
+ * of each item at its latest version in the window.
+ *
+ * <p>The records are stored in segment files, which are memory-mapped for reading. A record is its
+ * length, a CRC32 checksum and the json of the record. The records of a commit end with a HEAD
+ * record, which advances the window. Records after the last HEAD record (e.g. of a commit
+ * interrupted by a crash) and corrupt records at the end of the last segment are dropped when the
+ * journal is opened. An in-memory index points to the records of each item.
+ *
+ * <p>Superseded snapshots are garbage. Once they make up more than half of the journal, it is
+ * compacted: the live records are copied to a new segment starting with a RESET record (so a
+ * journal with both the old and the new segments is read correctly, if the old ones couldn't be
+ * deleted) and the old segments are deleted.
+ */
+public class DocumentJournal {
+
+  private static final long SEGMENT_SIZE =
+      Math.max(1, Integer.getInteger("com.teamscale.polarion.plugin.journal-segment-size-mb", 64))
+          * 1024L
+          * 1024L;
+
+  /** Journals smaller than this are not compacted */
+  private static final long MIN_COMPACTION_SIZE = 1024 * 1024;
+
+  private static final String SEGMENT_SUFFIX = ".journal";
+
+  /** Length and checksum in front of each record */
+  private static final int RECORD_HEADER_SIZE = 8;
+
+  private static final Gson GSON =
+      new GsonBuilder()
+          .registerTypeAdapter(WorkItemFieldDiff.class, new FieldDiffAdapter())
+          .create();
+
+  private final PluginLogger logger = new PluginLogger();
+
+  private final Path directory;
+
+  /** Lookups take the read lock, commits and compactions the write lock */
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  /** Segments in the order they were written, the last one is appended to */
+  private final List<Segment> segments = new ArrayList<>();
+
+  private final Map<String, ItemEntry> items = new HashMap<>();
+
+  /** Revision the journal starts after, -1 while the journal is empty */
+  private int start = -1;
+
+  /** Revision the journal covers up to (included), -1 while the journal is empty */
+  private int head = -1;
+
+  /** Size of the records that are not superseded */
+  private long liveBytes;
+
+  /** Set once the journal is deleted, no records are read or written afterwards */
+  private boolean deleted;
+
+  private DocumentJournal(Path directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Opens the journal in the given directory (which is created if it doesn't exist yet) and reads
+   * its index. A journal with corrupt records (other than at its end) is deleted and started over.
+   */
+  public static DocumentJournal open(Path directory) throws IOException {
+    Files.createDirectories(directory);
+    DocumentJournal journal = new DocumentJournal(directory);
+    List<Path> segmentPaths;
+    try (Stream<Path> files = Files.list(directory)) {
+      segmentPaths =
+          files
+              .filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+              .sorted()
+              .collect(Collectors.toList());
+    }
+    try {
+      for (int i = 0; i < segmentPaths.size(); i++) {
+        journal.load(segmentPaths.get(i), i == segmentPaths.size() - 1);
+      }
+    } catch (IOException e) {
+      journal.logger.error("Deleting unreadable change journal " + directory, e);
+      journal.delete();
+      for (Path path : segmentPaths) {
+        Files.deleteIfExists(path);
+      }
+      return new DocumentJournal(directory);
+    }
+    return journal;
+  }
+
+  /** Returns the revision the journal starts after, -1 if the journal is empty. */
+  public int getStart() {
+    lock.readLock().lock();
+    try {
+      return start;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Returns the revision the journal covers up to (included), -1 if the journal is empty. */
+  public int getHead() {
+    lock.readLock().lock();
+    try {
+      return head;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Returns the revision of the latest snapshot of the given item, -1 if it has none. */
+  public int getSnapshotRevision(String itemId) {
+    lock.readLock().lock();
+    try {
+      ItemEntry entry = items.get(itemId);
+      return entry == null || entry.snapshot == null ? -1 : entry.snapshotRevision;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the journal entry of the given item with its changes in (fromRevision, toRevision], or
+   * null if the item has no records in the journal.
+   */
+  public JournaledItem read(String itemId, int fromRevision, int toRevision) {
+    lock.readLock().lock();
+    try {
+      ItemEntry entry = items.get(itemId);
+      if (deleted || entry == null || entry.snapshot == null) {
+        return null;
+      }
+      List<WorkItemChange> changes = new ArrayList<>();
+      for (int i = 0; i < entry.changes.size(); i++) {
+        int revision = entry.changeRevisions.get(i);
+        if (revision > fromRevision && revision <= toRevision) {
+          changes.add(entry.changes.get(i).read().change);
+        }
+      }
+      return new JournaledItem(
+          entry.snapshot.read().snapshot, entry.snapshotRevision, entry.createdRevision, changes);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Appends the given records and advances the head of the journal to the given revision. Only
+   * succeeds if the head is still the one the records were computed after (baseHead), i.e. no other
+   * request committed in between. An empty journal starts at the given start revision.
+   */
+  public boolean commit(int baseHead, int newStart, int newHead, Collection<Record> records)
+      throws IOException {
+    lock.writeLock().lock();
+    try {
+      if (deleted || head != baseHead || newHead <= head) {
+        return false;
+      }
+      List<Record> commit = new ArrayList<>(records);
+      commit.add(Record.head(head < 0 ? newStart : start, newHead));
+      append(commit);
+      long totalBytes = totalBytes();
+      if (totalBytes > MIN_COMPACTION_SIZE && liveBytes * 2 < totalBytes) {
+        compact();
+      }
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Deletes the journal, e.g. if it turned out to be inconsistent with Polarion. */
+  public void delete() {
+    lock.writeLock().lock();
+    try {
+      deleted = true;
+      items.clear();
+      for (Segment segment : segments) {
+        segment.delete();
+      }
+      segments.clear();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Reads the records of a segment into the index. */
+  private void load(Path path, boolean last) throws IOException {
+    Segment segment = Segment.open(path);
+    segments.add(segment);
+    List<Location> pending = new ArrayList<>();
+    long committedEnd = 0;
+    long position = 0;
+    while (position + RECORD_HEADER_SIZE <= segment.size) {
+      Location location = segment.locate(position);
+      Record record = location == null ? null : location.read();
+      if (record == null) {
+        break;
+      }
+      pending.add(location);
+      position = location.end();
+      if (record.type == RecordType.HEAD) {
+        apply(pending);
+        pending.clear();
+        committedEnd = position;
+      }
+    }
+    if (committedEnd < segment.size) {
+      if (!last) {
+        throw new IOException("Corrupt journal segment " + path);
+      }
+      logger.info("Dropping uncommitted journal records at the end of " + path);
+      segment.truncate(committedEnd);
+    }
+  }
+
+  /** Writes the records of a commit to the last segment and applies them to the index. */
+  private void append(List<Record> records) throws IOException {
+    if (segments.isEmpty() || segments.get(segments.size() - 1).size >= SEGMENT_SIZE) {
+      int number = segments.isEmpty() ? 1 : segmentNumber(segments.get(segments.size() - 1)) + 1;
+      segments.add(Segment.create(directory, number));
+    }
+    Segment segment = segments.get(segments.size() - 1);
+    long position = segment.size;
+    List<byte[]> encodedRecords = new ArrayList<>(records.size());
+    int length = 0;
+    for (Record record : records) {
+      byte[] encoded = record.encode();
+      encodedRecords.add(encoded);
+      length += encoded.length;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    encodedRecords.forEach(buffer::put);
+    buffer.flip();
+    segment.append(buffer);
+
+    List<Location> locations = new ArrayList<>(records.size());
+    for (byte[] encoded : encodedRecords) {
+      Location location = new Location(segment, position, encoded.length - RECORD_HEADER_SIZE);
+      locations.add(location);
+      position = location.end();
+    }
+    apply(locations);
+  }
+
+  /** Applies the committed records at the given locations to the index. */
+  private void apply(List<Location> locations) {
+    for (Location location : locations) {
+      Record record = location.read();
+      liveBytes += location.length + RECORD_HEADER_SIZE;
+      switch (record.type) {
+        case RESET:
+          items.clear();
+          liveBytes = location.length + RECORD_HEADER_SIZE;
+          start = -1;
+          head = -1;
+          // The segments before the reset have been compacted into this one
+          segments.subList(0, segments.indexOf(location.segment)).forEach(Segment::delete);
+          segments.subList(0, segments.indexOf(location.segment)).clear();
+          break;
+        case CHANGE:
+          ItemEntry changed = items.computeIfAbsent(record.itemId, id -> new ItemEntry());
+          changed.changes.add(location);
+          changed.changeRevisions.add(record.revision);
+          break;
+        case SNAPSHOT:
+          ItemEntry snapshotted = items.computeIfAbsent(record.itemId, id -> new ItemEntry());
+          if (snapshotted.snapshot != null) {
+            liveBytes -= snapshotted.snapshot.length + RECORD_HEADER_SIZE;
+          }
+          snapshotted.snapshot = location;
+          snapshotted.snapshotRevision = record.revision;
+          if (record.createdRevision > 0) {
+            snapshotted.createdRevision = record.createdRevision;
+          }
+          break;
+        case HEAD:
+          start = record.start;
+          head = record.revision;
+          break;
+      }
+    }
+  }
+
+  /** Copies the live records to a new segment and deletes the old segments. */
+  private void compact() throws IOException {
+    long before = totalBytes();
+    List<Record> live = new ArrayList<>();
+    live.add(Record.reset());
+    for (Map.Entry<String, ItemEntry> item : items.entrySet()) {
+      for (Location change : item.getValue().changes) {
+        live.add(change.read());
+      }
+      if (item.getValue().snapshot != null) {
+        live.add(item.getValue().snapshot.read());
+      }
+    }
+    live.add(Record.head(start, head));
+    // The new segment gets the next number, the old ones are deleted when the reset is applied
+    segments.add(Segment.create(directory, segmentNumber(segments.get(segments.size() - 1)) + 1));
+    append(live);
+    logger.info(
+        "Compacted change journal "
+            + directory
+            + " from "
+            + before
+            + " to "
+            + totalBytes()
+            + " bytes");
+  }
+
+  private long totalBytes() {
+    return segments.stream().mapToLong(segment -> segment.size).sum();
+  }
+
+  private static int segmentNumber(Segment segment) {
+    String name = segment.path.getFileName().toString();
+    return Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  /** Entry of the index: the records of a work item */
+  private static class ItemEntry {
+
+    private final List<Location> changes = new ArrayList<>();
+
+    private final List<Integer> changeRevisions = new ArrayList<>();
+
+    /** Snapshot of the latest version of the item in the journal */
+    private Location snapshot;
+
+    private int snapshotRevision;
+
+    /** Revision the item was created in, 0 if it was created before the start of the journal */
+    private int createdRevision;
+  }
+
+  /** A work item as read from the journal */
+  public static class JournaledItem {
+
+    /** Snapshot of the latest version of the item in the journal, without changes */
+    private final WorkItemForJson snapshot;
+
+    private final int snapshotRevision;
+
+    /** Revision the item was created in, 0 if it was created before the start of the journal */
+    private final int createdRevision;
+
+    /** Changes in the requested revision window, ascending */
+    private final List<WorkItemChange> changes;
+
+    private JournaledItem(
+        WorkItemForJson snapshot,
+        int snapshotRevision,
+        int createdRevision,
+        List<WorkItemChange> changes) {
+      this.snapshot = snapshot;
+      this.snapshotRevision = snapshotRevision;
+      this.createdRevision = createdRevision;
+      this.changes = changes;
+    }
+
+    public WorkItemForJson getSnapshot() {
+      return snapshot;
+    }
+
+    public int getSnapshotRevision() {
+      return snapshotRevision;
+    }
+
+    public int getCreatedRevision() {
+      return createdRevision;
+    }
+
+    public List<WorkItemChange> getChanges() {
+      return changes;
+    }
+  }
+
+  private enum RecordType {
+    RESET,
+    CHANGE,
+    SNAPSHOT,
+    HEAD
+  }
+
+  /** A record of the journal, stored as json */
+  public static class Record {
+
+    private RecordType type;
+
+    private String itemId;
+
+    /** Revision of the change or snapshot, or the head revision of a HEAD record */
+    private int revision;
+
+    /** For snapshots of items created within the journal */
+    private int createdRevision;
+
+    /** Start revision of the journal, for HEAD records */
+    private int start;
+
+    private WorkItemChange change;
+
+    private WorkItemForJson snapshot;
+
+    /** Change of the given item in the given revision */
+    public static Record change(String itemId, int revision, WorkItemChange change) {
+      Record record = new Record();
+      record.type = RecordType.CHANGE;
+      record.itemId = itemId;
+      record.revision = revision;
+      record.change = change;
+      return record;
+    }
+
+    /**
+     * Snapshot (without changes) of the given item at its version of the given revision. The
+     * created revision is 0 if the item was created before the records of the commit.
+     */
+    public static Record snapshot(
+        String itemId, int revision, int createdRevision, WorkItemForJson snapshot) {
+      Record record = new Record();
+      record.type = RecordType.SNAPSHOT;
+      record.itemId = itemId;
+      record.revision = revision;
+      record.createdRevision = createdRevision;
+      record.snapshot = snapshot;
+      return record;
+    }
+
+    private static Record head(int start, int head) {
+      Record record = new Record();
+      record.type = RecordType.HEAD;
+      record.start = start;
+      record.revision = head;
+      return record;
+    }
+
+    private static Record reset() {
+      Record record = new Record();
+      record.type = RecordType.RESET;
+      return record;
+    }
+
+    /** Encodes the record with its header. */
+    private byte[] encode() {
+      byte[] json = GSON.toJson(this).getBytes(StandardCharsets.UTF_8);
+      CRC32 crc = new CRC32();
+      crc.update(json);
+      return ByteBuffer.allocate(RECORD_HEADER_SIZE + json.length)
+          .putInt(json.length)
+          .putInt((int) crc.getValue())
+          .put(json)
+          .array();
+    }
+  }
+
+  /**
+   * Field diffs are (de)serialized by their runtime type, so the diffs of links keep their link
+   * role.
+   */
+  private static class FieldDiffAdapter
+      implements JsonSerializer<WorkItemFieldDiff>, JsonDeserializer<WorkItemFieldDiff> {
+
+    private static final Gson PLAIN_GSON = new Gson();
+
+    @Override
+    public JsonElement serialize(
+        WorkItemFieldDiff fieldDiff, Type type, JsonSerializationContext context) {
+      return PLAIN_GSON.toJsonTree(fieldDiff, fieldDiff.getClass());
+    }
+
+    @Override
+    public WorkItemFieldDiff deserialize(
+        JsonElement json, Type type, JsonDeserializationContext context) {
+      if (json.getAsJsonObject().has("linkRoleId")) {
+        return PLAIN_GSON.fromJson(json, LinkFieldDiff.class);
+      }
+      return PLAIN_GSON.fromJson(json, WorkItemFieldDiff.class);
+    }
+  }
+
+  /** Position of a record in a segment */
+  private static class Location {
+
+    private final Segment segment;
+
+    /** Offset of the record header */
+    private final long offset;
+
+    /** Length of the record json */
+    private final int length;
+
+    private Location(Segment segment, long offset, int length) {
+      this.segment = segment;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    private long end() {
+      return offset + RECORD_HEADER_SIZE + length;
+    }
+
+    /** Reads the record, or returns null if it is corrupt. */
+    private Record read() {
+      ByteBuffer buffer = segment.buffer.duplicate();
+      buffer.position((int) offset + 4);
+      int checksum = buffer.getInt();
+      byte[] json = new byte[length];
+      buffer.get(json);
+      CRC32 crc = new CRC32();
+      crc.update(json);
+      if ((int) crc.getValue() != checksum) {
+        return null;
+      }
+      try {
+        Record record = GSON.fromJson(new String(json, StandardCharsets.UTF_8), Record.class);
+        return record == null || record.type == null ? null : record;
+      } catch (JsonParseException e) {
+        return null;
+      }
+    }
+  }
+
+  /** A segment file, mapped into memory for reading */
+  private static class Segment {
+
+    private final Path path;
+
+    private final FileChannel channel;
+
+    private MappedByteBuffer buffer;
+
+    private long size;
+
+    private Segment(Path path, FileChannel channel) throws IOException {
+      this.path = path;
+      this.channel = channel;
+      this.size = channel.size();
+      map();
+    }
+
+    private static Segment open(Path path) throws IOException {
+      return new Segment(
+          path, FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    private static Segment create(Path directory, int number) throws IOException {
+      Path path = directory.resolve(String.format("%08d", number) + SEGMENT_SUFFIX);
+      return new Segment(
+          path,
+          FileChannel.open(
+              path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    /** Returns the location of the record at the given position, or null if it is truncated. */
+    private Location locate(long position) {
+      int length = buffer.getInt((int) position);
+      if (length < 0 || position + RECORD_HEADER_SIZE + length > size) {
+        return null;
+      }
+      return new Location(this, position, length);
+    }
+
+    private void append(ByteBuffer records) throws IOException {
+      long position = size;
+      while (records.hasRemaining()) {
+        position += channel.write(records, position);
+      }
+      channel.force(false);
+      size = position;
+      map();
+    }
+
+    private void truncate(long newSize) throws IOException {
+      channel.truncate(newSize);
+      size = newSize;
+      map();
+    }
+
+    private void map() throws IOException {
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    /** Deletes the file. If that fails (a mapped file on Windows), the next compaction retries. */
+    private void delete() {
+      try {
+        channel.close();
+        Files.deleteIfExists(path);
+      } catch (IOException e) {
+        // The segment is before a reset, so it is ignored when the journal is read again
+      }
+    }
+  }
+}
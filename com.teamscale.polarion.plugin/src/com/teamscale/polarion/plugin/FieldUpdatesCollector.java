@@ -29,16 +29,26 @@ public class FieldUpdatesCollector {
    */
   private final String[] includeLinkRoles;
 
-  public FieldUpdatesCollector(String[] includeLinkRoles) {
+  /** Fields whose changes are part of the response */
+  private final DiffFieldSelection diffFieldSelection;
+
+  public FieldUpdatesCollector(String[] includeLinkRoles, DiffFieldSelection diffFieldSelection) {
     this.includeLinkRoles = includeLinkRoles;
+    this.diffFieldSelection = diffFieldSelection;
   }
 
   /**
    * Helper method that will collect field changes (to be included in a WorkItemChange object) based
-   * on the diff created at {@link #collectWorkItemChanges(String, List, IDiffManager, int)}
+   * on the diff created at {@link #collectWorkItemChanges(String, List, IDiffManager, int)}. Diffs
+   * of fields that are not selected by the request are skipped. Returns null if no (selected) field
+   * changed, so revisions that only touch other fields don't produce a WorkItemChange.
    */
   public WorkItemChange collectFieldChanges(
-      String workItemId, IFieldDiff[] fieldDiffs, String revision, String revAuthorId) {
+      String workItemId,
+      IFieldDiff[] fieldDiffs,
+      Collection<String> customFieldIds,
+      String revision,
+      String revAuthorId) {
 
     if (fieldDiffs == null || fieldDiffs.length == 0) {
       return null;
@@ -47,6 +57,9 @@ public class FieldUpdatesCollector {
     List<WorkItemFieldDiff> fieldChanges = new ArrayList<>();
 
     for (IFieldDiff fieldDiff : fieldDiffs) {
+      if (!diffFieldSelection.keeps(fieldDiff.getFieldName(), customFieldIds)) {
+        continue;
+      }
       if (fieldDiff.isCollection()) {
         fieldChanges.addAll(collectFieldDiffAsCollection(workItemId, revision, fieldDiff));
       } else {
@@ -58,6 +71,9 @@ public class FieldUpdatesCollector {
         fieldChanges.add(fieldChange);
       }
     }
+    if (fieldChanges.isEmpty()) {
+      return null;
+    }
     return new WorkItemChange(revision, fieldChanges, revAuthorId);
   }
 
@@ -0,0 +1,145 @@
+package com.teamscale.polarion.plugin;
+
+import com.polarion.alm.tracker.model.IWorkItem;
+import com.polarion.platform.security.ISecurityService;
+import com.teamscale.polarion.plugin.model.UpdateType;
+import com.teamscale.polarion.plugin.model.WorkItemChange;
+import com.teamscale.polarion.plugin.model.WorkItemForJson;
+import com.teamscale.polarion.plugin.utils.FieldProjection;
+import com.teamscale.polarion.plugin.utils.SizeEstimation;
+import com.teamscale.polarion.plugin.utils.WeightedLruCache;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+/**
+ * In-memory cache, shared by all requests, of work item data derived from historical work item
+ * versions. A version of a work item (URI + revision) never changes, so the converted snapshot of a
+ * version and the changes between two consecutive versions can be reused by every request with the
+ * same parameters (custom fields and link roles), e.g. when multiple Teamscale projects poll the
+ * same documents.
+ *
+ * <p>The cache is bounded by the estimated size of its values and evicts the least recently used
+ * ones. The max size (in MB) is configurable via the JVM arg
+ * com.teamscale.polarion.plugin.history-cache-size-mb (0 disables the cache).
+ *
+ * <p>The cached values are the converted views of the versions, which depend on what the user may
+ * read (e.g., linked items, comments or custom fields). Therefore, entries are specific to the user
+ * that converted them, like the entries of the {@link MetadataCache}.
+ */
+public class HistoryCache {
+
+  private static final long MAX_SIZE_MB =
+      Math.max(0, Integer.getInteger("com.teamscale.polarion.plugin.history-cache-size-mb", 64));
+
+  /** The snapshots get half of the configured size, the changes the other half */
+  private static final long MAX_WEIGHT_PER_CACHE = MAX_SIZE_MB * 1024 * 1024 / 2;
+
+  private static final HistoryCache INSTANCE = new HistoryCache();
+
+  private final ISecurityService securityService = PlatformServices.lookup(ISecurityService.class);
+
+  /**
+   * Snapshots are cached without their update type and work item changes, since these depend on the
+   * request. Values must not be modified, {@link #getSnapshot} hands out copies.
+   */
+  private final WeightedLruCache<String, WorkItemForJson> snapshots =
+      new WeightedLruCache<>(MAX_WEIGHT_PER_CACHE, SizeEstimation::estimateSize);
+
+  /** Empty if the versions have no (relevant) differences. Values must not be modified. */
+  private final WeightedLruCache<String, Optional<WorkItemChange>> changes =
+      new WeightedLruCache<>(
+          MAX_WEIGHT_PER_CACHE, change -> change.map(SizeEstimation::estimateSize).orElse(64L));
+
+  private HistoryCache() {}
+
+  public static HistoryCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Key part for the request parameters the cached values depend on. Order and duplicates of the
+   * parameter values don't make a difference for the result, so they're normalized.
+   */
+  public static String parametersKey(
+      String[] includeCustomFields, String[] includeLinkRoles, FieldProjection includeFields) {
+    return normalize(includeCustomFields)
+        + "|"
+        + normalize(includeLinkRoles)
+        + "|"
+        + includeFields.key();
+  }
+
+  /**
+   * Returns the snapshot of the given work item version as it would be returned by the given cast
+   * function (which is only called on a cache miss). The returned object can be modified by the
+   * caller.
+   */
+  public WorkItemForJson getSnapshot(
+      IWorkItem version,
+      String parametersKey,
+      UpdateType updateType,
+      Supplier<WorkItemForJson> cast) {
+    String key = versionKey(version) + "|" + userKey() + "|" + parametersKey;
+    WorkItemForJson snapshot = snapshots.get(key);
+    if (snapshot == null) {
+      snapshot = cast.get();
+      // The cached copy has no work item changes, which are set per request
+      snapshots.put(key, new WorkItemForJson(snapshot));
+      return snapshot;
+    }
+    WorkItemForJson copy = new WorkItemForJson(snapshot);
+    copy.setUpdateType(updateType);
+    return copy;
+  }
+
+  /**
+   * Returns the change between the given consecutive work item versions as it would be returned by
+   * the given collect function (which is only called on a cache miss). The returned object is
+   * shared and must not be modified.
+   */
+  public WorkItemChange getChange(
+      IWorkItem previousVersion,
+      IWorkItem version,
+      String parametersKey,
+      Supplier<WorkItemChange> collect) {
+    String key =
+        versionKey(version)
+            + "|"
+            + previousVersion.getRevision()
+            + "|"
+            + userKey()
+            + "|"
+            + parametersKey;
+    Optional<WorkItemChange> change = changes.get(key);
+    if (change == null) {
+      change = Optional.ofNullable(collect.get());
+      changes.put(key, change);
+    }
+    return change.orElse(null);
+  }
+
+  public WeightedLruCache<String, WorkItemForJson> getSnapshots() {
+    return snapshots;
+  }
+
+  public WeightedLruCache<String, Optional<WorkItemChange>> getChanges() {
+    return changes;
+  }
+
+  /** The user whose security context the values are converted in (also on the pool's workers) */
+  private String userKey() {
+    return String.valueOf(securityService.getCurrentUser());
+  }
+
+  private static String versionKey(IWorkItem version) {
+    return version.getUri() + "@" + version.getRevision();
+  }
+
+  private static String normalize(String[] values) {
+    if (values == null) {
+      return "";
+    }
+    return String.join(",", Arrays.stream(values).distinct().sorted().toArray(String[]::new));
+  }
+}
@@ -0,0 +1,121 @@
+package com.teamscale.polarion.plugin;
+
+import com.polarion.platform.security.ISecurityService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.security.auth.Subject;
+
+/**
+ * Bounded worker pool, shared by all requests, used to process the history of independent work
+ * items concurrently. Fetching the history and generating the diffs of an item mostly waits on
+ * Polarion persistence, so processing several items at once makes use of otherwise idle server
+ * cores.
+ *
+ * <p>The pool size is configurable via the JVM arg
+ * com.teamscale.polarion.plugin.history-worker-threads. With a size of 1, tasks run directly on the
+ * calling (request) thread, which is the same as the sequential processing.
+ *
+ * <p>Polarion checks permissions based on the user bound to the current thread. Therefore, every
+ * task runs in the security context (subject) of the request thread that submitted it.
+ */
+public class HistoryProcessingPool {
+
+  /** Max number of work item histories processed at the same time across all requests */
+  private static final int POOL_SIZE =
+      Math.max(
+          1,
+          Integer.getInteger(
+              "com.teamscale.polarion.plugin.history-worker-threads",
+              Math.min(4, Runtime.getRuntime().availableProcessors())));
+
+  private static final HistoryProcessingPool INSTANCE = new HistoryProcessingPool();
+
+  private final ISecurityService securityService = PlatformServices.lookup(ISecurityService.class);
+
+  /** Null if the pool size is 1 (tasks then run on the calling thread) */
+  private final ExecutorService executor;
+
+  private HistoryProcessingPool() {
+    if (POOL_SIZE > 1) {
+      executor = Executors.newFixedThreadPool(POOL_SIZE, new DaemonThreadFactory());
+    } else {
+      executor = null;
+    }
+  }
+
+  public static HistoryProcessingPool getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Max number of tasks a single request should have in flight. Requests keep their number of
+   * submitted (not yet merged) tasks within this limit, so one large request cannot flood the
+   * shared queue.
+   */
+  public int getParallelism() {
+    return POOL_SIZE;
+  }
+
+  /** Submits the task to run in the security context of the calling thread. */
+  public <T> Future<T> submit(Callable<T> task) {
+    if (executor == null) {
+      return runDirectly(task);
+    }
+    Subject subject = securityService.getCurrentSubject();
+    return executor.submit(() -> runAsUser(subject, task));
+  }
+
+  private static <T> Future<T> runDirectly(Callable<T> task) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    try {
+      future.complete(task.call());
+    } catch (Exception exception) {
+      future.completeExceptionally(exception);
+    }
+    return future;
+  }
+
+  /**
+   * {@link ISecurityService#doAsUser} takes a {@link java.security.PrivilegedAction} which cannot
+   * throw checked exceptions, so these are carried out of the action and rethrown afterwards.
+   */
+  private <T> T runAsUser(Subject subject, Callable<T> task) throws Exception {
+    Exception[] thrown = new Exception[1];
+    T result =
+        securityService.doAsUser(
+            subject,
+            () -> {
+              try {
+                return task.call();
+              } catch (Exception exception) {
+                thrown[0] = exception;
+                return null;
+              }
+            });
+    if (thrown[0] != null) {
+      throw thrown[0];
+    }
+    return result;
+  }
+
+  /** Worker threads must not prevent Polarion from shutting down. */
+  private static class DaemonThreadFactory implements ThreadFactory {
+
+    private final AtomicInteger threadCount = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread =
+          new Thread(
+              runnable,
+              "teamscale-polarion-plugin-history-worker-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package com.teamscale.polarion.plugin;
+
+import com.teamscale.polarion.plugin.DocumentJournal.JournaledItem;
+import com.teamscale.polarion.plugin.DocumentJournal.Record;
+import com.teamscale.polarion.plugin.model.WorkItemChange;
+import com.teamscale.polarion.plugin.model.WorkItemForJson;
+import com.teamscale.polarion.plugin.utils.PluginLogger;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Use of a {@link DocumentJournal} by a request. The journal is read if it covers the start of the
+ * revision window of the request. The changes and snapshots the request computes after the head of
+ * the journal are collected and appended once the request completed, so the journal then covers the
+ * window up to the endRevision of the request.
+ *
+ * <p>Sparse payloads are neither read from nor written to the journal, as the journal stores full
+ * snapshots. Requests that skip items (known by the client or processed by a previous partial
+ * response) are not written, since the journal has to contain the changes of all items.
+ *
+ * <p>Shared by the workers processing the items of a request, so it has to be thread safe.
+ */
+public class JournalSession {
+
+  private final PluginLogger logger = new PluginLogger();
+
+  private final ChangeJournal changeJournal;
+
+  private final String key;
+
+  private final DocumentJournal journal;
+
+  private final int lastUpdate;
+
+  private final int endRevision;
+
+  /** Start of the journal when the session was opened */
+  private final int start;
+
+  /** Head of the journal when the session was opened, only records after it are appended */
+  private final int head;
+
+  private final boolean readable;
+
+  private final boolean writable;
+
+  /** Records to append once the request completed */
+  private final Queue<Record> records = new ConcurrentLinkedQueue<>();
+
+  /** Set if the journal turned out to be inconsistent with Polarion and was deleted */
+  private volatile boolean invalidated;
+
+  JournalSession(
+      ChangeJournal changeJournal, String key, DocumentJournal journal, RequestContext context) {
+    this.changeJournal = changeJournal;
+    this.key = key;
+    this.journal = journal;
+    this.lastUpdate = context.getLastUpdate();
+    this.endRevision = context.getEndRevision();
+    // The head is read first: the start is set by the first commit and never changes afterwards
+    this.head = journal.getHead();
+    this.start = journal.getStart();
+    boolean fullPayload = !context.isSparsePayload();
+    this.readable = fullPayload && head >= 0 && start <= lastUpdate && lastUpdate < head;
+    this.writable =
+        fullPayload
+            && !context.hasClientKnownIds()
+            && context.getResumeAfterItemId() == null
+            && endRevision > head
+            && (head < 0 || lastUpdate <= head);
+  }
+
+  /** Checks if the changes of the items up to the head of the journal can be read from it. */
+  public boolean isReadable() {
+    return readable && !invalidated;
+  }
+
+  public int getHead() {
+    return head;
+  }
+
+  /**
+   * Returns the journal entry of the given item with its changes within the revision window of the
+   * request (up to the head of the journal), or null if the journal has no records of the item.
+   */
+  public JournaledItem read(String itemId) {
+    return journal.read(itemId, lastUpdate, Math.min(endRevision, head));
+  }
+
+  /**
+   * Collects the changes and the snapshot of the given item history for the journal, as far as they
+   * are after the head of the journal. If the history shows the version of the item at the head of
+   * the journal, it is checked against the journal: an item that changed while it was not part of
+   * the document (or the query) has no or outdated records, which invalidates the journal.
+   */
+  public void record(String itemId, WorkItemUpdatesCollector.ItemHistory history) {
+    if (invalidated) {
+      return;
+    }
+    // The history shows the version at the head if the head is within its window
+    if (head >= 0 && history.getFromRevision() <= head && head <= endRevision) {
+      int journaledRevision = journal.getSnapshotRevision(itemId);
+      int revisionAtHead = history.getRevisionAtOrBelow(head);
+      // Versions up to the start of the journal have no records
+      int expectedRevision = revisionAtHead > start ? revisionAtHead : -1;
+      // Snapshots after the head of the session were committed by another request meanwhile
+      if (journaledRevision <= head && journaledRevision != expectedRevision) {
+        invalidate("Version of work item " + itemId + " differs from the journal");
+        return;
+      }
+    }
+    if (!writable) {
+      return;
+    }
+    for (WorkItemChange change : history.getChanges()) {
+      int revision = Integer.parseInt(change.getRevision());
+      if (revision > head) {
+        records.add(Record.change(itemId, revision, change));
+      }
+    }
+    if (history.getEndVersionRevision() > head) {
+      int createdRevision = history.getCreatedRevision() > head ? history.getCreatedRevision() : 0;
+      records.add(
+          Record.snapshot(
+              itemId,
+              history.getEndVersionRevision(),
+              createdRevision,
+              new WorkItemForJson(history.getWorkItem())));
+    }
+  }
+
+  /** Deletes the journal, since it is inconsistent with the history in Polarion. */
+  public void invalidate(String reason) {
+    if (!invalidated) {
+      invalidated = true;
+      logger.info("Deleting inconsistent change journal: " + reason);
+      changeJournal.invalidate(key, journal);
+    }
+  }
+
+  /**
+   * Appends the collected records, so the journal covers the revision window of the request. Only
+   * called once all items of the request were processed.
+   */
+  public void commit() {
+    if (!writable || invalidated) {
+      return;
+    }
+    try {
+      if (!journal.commit(head, lastUpdate, endRevision, records)) {
+        logger.debug("Change journal was advanced by another request, records are dropped");
+      }
+    } catch (IOException e) {
+      logger.error("Failed to write change journal", e);
+      changeJournal.invalidate(key, journal);
+    }
+  }
+}
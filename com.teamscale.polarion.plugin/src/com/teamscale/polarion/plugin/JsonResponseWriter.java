@@ -0,0 +1,154 @@
+package com.teamscale.polarion.plugin;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+import com.teamscale.polarion.plugin.model.CompactIdSet;
+import com.teamscale.polarion.plugin.model.Response;
+import com.teamscale.polarion.plugin.model.WorkItemForJson;
+import com.teamscale.polarion.plugin.utils.IdSetEncoding;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * Streams a {@link Response} as json to an output stream. Instead of building the whole json
+ * document as a single string (which for large documents can take hundreds of MB of heap), the id
+ * lists and each {@link WorkItemForJson} are serialized one after the other straight into a
+ * buffered writer. The produced json is the same as the one Gson generates for the {@link Response}
+ * object (null fields are omitted).
+ *
+ * <p>Used as a {@link WorkItemSink}, each work item is written as soon as it is processed, so the
+ * items don't have to be kept in memory until the end of the request. The workItems array then
+ * comes first, {@link #write(Response)} closes it and writes the remaining fields after it.
+ *
+ * <p>The structure of the response is written through the {@link JsonWriter} API, so other
+ * encodings of the same structure can pass their own {@link JsonWriter} (see {@link
+ * CborResponseWriter}).
+ */
+public class JsonResponseWriter implements ResponseWriter, WorkItemSink {
+
+  public static final String MEDIA_TYPE = "application/json";
+
+  /** Size (in chars) of the buffer between the json writer and the output stream */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Gson gson = new Gson();
+
+  private final JsonWriter jsonWriter;
+
+  /** Whether id lists are written as {@link CompactIdSet} instead of plain json arrays */
+  private final boolean compactIds;
+
+  /** Whether the workItems array was opened by {@link #accept(WorkItemForJson)} */
+  private boolean streamingWorkItems;
+
+  /** Time spent writing the response so far */
+  private long writeNanos;
+
+  public JsonResponseWriter(OutputStream outputStream, boolean compactIds) throws IOException {
+    this.compactIds = compactIds;
+    // Gson#newJsonWriter configures the writer the same way Gson#toJson(Object) would
+    // (e.g., null fields are not serialized, html characters are escaped)
+    jsonWriter =
+        gson.newJsonWriter(
+            new BufferedWriter(
+                new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), BUFFER_SIZE));
+  }
+
+  /** For other encodings of the json structure, which write it through the given writer. */
+  protected JsonResponseWriter(JsonWriter jsonWriter, boolean compactIds) {
+    this.compactIds = compactIds;
+    this.jsonWriter = jsonWriter;
+  }
+
+  /**
+   * Writes the work item into the workItems array of the response. The response and the array are
+   * opened by the first item. The items are not flushed, so the headers of the response can still
+   * be set until the buffers are full.
+   */
+  @Override
+  public void accept(WorkItemForJson workItem) throws IOException {
+    long start = System.nanoTime();
+    if (!streamingWorkItems) {
+      jsonWriter.beginObject();
+      jsonWriter.name("workItems");
+      jsonWriter.beginArray();
+      streamingWorkItems = true;
+    }
+    gson.toJson(workItem, WorkItemForJson.class, jsonWriter);
+    writeNanos += System.nanoTime() - start;
+  }
+
+  @Override
+  public void write(Response response) throws IOException {
+    long start = System.nanoTime();
+    if (streamingWorkItems) {
+      if (response.getWorkItems() != null) {
+        for (WorkItemForJson workItem : response.getWorkItems()) {
+          gson.toJson(workItem, WorkItemForJson.class, jsonWriter);
+        }
+      }
+      jsonWriter.endArray();
+    } else {
+      jsonWriter.beginObject();
+    }
+    writeIds("allItemsIds", response.getAllItemsIds());
+    writeIds("itemsIdsProcessed", response.getItemsIdsProcessed());
+    if (response.getResponseType() != null) {
+      jsonWriter.name("responseType").value(response.getResponseType().name());
+    }
+    jsonWriter.name("fromRevision").value(response.getFromRevision());
+    jsonWriter.name("toRevision").value(response.getToRevision());
+    if (response.getContinuationCursor() != null) {
+      jsonWriter.name("continuationCursor").value(response.getContinuationCursor());
+    }
+    if (!streamingWorkItems) {
+      writeWorkItems(response.getWorkItems());
+    }
+    jsonWriter.endObject();
+    jsonWriter.flush();
+    streamingWorkItems = false;
+    writeNanos += System.nanoTime() - start;
+  }
+
+  /** Time spent writing the streamed work items and the response so far, for the metrics */
+  public long getWriteNanos() {
+    return writeNanos;
+  }
+
+  /**
+   * Writes a named array of ids (or their {@link CompactIdSet} representation). Nothing is written
+   * if the collection is null.
+   */
+  private void writeIds(String name, Collection<String> ids) throws IOException {
+    if (ids == null) {
+      return;
+    }
+    jsonWriter.name(name);
+    if (compactIds) {
+      gson.toJson(IdSetEncoding.encode(ids), CompactIdSet.class, jsonWriter);
+      return;
+    }
+    jsonWriter.beginArray();
+    for (String id : ids) {
+      jsonWriter.value(id);
+    }
+    jsonWriter.endArray();
+  }
+
+  /** Each work item is serialized directly into the stream, one at a time. */
+  private void writeWorkItems(Collection<WorkItemForJson> workItems) throws IOException {
+    if (workItems == null) {
+      return;
+    }
+    jsonWriter.name("workItems");
+    jsonWriter.beginArray();
+    for (WorkItemForJson workItem : workItems) {
+      gson.toJson(workItem, WorkItemForJson.class, jsonWriter);
+    }
+    jsonWriter.endArray();
+  }
+}
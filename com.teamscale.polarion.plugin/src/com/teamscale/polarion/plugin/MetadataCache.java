@@ -0,0 +1,96 @@
+package com.teamscale.polarion.plugin;
+
+import com.polarion.alm.tracker.model.IModule;
+import com.polarion.platform.security.ISecurityService;
+import com.teamscale.polarion.plugin.utils.WeightedLruCache;
+import java.util.Set;
+
+/**
+ * Cache, shared by all requests, of the metadata resolved while validating the request parameters:
+ * the document (module) of a project/space/document combination and the names of the link roles of
+ * a project.
+ *
+ * <p>Entries are only valid for the storage revision they were resolved at: Once the storage
+ * revision changes (e.g., a document was renamed or a link role was added), all entries are
+ * dropped. Entries are also specific to the user that resolved them, since the same parameters can
+ * be valid for one user and not visible to another one. The number of entries is bounded by the JVM
+ * arg com.teamscale.polarion.plugin.metadata-cache-size (0 disables the cache).
+ */
+public class MetadataCache {
+
+  private static final int MAX_SIZE =
+      Math.max(0, Integer.getInteger("com.teamscale.polarion.plugin.metadata-cache-size", 1000));
+
+  private static final MetadataCache INSTANCE = new MetadataCache();
+
+  private final ISecurityService securityService = PlatformServices.lookup(ISecurityService.class);
+
+  private final WeightedLruCache<String, IModule> modules =
+      new WeightedLruCache<>(MAX_SIZE, module -> 1);
+
+  /** Link role names (including the opposite names) by project context */
+  private final WeightedLruCache<String, Set<String>> linkRoleNames =
+      new WeightedLruCache<>(MAX_SIZE, names -> 1);
+
+  /** Latest storage revision seen, the entries of older revisions have been dropped */
+  private int storageRevision = -1;
+
+  private MetadataCache() {}
+
+  public static MetadataCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Returns the document resolved for the given parameters at the given storage revision, or null
+   * if it is not cached.
+   */
+  public IModule getModule(
+      String storageRevision, String projectId, String spaceId, String documentId) {
+    invalidateIfChanged(storageRevision);
+    return modules.get(key(storageRevision, projectId, spaceId, documentId));
+  }
+
+  public void putModule(
+      String storageRevision, String projectId, String spaceId, String documentId, IModule module) {
+    modules.put(key(storageRevision, projectId, spaceId, documentId), module);
+  }
+
+  /**
+   * Returns the link role names resolved for the project of the given document at the given storage
+   * revision, or null if they're not cached.
+   */
+  public Set<String> getLinkRoleNames(String storageRevision, IModule module) {
+    invalidateIfChanged(storageRevision);
+    return linkRoleNames.get(key(storageRevision, module.getContextId().toString()));
+  }
+
+  public void putLinkRoleNames(String storageRevision, IModule module, Set<String> names) {
+    linkRoleNames.put(key(storageRevision, module.getContextId().toString()), names);
+  }
+
+  public WeightedLruCache<String, IModule> getModules() {
+    return modules;
+  }
+
+  public WeightedLruCache<String, Set<String>> getLinkRoleNames() {
+    return linkRoleNames;
+  }
+
+  /**
+   * Drops all entries once a newer storage revision is seen. The storage revision is also part of
+   * the keys, so entries added by requests that started before the change are never returned.
+   */
+  private synchronized void invalidateIfChanged(String currentStorageRevision) {
+    int revision = Integer.parseInt(currentStorageRevision);
+    if (revision > storageRevision) {
+      modules.clear();
+      linkRoleNames.clear();
+      storageRevision = revision;
+    }
+  }
+
+  private String key(String storageRevision, String... parts) {
+    return storageRevision + "|" + securityService.getCurrentUser() + "|" + String.join("|", parts);
+  }
+}
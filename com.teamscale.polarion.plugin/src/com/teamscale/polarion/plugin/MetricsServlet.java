@@ -0,0 +1,45 @@
+package com.teamscale.polarion.plugin;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * This servlet defines the /metrics endpoint. It returns the {@link PluginMetrics} in the
+ * Prometheus text format, so they can be scraped by Prometheus (or any compatible monitoring).
+ */
+public class MetricsServlet extends HttpServlet {
+
+  private static final long serialVersionUID = 1L;
+
+  /** Media type of version 0.0.4 of the Prometheus text format */
+  private static final String MEDIA_TYPE = "text/plain; version=0.0.4";
+
+  /**
+   * @see javax.servlet.http.HttpServlet#doGet(javax.servlet.http.HttpServletRequest,
+   *     javax.servlet.http.HttpServletResponse)
+   */
+  @Override
+  protected void doGet(final HttpServletRequest req, final HttpServletResponse res)
+      throws ServletException, IOException {
+    res.setContentType(MEDIA_TYPE);
+    res.setCharacterEncoding(StandardCharsets.UTF_8.name());
+    res.getWriter().write(PluginMetrics.getInstance().export());
+  }
+
+  /**
+   * Polarion redirects the authenticated login POST request to the originally requested servlet
+   * (see {@link IsAliveServlet#doPost(HttpServletRequest, HttpServletResponse)}).
+   *
+   * @see javax.servlet.http.HttpServlet#doPost(javax.servlet.http.HttpServletRequest,
+   *     javax.servlet.http.HttpServletResponse)
+   */
+  @Override
+  protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+      throws ServletException, IOException {
+    doGet(req, resp);
+  }
+}
@@ -0,0 +1,87 @@
+package com.teamscale.polarion.plugin;
+
+import com.google.gson.Gson;
+import com.teamscale.polarion.plugin.model.Response;
+import com.teamscale.polarion.plugin.model.WorkItemForJson;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the response as newline delimited json (NDJSON): one line per {@link WorkItemForJson},
+ * followed by a single trailer line <code>{"trailer": {...}}</code> that holds the remaining fields
+ * of the {@link Response} (allItemsIds, responseType, fromRevision, toRevision and, if partial,
+ * continuationCursor).
+ *
+ * <p>Used as a {@link WorkItemSink}, each work item is written and flushed as soon as it is
+ * processed, so the client can start ingesting while the server is still processing the history of
+ * the remaining items, and the items don't have to be kept in memory until the end of the request.
+ * A stream without trailer line is incomplete (e.g., processing failed after the first items were
+ * sent).
+ */
+public class NdjsonResponseWriter implements ResponseWriter, WorkItemSink {
+
+  public static final String MEDIA_TYPE = "application/x-ndjson";
+
+  /** Size (in chars) of the buffer between the writer and the output stream */
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private final Gson gson = new Gson();
+
+  private final Writer writer;
+
+  private final TrailerWriter trailerWriter;
+
+  public NdjsonResponseWriter(OutputStream outputStream, boolean compactIds) throws IOException {
+    writer =
+        new BufferedWriter(
+            new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), BUFFER_SIZE);
+    trailerWriter = new TrailerWriter(writer, compactIds);
+  }
+
+  /** Writes the work item as one line and flushes it to the client. */
+  @Override
+  public void accept(WorkItemForJson workItem) throws IOException {
+    // Gson escapes line breaks inside of strings, so the item is a single line
+    gson.toJson(workItem, WorkItemForJson.class, writer);
+    writer.write('\n');
+    writer.flush();
+  }
+
+  /**
+   * Writes the work items of the response (if any, they are usually already streamed via {@link
+   * #accept(WorkItemForJson)}) and the trailer line.
+   */
+  @Override
+  public void write(Response response) throws IOException {
+    if (response.getWorkItems() != null) {
+      for (WorkItemForJson workItem : response.getWorkItems()) {
+        accept(workItem);
+      }
+    }
+    writer.write("{\"trailer\":");
+    // The ids of the processed items are the ids of the lines
+    trailerWriter.write(
+        new Response(
+            response.getAllItemsIds(),
+            null,
+            null,
+            response.getResponseType(),
+            response.getFromRevision(),
+            response.getToRevision(),
+            response.getContinuationCursor()));
+    writer.write("}\n");
+    writer.flush();
+  }
+
+  /** Writes the trailer object, with the json response structure (without work items). */
+  private static class TrailerWriter extends JsonResponseWriter {
+
+    private TrailerWriter(Writer writer, boolean compactIds) throws IOException {
+      super(new Gson().newJsonWriter(writer), compactIds);
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package com.teamscale.polarion.plugin;
+
+import com.polarion.platform.core.PlatformContext;
+import java.util.function.Function;
+
+/**
+ * Looks up the Polarion services used by the plugin. Outside of Polarion (in the tests), there is
+ * no platform to look them up from, so the lookup can be replaced by one returning stand-ins.
+ */
+final class PlatformServices {
+
+  private static volatile Function<Class<?>, Object> lookup =
+      type -> PlatformContext.getPlatform().lookupService(type);
+
+  private PlatformServices() {}
+
+  static <T> T lookup(Class<T> type) {
+    return type.cast(lookup.apply(type));
+  }
+
+  /**
+   * Replaces the lookup of the services. Services are looked up when the singletons of the plugin
+   * are created, so this must be called before any of them is used.
+   */
+  static void setLookup(Function<Class<?>, Object> newLookup) {
+    lookup = newLookup;
+  }
+}
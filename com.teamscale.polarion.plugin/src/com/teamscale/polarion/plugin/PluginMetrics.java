@@ -0,0 +1,248 @@
+package com.teamscale.polarion.plugin;
+
+import com.teamscale.polarion.plugin.model.ResponseType;
+import com.teamscale.polarion.plugin.utils.Histogram;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of the plugin, shared by all requests and exposed by the {@link MetricsServlet}. All
+ * metrics are {@link LongAdder}s (or {@link Histogram}s of them), so recording them on the hot path
+ * is lock-free.
+ *
+ * <p>The bytes allocated by a request are measured on the request thread and on the pool workers
+ * processing its items (see {@link RequestAllocations}), if the JVM supports measuring allocations
+ * per thread.
+ */
+public class PluginMetrics {
+
+  private static final PluginMetrics INSTANCE = new PluginMetrics();
+
+  /** Null if the JVM doesn't measure the allocations per thread */
+  private static final com.sun.management.ThreadMXBean ALLOCATIONS = allocationsBean();
+
+  /** SQL queries for the items of a document (stage 1 and 2) */
+  private final Histogram sqlTime = Histogram.forDurations();
+
+  /** Loading the history (the versions of the revision window) of an item */
+  private final Histogram historyFetchTime = Histogram.forDurations();
+
+  /** Diffing two consecutive versions of an item */
+  private final Histogram diffTime = Histogram.forDurations();
+
+  /** Converting a version of an item to its json representation */
+  private final Histogram conversionTime = Histogram.forDurations();
+
+  /** Serializing a (non-streamed) response */
+  private final Histogram serializationTime = Histogram.forDurations();
+
+  /** Changed items found by stage 2, i.e. items whose history needs to be processed */
+  private final LongAdder itemsScanned = new LongAdder();
+
+  private final LongAdder itemsProcessed = new LongAdder();
+
+  private final LongAdder completeResponses = new LongAdder();
+
+  private final LongAdder partialResponses = new LongAdder();
+
+  /** Bytes of the response bodies, as sent (i.e., compressed if the response is compressed) */
+  private final LongAdder responseBytes = new LongAdder();
+
+  private final LongAdder requests = new LongAdder();
+
+  /** Bytes allocated per request */
+  private final Histogram allocatedBytes = Histogram.forBytes();
+
+  /** Allocations of the request the current (request) thread is processing */
+  private static final ThreadLocal<RequestAllocations> currentRequest = new ThreadLocal<>();
+
+  private PluginMetrics() {}
+
+  public static PluginMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  /** The package is optional (see the manifest), since it is specific to the JVM. */
+  private static com.sun.management.ThreadMXBean allocationsBean() {
+    try {
+      ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      if (bean instanceof com.sun.management.ThreadMXBean) {
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) bean;
+        if (allocations.isThreadAllocatedMemorySupported()
+            && allocations.isThreadAllocatedMemoryEnabled()) {
+          return allocations;
+        }
+      }
+    } catch (LinkageError e) {
+      // Not available in this JVM, allocations are not measured
+    }
+    return null;
+  }
+
+  /** Returns the bytes allocated by the current thread so far. */
+  private static long allocatedBytes() {
+    return ALLOCATIONS.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Records a request started on the current thread. Returns the measurement of its allocations (to
+   * be passed to {@link #requestFinished(RequestAllocations)}), or null if allocations are not
+   * measured.
+   */
+  public RequestAllocations requestStarted() {
+    requests.increment();
+    if (ALLOCATIONS == null) {
+      return null;
+    }
+    RequestAllocations allocations = new RequestAllocations();
+    currentRequest.set(allocations);
+    return allocations;
+  }
+
+  /** Records the bytes allocated by the finished request. */
+  public void requestFinished(RequestAllocations allocations) {
+    if (allocations != null) {
+      currentRequest.remove();
+      allocatedBytes.observe(allocations.total());
+    }
+  }
+
+  /**
+   * Returns the allocations of the request processed by the current thread, null if allocations are
+   * not measured or the current thread doesn't process a request (e.g., a precomputation).
+   */
+  public static RequestAllocations currentRequest() {
+    return currentRequest.get();
+  }
+
+  public Histogram getSqlTime() {
+    return sqlTime;
+  }
+
+  public Histogram getHistoryFetchTime() {
+    return historyFetchTime;
+  }
+
+  public Histogram getDiffTime() {
+    return diffTime;
+  }
+
+  public Histogram getConversionTime() {
+    return conversionTime;
+  }
+
+  public Histogram getSerializationTime() {
+    return serializationTime;
+  }
+
+  public void recordItemsScanned(int count) {
+    itemsScanned.add(count);
+  }
+
+  public void recordItemProcessed() {
+    itemsProcessed.increment();
+  }
+
+  public void recordResponse(ResponseType responseType) {
+    if (responseType == ResponseType.PARTIAL) {
+      partialResponses.increment();
+    } else {
+      completeResponses.increment();
+    }
+  }
+
+  public void recordResponseBytes(long bytes) {
+    responseBytes.add(bytes);
+  }
+
+  /** Writes all metrics in the Prometheus text format. */
+  public String export() {
+    StringBuilder out = new StringBuilder();
+    sqlTime.writeTo(
+        out, "polarion_plugin_sql_seconds", "Time of the SQL queries for the items of a document.");
+    historyFetchTime.writeTo(
+        out, "polarion_plugin_history_fetch_seconds", "Time of loading the history of an item.");
+    diffTime.writeTo(
+        out, "polarion_plugin_diff_seconds", "Time of diffing two versions of an item.");
+    conversionTime.writeTo(
+        out, "polarion_plugin_conversion_seconds", "Time of converting a version of an item.");
+    serializationTime.writeTo(
+        out,
+        "polarion_plugin_serialization_seconds",
+        "Time of serializing and sending a non-streamed response.");
+    writeCounter(
+        out,
+        "polarion_plugin_items_scanned_total",
+        "Changed items whose history had to be processed.",
+        itemsScanned.sum());
+    writeCounter(
+        out,
+        "polarion_plugin_items_processed_total",
+        "Items whose history was processed.",
+        itemsProcessed.sum());
+    out.append("# HELP polarion_plugin_responses_total Document responses by response type.\n");
+    out.append("# TYPE polarion_plugin_responses_total counter\n");
+    out.append("polarion_plugin_responses_total{type=\"COMPLETE\"} ")
+        .append(completeResponses.sum())
+        .append('\n');
+    out.append("polarion_plugin_responses_total{type=\"PARTIAL\"} ")
+        .append(partialResponses.sum())
+        .append('\n');
+    writeCounter(
+        out,
+        "polarion_plugin_response_bytes_total",
+        "Bytes of the response bodies as sent.",
+        responseBytes.sum());
+    writeCounter(out, "polarion_plugin_requests_total", "Requests of clients.", requests.sum());
+    allocatedBytes.writeTo(
+        out, "polarion_plugin_request_allocated_bytes", "Bytes allocated by a request.");
+    out.append("# HELP polarion_plugin_requests_in_flight Requests of clients in progress.\n");
+    out.append("# TYPE polarion_plugin_requests_in_flight gauge\n");
+    out.append("polarion_plugin_requests_in_flight ")
+        .append(BackgroundThrottle.getActiveRequests())
+        .append('\n');
+    return out.toString();
+  }
+
+  /**
+   * Bytes allocated by a request: on the request thread and on the pool workers processing its
+   * items. Items that the pool runs directly on the request thread are already included in the
+   * allocations of the request thread, so they are not measured again.
+   */
+  public static class RequestAllocations {
+
+    private final Thread requestThread = Thread.currentThread();
+
+    private final long requestThreadBefore = allocatedBytes();
+
+    private final LongAdder workerBytes = new LongAdder();
+
+    private RequestAllocations() {}
+
+    /**
+     * Called before a worker processes an item of the request. Returns the value to pass to {@link
+     * #workerFinished(long)}.
+     */
+    public long workerStarted() {
+      return Thread.currentThread() == requestThread ? -1 : allocatedBytes();
+    }
+
+    public void workerFinished(long before) {
+      if (before >= 0) {
+        workerBytes.add(Math.max(0, allocatedBytes() - before));
+      }
+    }
+
+    /** Called on the request thread once the request is finished */
+    private long total() {
+      return Math.max(0, allocatedBytes() - requestThreadBefore) + workerBytes.sum();
+    }
+  }
+
+  private static void writeCounter(StringBuilder out, String name, String help, long value) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(" counter\n");
+    out.append(name).append(' ').append(value).append('\n');
+  }
+}
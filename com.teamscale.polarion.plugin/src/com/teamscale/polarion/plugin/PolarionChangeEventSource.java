@@ -0,0 +1,152 @@
+package com.teamscale.polarion.plugin;
+
+import com.polarion.alm.tracker.model.IWorkItem;
+import com.polarion.platform.persistence.IDataService;
+import com.polarion.platform.persistence.events.IObjectEvent;
+import com.polarion.platform.persistence.events.IPersistenceListener;
+import com.polarion.platform.persistence.model.IPObject;
+import com.polarion.platform.persistence.model.IPObjectList;
+import com.polarion.platform.security.ISecurityService;
+import com.teamscale.polarion.plugin.utils.PluginLogger;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ChangeEventSource} fed by the persistence listener of Polarion's data service. Polarion
+ * notifies the listener of every object created, modified or deleted by a committed transaction.
+ * The work items are reported with their last revision. Events of other objects (e.g., documents)
+ * are only used to tell that a revision was committed, so revisions without work item changes don't
+ * look like skipped revisions.
+ *
+ * <p>The listener doesn't tell when all events of a revision were delivered. A revision is
+ * therefore reported as committed once an event of a later revision arrives, or once no further
+ * event arrived for {@link #QUIET_MILLIS}. Requests don't wait for this, the index resyncs the
+ * revisions after its watermark with {@link #loadItemsChangedAfter(int)}.
+ */
+public class PolarionChangeEventSource implements ChangeEventSource, IPersistenceListener {
+
+  /** Time without events after which the latest revision is considered complete */
+  private static final long QUIET_MILLIS = 500;
+
+  private final PluginLogger logger = new PluginLogger();
+
+  private final IDataService dataService;
+
+  private final ISecurityService securityService = PlatformServices.lookup(ISecurityService.class);
+
+  private ChangeEventSource.Sink sink;
+
+  /** Null while the source is not started */
+  private ScheduledExecutorService executor;
+
+  /** Latest revision with events that was not reported as committed yet, -1 if none */
+  private int pendingRevision = -1;
+
+  private long lastEventMillis;
+
+  public PolarionChangeEventSource(IDataService dataService) {
+    this.dataService = dataService;
+  }
+
+  @Override
+  public synchronized void start(ChangeEventSource.Sink sink) {
+    this.sink = sink;
+    executor =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "teamscale-polarion-plugin-change-events");
+              thread.setDaemon(true);
+              return thread;
+            });
+    executor.scheduleWithFixedDelay(
+        this::commitIfQuiet, QUIET_MILLIS, QUIET_MILLIS, TimeUnit.MILLISECONDS);
+    dataService.addPersistenceListener(this);
+  }
+
+  @Override
+  public synchronized void stop() {
+    dataService.removePersistenceListener(this);
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+    sink = null;
+    pendingRevision = -1;
+  }
+
+  /**
+   * Runs as the system user: the index must hold the items changed for all users, requests only use
+   * it to pick the changed items among the items of the document their user may read. Not
+   * synchronized, so the events of the revisions committed meanwhile are still reported.
+   */
+  @Override
+  public Map<Integer, Set<String>> loadItemsChangedAfter(int revision) {
+    return securityService.doAsSystemUser(
+        () -> {
+          // The revision is generated by the index (not taken from a request), so it's safe
+          IPObjectList<IWorkItem> items =
+              dataService.sqlSearch(
+                  "select WI.C_URI from WORKITEM WI where WI.C_REV > " + revision);
+          Map<Integer, Set<String>> itemsByRevision = new HashMap<>();
+          for (IWorkItem item : items) {
+            itemsByRevision
+                .computeIfAbsent(Integer.parseInt(item.getLastRevision()), key -> new HashSet<>())
+                .add(item.getUri().toString());
+          }
+          return itemsByRevision;
+        });
+  }
+
+  @Override
+  public void objectCreated(IObjectEvent event) {
+    objectChanged(event.getObject());
+  }
+
+  @Override
+  public void objectModified(IObjectEvent event) {
+    objectChanged(event.getObject());
+  }
+
+  @Override
+  public void objectDeleted(IObjectEvent event) {
+    objectChanged(event.getObject());
+  }
+
+  /** Listener callbacks must not throw, so unexpected objects are logged and ignored. */
+  private synchronized void objectChanged(IPObject object) {
+    if (sink == null || object == null) {
+      return;
+    }
+    int revision;
+    try {
+      revision = Integer.parseInt(object.getLastRevision());
+    } catch (RuntimeException e) {
+      logger.debug("Ignoring change event without a revision: " + e.getMessage());
+      return;
+    }
+    if (revision > pendingRevision) {
+      if (pendingRevision >= 0) {
+        sink.revisionCommitted(pendingRevision);
+      }
+      pendingRevision = revision;
+    }
+    if (object instanceof IWorkItem) {
+      sink.workItemChanged(revision, object.getUri().toString());
+    }
+    lastEventMillis = System.currentTimeMillis();
+  }
+
+  private synchronized void commitIfQuiet() {
+    if (sink != null
+        && pendingRevision >= 0
+        && System.currentTimeMillis() - lastEventMillis >= QUIET_MILLIS) {
+      sink.revisionCommitted(pendingRevision);
+      pendingRevision = -1;
+    }
+  }
+}
@@ -0,0 +1,312 @@
+package com.teamscale.polarion.plugin;
+
+import com.polarion.alm.tracker.ITrackerService;
+import com.polarion.platform.security.ISecurityService;
+import com.polarion.platform.service.repository.ResourceException;
+import com.teamscale.polarion.plugin.utils.FieldProjection;
+import com.teamscale.polarion.plugin.utils.KnownIdSet;
+import com.teamscale.polarion.plugin.utils.PluginLogger;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.security.auth.Subject;
+
+/**
+ * Background scheduler that precomputes the work item updates of configured documents for newly
+ * committed revisions, so the {@link HistoryCache} (and the {@link ChangeJournal}, if enabled)
+ * already hold the changes when the clients poll. Requests after a busy day of editing then mostly
+ * read from the caches instead of running into the request budget.
+ *
+ * <p>The documents are configured via the JVM arg
+ * com.teamscale.polarion.plugin.precompute-documents: a list of entries separated by ';' (or
+ * whitespace) in the form
+ * project/space/document?includedWorkItemTypes=...&amp;includedWorkItemCustomFields=..., with the
+ * same inclusion parameters as the requests (the cached results depend on them). The scheduler
+ * checks the latest revision of Polarion periodically (JVM arg
+ * com.teamscale.polarion.plugin.precompute-interval-seconds, default: 60) and precomputes the
+ * revisions committed since its last run. It starts with the revision at startup, so it never
+ * processes the complete history of a document.
+ *
+ * <p>The caches are specific to the user (the converted items only contain what the user may read),
+ * so the precomputation runs as the technical user the client polls with, configured via the JVM
+ * arg com.teamscale.polarion.plugin.precompute-user. Its results are therefore only served to that
+ * user. The plugin has no credentials of the user, so it reuses the security context of the latest
+ * request of the user (see {@link #requestReceived()}); nothing is precomputed before the first
+ * request of the user. The precomputation yields to requests of clients and only uses
+ * com.teamscale.polarion.plugin.precompute-cpu-percent (default: 25) of the time for processing
+ * items (see {@link BackgroundThrottle}).
+ */
+public class PrecomputationScheduler {
+
+  private static final String DOCUMENTS =
+      System.getProperty("com.teamscale.polarion.plugin.precompute-documents", "");
+
+  private static final int INTERVAL_SECONDS =
+      Math.max(
+          1, Integer.getInteger("com.teamscale.polarion.plugin.precompute-interval-seconds", 60));
+
+  private static final String USER =
+      System.getProperty("com.teamscale.polarion.plugin.precompute-user", "");
+
+  private static final int CPU_PERCENT =
+      Integer.getInteger("com.teamscale.polarion.plugin.precompute-cpu-percent", 25);
+
+  /** A precomputation that takes longer is continued in the next run */
+  private static final long MAX_RUN_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  private static final PrecomputationScheduler INSTANCE = new PrecomputationScheduler();
+
+  private final PluginLogger logger = new PluginLogger();
+
+  private final ITrackerService trackerService = PlatformServices.lookup(ITrackerService.class);
+
+  private final ISecurityService securityService = PlatformServices.lookup(ISecurityService.class);
+
+  private final List<PrecomputedDocument> documents = parseDocuments(DOCUMENTS);
+
+  /** Null while the scheduler is not running */
+  private ScheduledExecutorService executor;
+
+  /** Security context of the latest request of the configured user, null before the first one */
+  private volatile Subject subject;
+
+  private PrecomputationScheduler() {}
+
+  public static PrecomputationScheduler getInstance() {
+    return INSTANCE;
+  }
+
+  /** Processes the changed items of a document, as a request would. */
+  public interface Precomputation {
+
+    /**
+     * Processes the work item updates of the given (not yet validated) context. Returns true if all
+     * changed items were processed.
+     */
+    boolean precompute(RequestContext context, RequestBudget budget)
+        throws ResourceException, IOException;
+  }
+
+  /** Starts the scheduler, if documents and the user are configured. */
+  public synchronized void start(Precomputation precomputation) {
+    if (documents.isEmpty() || executor != null) {
+      return;
+    }
+    if (USER.isEmpty()) {
+      logger.error(
+          "Precomputed documents are configured without"
+              + " com.teamscale.polarion.plugin.precompute-user");
+      return;
+    }
+    executor =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "teamscale-polarion-plugin-precomputation");
+              thread.setDaemon(true);
+              thread.setPriority(Thread.MIN_PRIORITY);
+              return thread;
+            });
+    executor.scheduleWithFixedDelay(
+        () -> runAsUser(precomputation), 0, INTERVAL_SECONDS, TimeUnit.SECONDS);
+    logger.info(
+        "Precomputing the work item updates of "
+            + documents.size()
+            + " document(s) for user "
+            + USER);
+  }
+
+  /**
+   * Called for each request (in its security context): keeps the security context of the configured
+   * user for the precomputation.
+   */
+  public void requestReceived() {
+    if (!USER.isEmpty() && USER.equals(securityService.getCurrentUser())) {
+      subject = securityService.getCurrentSubject();
+    }
+  }
+
+  private void runAsUser(Precomputation precomputation) {
+    Subject currentSubject = subject;
+    if (currentSubject != null) {
+      securityService.doAsUser(currentSubject, () -> runSafely(precomputation));
+    }
+  }
+
+  /** Stops the scheduler, a running precomputation is interrupted. */
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /** Exceptions must not escape, they would cancel the scheduled runs. */
+  private Void runSafely(Precomputation precomputation) {
+    try {
+      run(precomputation);
+    } catch (RuntimeException e) {
+      logger.error("Precomputation failed", e);
+    }
+    return null;
+  }
+
+  private void run(Precomputation precomputation) {
+    int latestRevision =
+        Integer.parseInt(trackerService.getDataService().getLastStorageRevision().getName());
+    // A new throttle per run, so idle time between runs is no credit for bursts
+    BackgroundThrottle throttle = new BackgroundThrottle(CPU_PERCENT);
+    for (PrecomputedDocument document : documents) {
+      if (Thread.currentThread().isInterrupted()) {
+        return;
+      }
+      if (document.precomputedRevision < 0) {
+        // Only revisions committed after the start are precomputed
+        document.precomputedRevision = latestRevision;
+        continue;
+      }
+      if (document.precomputedRevision >= latestRevision) {
+        continue;
+      }
+      RequestContext context = document.createContext(latestRevision);
+      try {
+        long timeBefore = System.currentTimeMillis();
+        if (precomputation.precompute(
+            context, RequestBudget.forBackground(MAX_RUN_MILLIS, throttle))) {
+          document.precomputedRevision = latestRevision;
+        }
+        logger.debug(
+            "Precomputed document "
+                + document.documentId
+                + " up to revision "
+                + document.precomputedRevision
+                + ". Execution time (ms): "
+                + (System.currentTimeMillis() - timeBefore));
+      } catch (ResourceException | IOException | RuntimeException e) {
+        logger.error("Failed to precompute document " + document.documentId, e);
+      }
+    }
+  }
+
+  /**
+   * Parses the configured documents. Invalid entries are logged and skipped, so a typo doesn't
+   * prevent Polarion from starting.
+   */
+  private List<PrecomputedDocument> parseDocuments(String configuration) {
+    List<PrecomputedDocument> parsed = new ArrayList<>();
+    for (String entry : configuration.trim().split("[;\\s]+")) {
+      if (entry.isEmpty()) {
+        continue;
+      }
+      String[] pathAndQuery = entry.split("\\?", 2);
+      String[] path = pathAndQuery[0].split("/");
+      Map<String, List<String>> parameters =
+          pathAndQuery.length > 1 ? parseQuery(pathAndQuery[1]) : Collections.emptyMap();
+      FieldProjection includeFields =
+          FieldProjection.of(toArray(parameters.get("includedWorkItemFields")));
+      if (path.length != 3 || includeFields == null) {
+        logger.error("Ignoring invalid precomputed document " + entry);
+        continue;
+      }
+      parsed.add(
+          new PrecomputedDocument(
+              path[0],
+              path[1],
+              path[2],
+              toArray(parameters.get("includedWorkItemTypes")),
+              toArray(parameters.get("includedWorkItemCustomFields")),
+              toArray(parameters.get("includedWorkItemLinkRoles")),
+              includeFields));
+    }
+    return parsed;
+  }
+
+  private static Map<String, List<String>> parseQuery(String query) {
+    Map<String, List<String>> parameters = new HashMap<>();
+    for (String parameter : query.split("&")) {
+      String[] nameAndValue = parameter.split("=", 2);
+      if (nameAndValue.length == 2) {
+        parameters
+            .computeIfAbsent(decode(nameAndValue[0]), name -> new ArrayList<>())
+            .add(decode(nameAndValue[1]));
+      }
+    }
+    return parameters;
+  }
+
+  private static String decode(String value) {
+    try {
+      return URLDecoder.decode(value, StandardCharsets.UTF_8.name());
+    } catch (UnsupportedEncodingException e) {
+      // Every Java platform is required to support UTF-8
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String[] toArray(List<String> values) {
+    return values == null ? null : values.toArray(new String[0]);
+  }
+
+  /** A configured document with its inclusion parameters */
+  private static class PrecomputedDocument {
+
+    private final String projectId;
+
+    private final String spaceId;
+
+    private final String documentId;
+
+    private final String[] workItemTypes;
+
+    private final String[] includeCustomFields;
+
+    private final String[] includeLinkRoles;
+
+    private final FieldProjection includeFields;
+
+    /** Revision up to which the changes were precomputed, -1 before the first run */
+    private int precomputedRevision = -1;
+
+    private PrecomputedDocument(
+        String projectId,
+        String spaceId,
+        String documentId,
+        String[] workItemTypes,
+        String[] includeCustomFields,
+        String[] includeLinkRoles,
+        FieldProjection includeFields) {
+      this.projectId = projectId;
+      this.spaceId = spaceId;
+      this.documentId = documentId;
+      this.workItemTypes = workItemTypes;
+      this.includeCustomFields = includeCustomFields;
+      this.includeLinkRoles = includeLinkRoles;
+      this.includeFields = includeFields;
+    }
+
+    /** Context of the revisions committed since the last precomputation */
+    private RequestContext createContext(int latestRevision) {
+      return new RequestContext(
+          projectId,
+          spaceId,
+          documentId,
+          precomputedRevision,
+          latestRevision,
+          workItemTypes,
+          includeCustomFields,
+          includeLinkRoles,
+          includeFields,
+          KnownIdSet.of(new String[0]),
+          false,
+          false);
+    }
+  }
+}
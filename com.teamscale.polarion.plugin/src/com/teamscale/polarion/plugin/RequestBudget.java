@@ -0,0 +1,180 @@
+package com.teamscale.polarion.plugin;
+
+import com.teamscale.polarion.plugin.model.WorkItemForJson;
+import com.teamscale.polarion.plugin.utils.SizeEstimation;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Time, item and size budget of a single request. Once the budget is used up, no further items are
+ * processed and the response becomes partial.
+ *
+ * <p>The client can request a smaller budget than the server's (request parameters timeBudget in
+ * seconds, maxItems and maxBytes), which are capped by the JVM args
+ * com.teamscale.polarion.plugin.request-time-threshold (seconds, default 15),
+ * com.teamscale.polarion.plugin.max-items-per-response and
+ * com.teamscale.polarion.plugin.max-bytes-per-response (both unlimited by default). The time budget
+ * starts with the request, so it includes the setup (validation, queries).
+ *
+ * <p>The budget adapts to the cost of the items: it tracks an exponentially weighted moving average
+ * of the processing time (history and diffs) and the estimated size of the items, and no further
+ * item is started if it is not expected to finish before the deadline or would exceed the size
+ * limit. An item that is still being processed after the deadline is aborted (see {@link
+ * #checkDeadline()}), unless it is the first item of the response, so every response makes
+ * progress.
+ *
+ * <p>Background precomputations have no item or size limits, but are paced by a {@link
+ * BackgroundThrottle}.
+ */
+public class RequestBudget {
+
+  private static final int MAX_TIME_SECONDS =
+      Integer.getInteger("com.teamscale.polarion.plugin.request-time-threshold", 15);
+
+  private static final int MAX_ITEMS =
+      Integer.getInteger("com.teamscale.polarion.plugin.max-items-per-response", Integer.MAX_VALUE);
+
+  private static final long MAX_BYTES =
+      Long.getLong("com.teamscale.polarion.plugin.max-bytes-per-response", Long.MAX_VALUE);
+
+  /** Weight of the latest item in the moving averages */
+  private static final double SMOOTHING = 0.2;
+
+  private final long deadlineNanos;
+
+  private final int maxItems;
+
+  private final long maxBytes;
+
+  /** Moving average of the processing time of an item, negative until the first item is done */
+  private double averageItemNanos = -1;
+
+  /** Moving average of the estimated size of an item, negative until the first item is merged */
+  private double averageItemBytes = -1;
+
+  /** Items of the response so far, read by the workers to decide if they may abort */
+  private volatile int itemCount = 0;
+
+  /** Estimated size of the items of the response so far */
+  private long byteCount = 0;
+
+  /** Paces a background precomputation, null for requests of clients */
+  private final BackgroundThrottle throttle;
+
+  private RequestBudget(
+      long startNanos, long timeMillis, int maxItems, long maxBytes, BackgroundThrottle throttle) {
+    this.deadlineNanos = startNanos + timeMillis * 1_000_000;
+    this.maxItems = maxItems;
+    this.maxBytes = maxBytes;
+    this.throttle = throttle;
+  }
+
+  /**
+   * Creates the budget of the request, starting now. Returns null if the budget parameters of the
+   * request are invalid (not positive numbers).
+   */
+  public static RequestBudget fromRequest(HttpServletRequest req) {
+    long startNanos = System.nanoTime();
+    Long timeBudget = parsePositive(req.getParameter("timeBudget"), MAX_TIME_SECONDS);
+    Long maxItems = parsePositive(req.getParameter("maxItems"), MAX_ITEMS);
+    Long maxBytes = parsePositive(req.getParameter("maxBytes"), MAX_BYTES);
+    if (timeBudget == null || maxItems == null || maxBytes == null) {
+      return null;
+    }
+    return new RequestBudget(
+        startNanos, timeBudget * 1000, maxItems.intValue(), maxBytes.longValue(), null);
+  }
+
+  /** Creates the budget of a background precomputation with the given time limit, starting now. */
+  public static RequestBudget forBackground(long timeMillis, BackgroundThrottle throttle) {
+    return new RequestBudget(
+        System.nanoTime(), timeMillis, Integer.MAX_VALUE, Long.MAX_VALUE, throttle);
+  }
+
+  /**
+   * Blocks until the background precomputation may start its next item. Returns false if no further
+   * item should be started. Requests of clients never wait.
+   */
+  public boolean awaitTurn() {
+    return throttle == null || throttle.awaitTurn();
+  }
+
+  /**
+   * Checks if another item can be started while the given number of items is in flight, i.e. if it
+   * is expected to finish before the deadline and the response stays within the item and size
+   * limits. The first item of a response can always be started.
+   */
+  public synchronized boolean canStartItem(int inFlight, int parallelism) {
+    if (itemCount == 0 && inFlight == 0) {
+      return true;
+    }
+    if (itemCount + inFlight >= maxItems) {
+      return false;
+    }
+    if (averageItemBytes >= 0 && byteCount + (inFlight + 1) * averageItemBytes > maxBytes) {
+      return false;
+    }
+    long now = System.nanoTime();
+    if (now >= deadlineNanos) {
+      return false;
+    }
+    if (averageItemNanos < 0) {
+      return true;
+    }
+    // The new item has to wait for a free worker if all are busy with the items in flight
+    long rounds = (inFlight + parallelism) / parallelism;
+    return now + rounds * averageItemNanos <= deadlineNanos;
+  }
+
+  /** Records the processing time of an item. Called by the workers. */
+  public void recordProcessingTime(long nanos) {
+    synchronized (this) {
+      averageItemNanos =
+          averageItemNanos < 0 ? nanos : SMOOTHING * nanos + (1 - SMOOTHING) * averageItemNanos;
+    }
+    if (throttle != null) {
+      throttle.recordProcessingTime(nanos);
+    }
+  }
+
+  /** Records an item added to the response (null if the item had no changes to send). */
+  public synchronized void recordItem(WorkItemForJson workItem) {
+    long bytes = workItem == null ? 0 : SizeEstimation.estimateSizeWithChanges(workItem);
+    averageItemBytes =
+        averageItemBytes < 0 ? bytes : SMOOTHING * bytes + (1 - SMOOTHING) * averageItemBytes;
+    byteCount += bytes;
+    itemCount++;
+  }
+
+  /**
+   * Called by the workers while processing the history of an item. Aborts the item once the
+   * deadline has passed, unless the response has no items yet.
+   */
+  public void checkDeadline() {
+    if (itemCount > 0 && System.nanoTime() > deadlineNanos) {
+      throw new ExhaustedException();
+    }
+  }
+
+  /** Returns null if the value is set but not a positive number. */
+  private static Long parsePositive(String value, long serverLimit) {
+    if (value == null) {
+      return serverLimit;
+    }
+    try {
+      long parsed = Long.parseLong(value);
+      return parsed > 0 ? Math.min(parsed, serverLimit) : null;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /** Thrown to abort the processing of an item once the budget is exhausted. */
+  public static class ExhaustedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private ExhaustedException() {
+      super("Request budget exhausted", null, false, false);
+    }
+  }
+}
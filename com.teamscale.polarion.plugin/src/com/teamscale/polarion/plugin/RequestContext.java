@@ -0,0 +1,290 @@
+package com.teamscale.polarion.plugin;
+
+import com.polarion.alm.tracker.model.IModule;
+import com.teamscale.polarion.plugin.utils.FieldProjection;
+import com.teamscale.polarion.plugin.utils.KnownIdSet;
+import java.util.Arrays;
+
+/**
+ * Immutable set of parameters of a single work item updates request. An instance is created per
+ * request and passed along validation, SQL building, history collection and serialization, so the
+ * servlet itself does not keep any request state and can serve concurrent requests.
+ *
+ * <p>Validation steps do not modify a context, they derive a new one (see {@link
+ * #withModule(IModule)}, {@link #withIncludeLinkRoles(String[])} and {@link
+ * #withResumeAfterItemId(String)}).
+ */
+public class RequestContext {
+
+  private final String projectId;
+
+  /** Aka folder */
+  private final String spaceId;
+
+  /** Aka module id */
+  private final String documentId;
+
+  /** Null until the document id is validated */
+  private final IModule module;
+
+  /** Base revision # for the request */
+  private final int lastUpdate;
+
+  /** End revision # to indicate the final revision (included) the request is looking for */
+  private final int endRevision;
+
+  /**
+   * List of possible types the result can have. If empty, items of all types should be included.
+   */
+  private final String[] workItemTypes;
+
+  /**
+   * List of work item custom fields that should be included in the result. If empty, no custom
+   * fields should be present.
+   */
+  private final String[] includeCustomFields;
+
+  /**
+   * If empty, no work item links should be included. For the values, we expect role names since
+   * this is the format utilized in the Teamscale configuration
+   */
+  private final String[] includeLinkRoles;
+
+  /** Standard work item fields that should be included in the result */
+  private final FieldProjection includeFields;
+
+  /** Ids of the work items the client already knows (their history is not processed again) */
+  private final KnownIdSet clientKnownIds;
+
+  /**
+   * Whether the client uses the compact id set representation (request parameter
+   * idEncoding=compact) for the known ids and the id lists of the response
+   */
+  private final boolean compactIdEncoding;
+
+  /**
+   * Whether UPDATED work items only carry the fields touched by their changes (request parameter
+   * payload=sparse) instead of their full snapshot
+   */
+  private final boolean sparsePayload;
+
+  /**
+   * Hash of the parameters as requested (before validation), to check a {@link ContinuationCursor}
+   * against
+   */
+  private final String parametersHash;
+
+  /** Id of the last item processed by a previous partial response, or null to start over */
+  private final String resumeAfterItemId;
+
+  public RequestContext(
+      String projectId,
+      String spaceId,
+      String documentId,
+      int lastUpdate,
+      int endRevision,
+      String[] workItemTypes,
+      String[] includeCustomFields,
+      String[] includeLinkRoles,
+      FieldProjection includeFields,
+      KnownIdSet clientKnownIds,
+      boolean compactIdEncoding,
+      boolean sparsePayload) {
+    this(
+        projectId,
+        spaceId,
+        documentId,
+        null,
+        lastUpdate,
+        endRevision,
+        copy(workItemTypes),
+        copy(includeCustomFields),
+        copy(includeLinkRoles),
+        includeFields,
+        clientKnownIds,
+        compactIdEncoding,
+        sparsePayload,
+        ContinuationCursor.hashParameters(
+            projectId,
+            spaceId,
+            documentId,
+            workItemTypes,
+            includeCustomFields,
+            includeLinkRoles,
+            includeFields,
+            compactIdEncoding,
+            sparsePayload),
+        null);
+  }
+
+  private RequestContext(
+      String projectId,
+      String spaceId,
+      String documentId,
+      IModule module,
+      int lastUpdate,
+      int endRevision,
+      String[] workItemTypes,
+      String[] includeCustomFields,
+      String[] includeLinkRoles,
+      FieldProjection includeFields,
+      KnownIdSet clientKnownIds,
+      boolean compactIdEncoding,
+      boolean sparsePayload,
+      String parametersHash,
+      String resumeAfterItemId) {
+    this.projectId = projectId;
+    this.spaceId = spaceId;
+    this.documentId = documentId;
+    this.module = module;
+    this.lastUpdate = lastUpdate;
+    this.endRevision = endRevision;
+    this.workItemTypes = workItemTypes;
+    this.includeCustomFields = includeCustomFields;
+    this.includeLinkRoles = includeLinkRoles;
+    this.includeFields = includeFields;
+    this.clientKnownIds = clientKnownIds;
+    this.compactIdEncoding = compactIdEncoding;
+    this.sparsePayload = sparsePayload;
+    this.parametersHash = parametersHash;
+    this.resumeAfterItemId = resumeAfterItemId;
+  }
+
+  /** Returns a copy of this context with the resolved document (module). */
+  public RequestContext withModule(IModule module) {
+    return new RequestContext(
+        projectId,
+        spaceId,
+        documentId,
+        module,
+        lastUpdate,
+        endRevision,
+        workItemTypes,
+        includeCustomFields,
+        includeLinkRoles,
+        includeFields,
+        clientKnownIds,
+        compactIdEncoding,
+        sparsePayload,
+        parametersHash,
+        resumeAfterItemId);
+  }
+
+  /** Returns a copy of this context with the given (validated) link roles. */
+  public RequestContext withIncludeLinkRoles(String[] includeLinkRoles) {
+    return new RequestContext(
+        projectId,
+        spaceId,
+        documentId,
+        module,
+        lastUpdate,
+        endRevision,
+        workItemTypes,
+        includeCustomFields,
+        copy(includeLinkRoles),
+        includeFields,
+        clientKnownIds,
+        compactIdEncoding,
+        sparsePayload,
+        parametersHash,
+        resumeAfterItemId);
+  }
+
+  /** Returns a copy of this context that resumes after the given item of a previous response. */
+  public RequestContext withResumeAfterItemId(String resumeAfterItemId) {
+    return new RequestContext(
+        projectId,
+        spaceId,
+        documentId,
+        module,
+        lastUpdate,
+        endRevision,
+        workItemTypes,
+        includeCustomFields,
+        includeLinkRoles,
+        includeFields,
+        clientKnownIds,
+        compactIdEncoding,
+        sparsePayload,
+        parametersHash,
+        resumeAfterItemId);
+  }
+
+  public String getProjectId() {
+    return projectId;
+  }
+
+  public String getSpaceId() {
+    return spaceId;
+  }
+
+  public String getDocumentId() {
+    return documentId;
+  }
+
+  public IModule getModule() {
+    return module;
+  }
+
+  public int getLastUpdate() {
+    return lastUpdate;
+  }
+
+  public int getEndRevision() {
+    return endRevision;
+  }
+
+  public String[] getWorkItemTypes() {
+    return copy(workItemTypes);
+  }
+
+  public String[] getIncludeCustomFields() {
+    return copy(includeCustomFields);
+  }
+
+  public String[] getIncludeLinkRoles() {
+    return copy(includeLinkRoles);
+  }
+
+  public FieldProjection getIncludeFields() {
+    return includeFields;
+  }
+
+  /** Checks if the client already knows the work item with the given id. This is O(1). */
+  public boolean isKnownByClient(String workItemId) {
+    return clientKnownIds.contains(workItemId);
+  }
+
+  public boolean hasClientKnownIds() {
+    return !clientKnownIds.isEmpty();
+  }
+
+  /** See {@link KnownIdSet#fingerprint()} */
+  public String getClientKnownIdsFingerprint() {
+    return clientKnownIds.fingerprint();
+  }
+
+  public boolean isCompactIdEncoding() {
+    return compactIdEncoding;
+  }
+
+  public boolean isSparsePayload() {
+    return sparsePayload;
+  }
+
+  public String getParametersHash() {
+    return parametersHash;
+  }
+
+  public String getResumeAfterItemId() {
+    return resumeAfterItemId;
+  }
+
+  /** Arrays are copied in and out, so no one can change the context after its creation. */
+  private static String[] copy(String[] values) {
+    if (values == null) {
+      return null;
+    }
+    return Arrays.copyOf(values, values.length);
+  }
+}
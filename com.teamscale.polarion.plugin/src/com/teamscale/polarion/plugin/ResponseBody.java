@@ -0,0 +1,87 @@
+package com.teamscale.polarion.plugin;
+
+import com.teamscale.polarion.plugin.utils.ContentEncoding;
+import com.teamscale.polarion.plugin.utils.MeteredOutputStream;
+import com.teamscale.polarion.plugin.utils.PluginLogger;
+import java.io.IOException;
+import java.io.OutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The body of a work item updates response, compressed according to the Accept-Encoding header of
+ * the request. The bytes sent and (if compressed) the bytes before compression are metered, so the
+ * compression can be logged once the body is finished.
+ */
+public class ResponseBody {
+
+  private final PluginLogger logger = new PluginLogger();
+
+  /** Null if the response is not compressed */
+  private final String encoding;
+
+  private final int compressionLevel;
+
+  private final MeteredOutputStream sent;
+
+  private final MeteredOutputStream uncompressed;
+
+  /**
+   * Negotiates the compression and sets the Content-Encoding header, so this must happen before
+   * anything is written to the response. With syncFlush, flushing the body sends everything written
+   * so far (see {@link ContentEncoding#compress(OutputStream, String, int, boolean)}).
+   */
+  public ResponseBody(
+      HttpServletRequest req, HttpServletResponse resp, int compressionLevel, boolean syncFlush)
+      throws IOException {
+    this.compressionLevel = compressionLevel;
+    encoding = ContentEncoding.negotiate(req.getHeader("Accept-Encoding"));
+    sent = new MeteredOutputStream(resp.getOutputStream());
+    if (encoding == null) {
+      uncompressed = sent;
+    } else {
+      resp.setHeader("Content-Encoding", encoding);
+      uncompressed =
+          new MeteredOutputStream(
+              ContentEncoding.compress(sent, encoding, compressionLevel, syncFlush));
+    }
+  }
+
+  /** The stream to write the (uncompressed) body to. */
+  public OutputStream getOutputStream() {
+    return uncompressed;
+  }
+
+  /**
+   * Closes the body, which writes the end of the compressed data, and logs the compression. This is
+   * deliberately not done if writing the response fails, so an error status can still be sent if
+   * nothing was flushed yet. The bytes sent are recorded in the {@link PluginMetrics}.
+   */
+  public void finish() throws IOException {
+    uncompressed.close();
+    PluginMetrics.getInstance().recordResponseBytes(sent.getByteCount());
+    if (encoding != null) {
+      logCompression();
+    }
+  }
+
+  /**
+   * Logs the compression ratio and the time spent compressing, which is the time spent writing the
+   * uncompressed bytes minus the time spent passing the compressed bytes on to the client.
+   */
+  private void logCompression() {
+    long compressionMillis = (uncompressed.getWriteNanos() - sent.getWriteNanos()) / 1_000_000;
+    double ratio =
+        sent.getByteCount() == 0 ? 1 : (double) uncompressed.getByteCount() / sent.getByteCount();
+    logger.info(
+        String.format(
+            "Response compressed with %s (level %d): %d bytes to %d bytes (ratio %.1f)."
+                + " Compression time (ms): %d",
+            encoding,
+            compressionLevel,
+            uncompressed.getByteCount(),
+            sent.getByteCount(),
+            ratio,
+            compressionMillis));
+  }
+}
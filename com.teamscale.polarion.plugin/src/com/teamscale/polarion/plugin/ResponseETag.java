@@ -0,0 +1,83 @@
+package com.teamscale.polarion.plugin;
+
+import com.teamscale.polarion.plugin.utils.HashUtils;
+
+/**
+ * Strong ETag of a (complete) work item updates response, used to answer conditional requests
+ * (If-None-Match) with 304 before any history is processed.
+ *
+ * <p>The changes within a closed revision window (endRevision before the current storage revision)
+ * can never change, so the ETag of such a response only depends on the request: the
+ * project/space/document, the revision window, the inclusion parameters, the ids known by the
+ * client, the user and the representation (format, id encoding, payload and compression). These
+ * responses are sent with {@link #CLOSED_RANGE_CACHE_CONTROL}. Note the id list allItemsIds of a
+ * cached closed range response still reflects the document at the time of the first response.
+ *
+ * <p>An open revision window (up to the latest revision) grows with every change in Polarion, so
+ * its ETag additionally includes the state of the document (see {@link
+ * WorkItemQueryPlan#getDocumentState}): as long as the document and its items are unchanged, the
+ * client gets a 304, no matter what else changed in Polarion. The state must be probed before the
+ * changes are processed (or be unchanged since then), so the response contains all changes up to
+ * that state.
+ */
+public class ResponseETag {
+
+  /**
+   * Responses are specific to the permissions of the user, so they may only be cached by the
+   * client, not by shared caches.
+   */
+  public static final String CLOSED_RANGE_CACHE_CONTROL = "private, max-age=31536000, immutable";
+
+  /** Open range responses can be cached, but must be revalidated with their ETag. */
+  public static final String OPEN_RANGE_CACHE_CONTROL = "private, no-cache";
+
+  /** Partial responses are not cached, their content depends on the budget of the request. */
+  public static final String PARTIAL_CACHE_CONTROL = "no-store";
+
+  /**
+   * Computes the quoted ETag. The document state is null for closed revision windows.
+   *
+   * @param representation identifies the encoding of the response body, e.g. its media type and
+   *     content encoding
+   */
+  public static String compute(
+      RequestContext context, String user, String representation, String documentState) {
+    String revisionWindow =
+        context.getLastUpdate()
+            + ":"
+            + context.getEndRevision()
+            + (documentState == null ? "" : ":open:" + documentState);
+    String resumeAfterItemId = context.getResumeAfterItemId();
+    return "\""
+        + HashUtils.sha256Hex(
+            context.getParametersHash(),
+            revisionWindow,
+            resumeAfterItemId == null ? "" : resumeAfterItemId,
+            context.getClientKnownIdsFingerprint(),
+            String.valueOf(context.isCompactIdEncoding()),
+            String.valueOf(context.isSparsePayload()),
+            user,
+            representation)
+        + "\"";
+  }
+
+  /**
+   * Checks if the If-None-Match header of a request matches the given ETag. As specified for
+   * If-None-Match, weak comparison is used (a W/ prefix is ignored).
+   */
+  public static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals("*") || candidate.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,11 @@
+package com.teamscale.polarion.plugin;
+
+import com.teamscale.polarion.plugin.model.Response;
+import java.io.IOException;
+
+/** Serializes a {@link Response} into the body of the http response, in a particular format. */
+public interface ResponseWriter {
+
+  /** Writes the response and flushes the underlying stream. */
+  void write(Response response) throws IOException;
+}
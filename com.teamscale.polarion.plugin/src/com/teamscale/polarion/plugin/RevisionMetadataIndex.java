@@ -0,0 +1,155 @@
+package com.teamscale.polarion.plugin;
+
+import com.polarion.alm.tracker.model.IModule;
+import com.polarion.alm.tracker.model.IWorkItem;
+import com.polarion.platform.persistence.IDataService;
+import com.polarion.platform.persistence.model.IPObjectList;
+import com.polarion.platform.persistence.model.IRevision;
+import com.polarion.subterra.base.location.ILocation;
+import com.teamscale.polarion.plugin.utils.WeightedLruCache;
+import java.util.Optional;
+import java.util.StringJoiner;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory index, shared by all requests, of revision metadata (currently the author of a
+ * revision). Revisions never change. Projects can be stored in different repositories, which have
+ * their own revision numbers, so the index is keyed by repository name and revision number.
+ *
+ * <p>Instead of loading the revisions one by one while collecting the changes of the work items,
+ * {@link #prefetch(IDataService, String, int, int)} loads all revisions of the revision window of a
+ * request (that are not indexed yet) with a single SQL query. This is only done if the window has
+ * at most com.teamscale.polarion.plugin.revision-prefetch-limit (JVM arg) revisions. Larger windows
+ * (e.g., an initial import from revision 0) mostly contain revisions that are not related to the
+ * requested document, so their revisions are loaded on demand. The number of indexed revisions is
+ * bounded by com.teamscale.polarion.plugin.revision-index-size (least recently used ones are
+ * evicted).
+ */
+public class RevisionMetadataIndex {
+
+  private static final int PREFETCH_LIMIT =
+      Integer.getInteger("com.teamscale.polarion.plugin.revision-prefetch-limit", 1000);
+
+  private static final int MAX_SIZE =
+      Math.max(0, Integer.getInteger("com.teamscale.polarion.plugin.revision-index-size", 100000));
+
+  /** Name of the repository of locations that don't specify one */
+  private static final String DEFAULT_REPOSITORY = "default";
+
+  /** Repository names that can safely be used in the prefetch query */
+  private static final Pattern REPOSITORY_NAME_PATTERN = Pattern.compile("[\\w.-]+");
+
+  private static final RevisionMetadataIndex INSTANCE = new RevisionMetadataIndex();
+
+  /** Author per repository and revision number (see {@link #key}). Empty if it has no author. */
+  private final WeightedLruCache<String, Optional<String>> authors =
+      new WeightedLruCache<>(MAX_SIZE, author -> 1);
+
+  /** Revisions loaded one by one, i.e. a round trip to Polarion each */
+  private final LongAdder singleLoads = new LongAdder();
+
+  /** Revision lookups that were served from the index (round trips saved) */
+  private final LongAdder savedRoundTrips = new LongAdder();
+
+  /** Bulk queries run to prefetch revisions */
+  private final LongAdder prefetchQueries = new LongAdder();
+
+  private RevisionMetadataIndex() {}
+
+  public static RevisionMetadataIndex getInstance() {
+    return INSTANCE;
+  }
+
+  /** Returns the name of the repository the given document (and its work items) is stored in. */
+  public static String getRepositoryName(IModule document) {
+    ILocation location = document.getModuleLocation();
+    String repositoryName = location == null ? null : location.getRepositoryName();
+    return repositoryName == null ? DEFAULT_REPOSITORY : repositoryName;
+  }
+
+  /**
+   * Loads the revisions of the window (lastUpdate, endRevision] of the given repository that are
+   * not indexed yet with a single query, unless the window is larger than the prefetch limit.
+   */
+  public void prefetch(
+      IDataService dataService, String repositoryName, int lastUpdate, int endRevision) {
+    if (MAX_SIZE == 0
+        || (long) endRevision - lastUpdate > PREFETCH_LIMIT
+        || !REPOSITORY_NAME_PATTERN.matcher(repositoryName).matches()) {
+      return;
+    }
+    StringJoiner missingRevisions = new StringJoiner("','", "'", "'");
+    boolean anyMissing = false;
+    for (int revision = lastUpdate + 1; revision <= endRevision; revision++) {
+      if (!authors.contains(key(repositoryName, String.valueOf(revision)))) {
+        missingRevisions.add(String.valueOf(revision));
+        anyMissing = true;
+      }
+    }
+    if (!anyMissing) {
+      return;
+    }
+    // Revision numbers are generated here (not taken from the request) and the repository name is
+    // checked above, so the query is safe
+    IPObjectList<IRevision> revisions =
+        dataService.sqlSearch(
+            "select REV.C_URI from REVISION REV where REV.C_REPOSITORYNAME = '"
+                + repositoryName
+                + "' and REV.C_NAME in ("
+                + missingRevisions
+                + ")");
+    prefetchQueries.increment();
+    for (IRevision revision : revisions) {
+      authors.put(
+          key(repositoryName, revision.getName()), Optional.ofNullable(revision.getStringAuthor()));
+    }
+  }
+
+  /**
+   * Returns the id of the author of the revision of the given work item version, which is stored in
+   * the given repository.
+   */
+  public String getAuthor(IDataService dataService, String repositoryName, IWorkItem version) {
+    String revisionNumber = version.getRevision();
+    String key = key(repositoryName, revisionNumber);
+    Optional<String> author = authors.get(key);
+    if (author != null) {
+      savedRoundTrips.increment();
+      return author.orElse(null);
+    }
+    IRevision revision = dataService.getRevision(version.getContextId(), revisionNumber);
+    singleLoads.increment();
+    author = Optional.ofNullable(revision.getStringAuthor());
+    authors.put(key, author);
+    return author.orElse(null);
+  }
+
+  private static String key(String repositoryName, String revisionNumber) {
+    return repositoryName + ":" + revisionNumber;
+  }
+
+  public long getSingleLoadCount() {
+    return singleLoads.sum();
+  }
+
+  public long getSavedRoundTripCount() {
+    return savedRoundTrips.sum();
+  }
+
+  public long getPrefetchQueryCount() {
+    return prefetchQueries.sum();
+  }
+
+  /** Human readable statistics, for logging */
+  public String getStatistics() {
+    return "revisions: "
+        + authors.size()
+        + ", prefetch queries: "
+        + getPrefetchQueryCount()
+        + ", single loads: "
+        + getSingleLoadCount()
+        + ", saved round trips: "
+        + getSavedRoundTripCount();
+  }
+}
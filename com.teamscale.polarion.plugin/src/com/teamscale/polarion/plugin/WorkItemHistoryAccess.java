@@ -0,0 +1,153 @@
+package com.teamscale.polarion.plugin;
+
+import com.polarion.alm.tracker.model.IWorkItem;
+import com.polarion.platform.persistence.IDataService;
+import com.polarion.platform.persistence.model.IPObject;
+import com.polarion.platform.persistence.model.IPObjectList;
+import com.polarion.platform.service.repository.ResourceException;
+import com.teamscale.polarion.plugin.utils.WeightedLruCache;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Loads the history of a work item needed for the revision window (lastUpdate, endRevision] of a
+ * request. getObjectHistory materializes every version of an item, even if only the last few
+ * versions are within the window, which dominates latency and heap for items with thousands of
+ * revisions.
+ *
+ * <p>Instead, the versions are loaded by revision, walking backwards from the version at
+ * endRevision: the version at revision r-1 is the version before the one changed in revision r. The
+ * walk stops at the first version at or before lastUpdate (the base version of the changes) or at
+ * the creation of the item. So only the versions within the window and the base version are loaded.
+ *
+ * <p>The complete history is only loaded if the request starts from the beginning (lastUpdate 0),
+ * where all versions are needed anyway, or if the window has more versions than configured via the
+ * JVM arg com.teamscale.polarion.plugin.windowed-history-max-versions (default: 64, 0 always loads
+ * the complete history). Loading many single versions is slower than loading them all at once.
+ *
+ * <p>To not load versions by revision that are discarded afterwards, the walk is skipped if it is
+ * known to exceed this limit: the number of versions within the window is at most the number of
+ * revisions within it, and items whose walk exceeded the limit are remembered with the revisions
+ * that have too many versions. Requests for a window that contains these revisions (e.g. the next
+ * page of a partial response or another document containing the item) load the complete history
+ * right away.
+ */
+public class WorkItemHistoryAccess {
+
+  private static final int MAX_WINDOW_VERSIONS =
+      Integer.getInteger("com.teamscale.polarion.plugin.windowed-history-max-versions", 64);
+
+  /** Number of work items whose exceeded walks are remembered */
+  private static final int MAX_DENSE_ITEMS = 10000;
+
+  /**
+   * Revisions {from, to} per work item URI, where the versions changed in (from, to] exceed {@link
+   * #MAX_WINDOW_VERSIONS}. Shared by all requests, versions never change.
+   */
+  private static final WeightedLruCache<String, int[]> denseRevisions =
+      new WeightedLruCache<>(MAX_DENSE_ITEMS, revisions -> 1);
+
+  /** Base revision # for the request */
+  private final int lastUpdate;
+
+  /** End revision # to indicate the final revision (included) the request is looking for */
+  private final int endRevision;
+
+  public WorkItemHistoryAccess(int lastUpdate, int endRevision) {
+    this.lastUpdate = lastUpdate;
+    this.endRevision = endRevision;
+  }
+
+  /**
+   * Returns the history of the given work item needed for the revision window. Throws a {@link
+   * ResourceException} if Polarion returns no history for the item.
+   */
+  public WorkItemHistoryView load(IWorkItem workItem, IDataService dataService)
+      throws ResourceException {
+    if (lastUpdate > 0 && MAX_WINDOW_VERSIONS > 0) {
+      WorkItemHistoryView window = loadWindow(workItem, dataService);
+      if (window != null) {
+        return window;
+      }
+    }
+    IPObjectList<IWorkItem> workItemHistory = dataService.getObjectHistory(workItem);
+    if (workItemHistory == null || workItemHistory.isEmpty() || workItemHistory.get(0) == null) {
+      /**
+       * No history. Empty list. From Polarion JavaDoc: "An empty list is returned if the object
+       * does not support history retrieval."
+       * "https://almdemo.polarion.com/polarion/sdk/doc/javadoc/com/polarion/platform/persistence/IDataService.html#getObjectHistory(T)"
+       *
+       * <p>Since we're grabbing WIs (and they support history retrieval), as far as we can tell
+       * from Polarion docs, this will never happen. If for some reason it does happen, we throw an
+       * a runtime exception. The rationale is: if we cannot return the history of an item, it's
+       * better to not fulfill the request and return a server error rather than skipping the item
+       * and returning a state that does not necessarily reflect the work item history which can
+       * potentially lead to inconsistencies on the client side.
+       */
+      throw new ResourceException(workItem.getLocation());
+    }
+    return new WorkItemHistoryView(workItemHistory);
+  }
+
+  /**
+   * Loads the versions of the window and the base version by revision. Returns null if the window
+   * has too many versions.
+   */
+  private WorkItemHistoryView loadWindow(IWorkItem workItem, IDataService dataService) {
+    int windowEnd = Math.min(endRevision, Integer.parseInt(workItem.getLastRevision()));
+    String uri = workItem.getUri().toString();
+    if (windowEnd - lastUpdate > MAX_WINDOW_VERSIONS) {
+      int[] dense = denseRevisions.get(uri);
+      if (dense != null && lastUpdate <= dense[0] && windowEnd >= dense[1]) {
+        return null;
+      }
+    }
+    List<IWorkItem> versions = new ArrayList<>();
+    List<Integer> revisions = new ArrayList<>();
+    int revision = windowEnd;
+    IWorkItem version = loadVersion(workItem, revision, dataService);
+    while (version != null) {
+      revision = Integer.parseInt(version.getLastRevision());
+      versions.add(version);
+      revisions.add(revision);
+      if (revision <= lastUpdate) {
+        break;
+      }
+      if (versions.size() > MAX_WINDOW_VERSIONS) {
+        denseRevisions.put(uri, new int[] {revision - 1, windowEnd});
+        return null;
+      }
+      version = loadVersion(workItem, revision - 1, dataService);
+    }
+    if (versions.isEmpty()) {
+      return null;
+    }
+    Collections.reverse(versions);
+    Collections.reverse(revisions);
+    return new WorkItemHistoryView(
+        versions.toArray(new IWorkItem[0]),
+        revisions.stream().mapToInt(Integer::intValue).toArray());
+  }
+
+  /**
+   * Returns the version of the work item as of the given revision, i.e. the version changed in the
+   * last revision at or before the given one. Returns null if the item didn't exist yet.
+   */
+  private static IWorkItem loadVersion(IWorkItem workItem, int revision, IDataService dataService) {
+    if (revision <= 0) {
+      return null;
+    }
+    IPObject version =
+        dataService.getVersionedInstance(workItem.getUri(), String.valueOf(revision));
+    if (version == null || version.isUnresolvable() || version.getLastRevision() == null) {
+      return null;
+    }
+    String lastRevision = version.getLastRevision();
+    if (!lastRevision.equals(version.getRevision())) {
+      // Address the version by the revision it was changed in, as the versions of the history are
+      version = dataService.getVersionedInstance(workItem.getUri(), lastRevision);
+    }
+    return version == null || version.isUnresolvable() ? null : (IWorkItem) version;
+  }
+}
@@ -0,0 +1,80 @@
+package com.teamscale.polarion.plugin;
+
+import com.polarion.alm.tracker.model.IWorkItem;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Revision index over the history of a work item (sorted from the oldest to the newest version),
+ * either the complete history or the part of it needed for a revision window (see {@link
+ * WorkItemHistoryAccess}). The revision numbers are parsed once, so lookups by revision are binary
+ * searches over an int array. Versions can be released once they're not needed anymore, so long
+ * histories don't stay in memory while the rest of the history is processed.
+ */
+public class WorkItemHistoryView {
+
+  /** Versions of the history, null once released */
+  private final IWorkItem[] versions;
+
+  /** Revision number of each version, ascending */
+  private final int[] revisions;
+
+  /** Creates a view over the complete history, as returned by getObjectHistory. */
+  public WorkItemHistoryView(List<IWorkItem> history) {
+    this.versions = history.toArray(new IWorkItem[0]);
+    this.revisions = new int[versions.length];
+    for (int i = 0; i < revisions.length; i++) {
+      revisions[i] = Integer.parseInt(versions[i].getRevision());
+    }
+  }
+
+  /** Creates a view over the given versions and their revisions, both ascending. */
+  WorkItemHistoryView(IWorkItem[] versions, int[] revisions) {
+    this.versions = versions;
+    this.revisions = revisions;
+  }
+
+  public int size() {
+    return revisions.length;
+  }
+
+  public IWorkItem getVersion(int index) {
+    return versions[index];
+  }
+
+  /** Releases the version at the given index, it can't be accessed anymore afterwards. */
+  public void release(int index) {
+    versions[index] = null;
+  }
+
+  public int getRevision(int index) {
+    return revisions[index];
+  }
+
+  /** Returns the index of the first version after the given revision, or size() if there's none. */
+  public int firstIndexAfter(int revision) {
+    int index = Arrays.binarySearch(revisions, revision);
+    return index >= 0 ? index + 1 : -index - 1;
+  }
+
+  /**
+   * Returns the index of the last version at or below the given revision, or -1 if there's none.
+   */
+  public int lastIndexAtOrBelow(int revision) {
+    return firstIndexAfter(revision) - 1;
+  }
+
+  /**
+   * Returns the index of the version the changes in the revision window (lastUpdate, endRevision]
+   * are based on: the last version at or before lastUpdate, or the first version if the item was
+   * created after lastUpdate. Returns -1 if no version is within the window, i.e. the item didn't
+   * change (and wasn't created) in the window.
+   */
+  public int baseIndex(int lastUpdate, int endRevision) {
+    int firstChange = firstIndexAfter(lastUpdate);
+    if (firstChange == revisions.length || revisions[firstChange] > endRevision) {
+      return -1;
+    }
+    return Math.max(0, firstChange - 1);
+  }
+}
@@ -0,0 +1,192 @@
+package com.teamscale.polarion.plugin;
+
+import com.polarion.alm.tracker.model.IModule;
+import com.polarion.alm.tracker.model.IWorkItem;
+import com.polarion.platform.persistence.IDataService;
+import com.polarion.platform.persistence.model.IPObjectList;
+import com.teamscale.polarion.plugin.model.DocumentChanges;
+import java.util.List;
+
+/**
+ * Two-stage query plan for the work items of a document.
+ *
+ * <ol>
+ *   <li>{@link #listDocumentItems(IDataService)} lists all work items of the document. This only
+ *       selects the item URIs, so Polarion does not need to build the full objects for items we
+ *       only need the ids of (for the client's deletion check).
+ *   <li>{@link #loadChangedItems(IDataService)} loads only the work items whose last revision is
+ *       after lastUpdate, which are the only items that can have changes in the requested revision
+ *       window.
+ * </ol>
+ *
+ * <p>Note the second stage cannot be restricted to items whose last revision is at or below
+ * endRevision: an item changed within the window and again after endRevision has its last revision
+ * after endRevision, but its changes within the window are still part of the response.
+ *
+ * <p>Polarion does not provide a prepared statement or SQL query builder API. Therefore, to prevent
+ * SQL injection issues or any unexpected behavior, we check if the variables passed to this query
+ * are valid. See what we do in the following method: {@link
+ * WorkItemUpdatesServlet#validateParameters(RequestContext)}. This class expects an already
+ * validated context.
+ *
+ * <p>Besides, Polarion internally maintains a configurable set of invalid SQL commands for security
+ * reasons. See the following answer posted in the community forum: Since Polarion 22R2, there is
+ * the system configuration property com.polarion.platform.sql.invalidCommands If you don't
+ * configure it, the SQL query is not executed if the query contains one of the following default
+ * commands: "ABORT_SESSION", "ARRAY_GET", "CARDINALITY", "ARRAY_CONTAINS", "ARRAY_CAT",
+ * "ARRAY_APPEND", "ARRAY_MAX_CARDINALITY", "TRIM_ARRAY", "ARRAY_SLICE", "AUTOCOMMIT",
+ * "CANCEL_SESSION", "CASEWHEN", "COALESCE", "CONVERT", "CURRVAL", "CSVWRITE", "CURRENT_SCHEMA",
+ * "CURRENT_CATALOG", "DATABASE_PATH", "DATA_TYPE_SQL", "DB_OBJECT_ID", "DB_OBJECT_SQL", "DECODE",
+ * "DISK_SPACE_USED", "SIGNAL", "ESTIMATED_ENVELOPE", "FILE_READ", "FILE_WRITE", "GREATEST",
+ * "LEAST", "LOCK_MODE", "LOCK_TIMEOUT", "MEMORY_FREE", "MEMORY_USED", "NEXTVAL", "NULLIF", "NVL2",
+ * "READONLY", "ROWNUM", "SESSION_ID", "SET", "TRANSACTION_ID", "TRUNCATE_VALUE", "CURRENT_PATH",
+ * "CURRENT_ROLE", "CURRENT_USER", "H2VERSION"
+ *
+ * <p>Link to the <a
+ * href="https://community.sw.siemens.com/s/question/0D54O000087hf0wSAA/validate-sql-queries-before-running-them">thread</a>
+ */
+public class WorkItemQueryPlan {
+
+  private static final String JOINS =
+      "inner join PROJECT P on WI.FK_URI_PROJECT = P.C_URI "
+          + "inner join MODULE M on WI.FK_URI_MODULE = M.C_URI ";
+
+  /** Stage 1: all items of the document (restricted to the requested types) */
+  private final String documentItemsQuery;
+
+  /** Stage 2: items of the document changed after lastUpdate */
+  private final String changedItemsQuery;
+
+  /** Items of the document changed in the max. revision of its items (for {@link #probeChanges}) */
+  private final String latestChangedItemsQuery;
+
+  private final int lastUpdate;
+
+  public WorkItemQueryPlan(RequestContext context) {
+    lastUpdate = context.getLastUpdate();
+    String documentItemsClauses = buildDocumentItemsClauses(context);
+    documentItemsQuery = "select WI.C_URI from WORKITEM WI " + documentItemsClauses;
+    changedItemsQuery =
+        "select WI.C_URI from WORKITEM WI "
+            + documentItemsClauses
+            + " and WI.C_REV > "
+            + context.getLastUpdate();
+    latestChangedItemsQuery =
+        "select WI.C_URI from WORKITEM WI "
+            + documentItemsClauses
+            + " and WI.C_REV = (select max(WI2.C_REV) from WORKITEM WI2"
+            + " where WI2.FK_URI_MODULE = WI.FK_URI_MODULE"
+            + generateWorkItemTypesAndClause("WI2", context.getWorkItemTypes())
+            + ")";
+  }
+
+  /**
+   * Lists all work items of the document. The returned objects are meant to be used only for their
+   * ids, other getters make Polarion resolve the full objects.
+   */
+  public IPObjectList<IWorkItem> listDocumentItems(IDataService dataService) {
+    return search(dataService, documentItemsQuery);
+  }
+
+  /** Loads the work items of the document that changed after lastUpdate. */
+  public IPObjectList<IWorkItem> loadChangedItems(IDataService dataService) {
+    return search(dataService, changedItemsQuery);
+  }
+
+  /**
+   * Summarizes the current state of the document and its (requested) work items, compared to the
+   * lastUpdate of the request. No history is processed. Polarion's data service only runs queries
+   * that select objects, so the max. item revision is selected by a max(C_REV) sub-query (only one
+   * of the latest changed items is resolved) and the item count is the size of the lazily resolved
+   * URI list of stage 1. Only work item revisions count as changes: edits of the document itself
+   * (e.g. of its text) don't change the work item updates.
+   */
+  public DocumentChanges probeChanges(IDataService dataService, IModule module) {
+    IPObjectList<IWorkItem> latestChangedItems = search(dataService, latestChangedItemsQuery);
+    String maxItemRevision =
+        latestChangedItems.isEmpty() ? null : latestChangedItems.get(0).getLastRevision();
+    int itemCount = search(dataService, documentItemsQuery).size();
+    boolean changed = maxItemRevision != null && Integer.parseInt(maxItemRevision) > lastUpdate;
+    return new DocumentChanges(changed, itemCount, maxItemRevision, module.getLastRevision());
+  }
+
+  /**
+   * Fingerprint of the state of the document and its (requested) work items as probed by {@link
+   * #probeChanges(IDataService, IModule)}, which changes whenever any of them changes.
+   */
+  public static String getDocumentState(DocumentChanges changes) {
+    return changes.getDocumentRevision()
+        + ":"
+        + changes.getItemCount()
+        + ":"
+        + changes.getMaxItemRevision();
+  }
+
+  /**
+   * Stage 2 for several documents of a batch with a single query: loads the work items of the
+   * documents that changed after the lastUpdate of their document. All contexts must be of the same
+   * project and request the same work item types. The items are assigned to their documents by
+   * their URIs, which are listed by stage 1 of each document.
+   */
+  public static IPObjectList<IWorkItem> loadChangedItems(
+      IDataService dataService, List<RequestContext> contexts) {
+    RequestContext first = contexts.get(0);
+    StringBuilder sqlQuery = new StringBuilder("select WI.C_URI from WORKITEM WI ");
+    sqlQuery.append(JOINS);
+    sqlQuery.append("where P.C_ID = '" + first.getProjectId() + "' and (");
+    for (int i = 0; i < contexts.size(); i++) {
+      RequestContext context = contexts.get(i);
+      if (i > 0) {
+        sqlQuery.append(" or ");
+      }
+      sqlQuery.append("(M.C_ID = '" + context.getDocumentId() + "'");
+      sqlQuery.append(" and M.C_MODULEFOLDER = '" + context.getSpaceId() + "'");
+      sqlQuery.append(" and WI.C_REV > " + context.getLastUpdate() + ")");
+    }
+    sqlQuery.append(")");
+    sqlQuery.append(generateWorkItemTypesAndClause("WI", first.getWorkItemTypes()));
+    return search(dataService, sqlQuery.toString());
+  }
+
+  /** Runs a query and records its time in the {@link PluginMetrics}. */
+  private static IPObjectList<IWorkItem> search(IDataService dataService, String sqlQuery) {
+    long start = System.nanoTime();
+    try {
+      return dataService.sqlSearch(sqlQuery);
+    } finally {
+      PluginMetrics.getInstance().getSqlTime().observe(System.nanoTime() - start);
+    }
+  }
+
+  /** Joins and where clauses that restrict the work items to the ones of the requested document */
+  private static String buildDocumentItemsClauses(RequestContext context) {
+    StringBuilder sqlQuery = new StringBuilder();
+    sqlQuery.append(JOINS);
+    sqlQuery.append("where P.C_ID = '" + context.getProjectId() + "'");
+    sqlQuery.append(" and M.C_ID = '" + context.getDocumentId() + "'");
+    sqlQuery.append(" and M.C_MODULEFOLDER = '" + context.getSpaceId() + "'");
+    sqlQuery.append(generateWorkItemTypesAndClause("WI", context.getWorkItemTypes()));
+    return sqlQuery.toString();
+  }
+
+  /**
+   * Restricts the work items of the given table alias to the requested types. If the return string
+   * is blank work items of all types will be included in the query.
+   */
+  private static String generateWorkItemTypesAndClause(String alias, String[] workItemTypes) {
+    StringBuilder andClause = new StringBuilder("");
+    if (workItemTypes != null && workItemTypes.length > 0) {
+      andClause.append(" and " + alias + ".C_TYPE in (");
+      for (int i = 0; i < workItemTypes.length; i++) {
+        if (workItemTypes[i] != null && !workItemTypes[i].isBlank()) {
+          andClause.append("'" + workItemTypes[i] + "',");
+        }
+      }
+      if (andClause.toString().endsWith(",")) {
+        andClause.deleteCharAt(andClause.length() - 1);
+      }
+      andClause.append(")");
+    }
+    return andClause.toString();
+  }
+}
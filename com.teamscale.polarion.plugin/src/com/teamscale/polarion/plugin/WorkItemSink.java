@@ -0,0 +1,13 @@
+package com.teamscale.polarion.plugin;
+
+import com.teamscale.polarion.plugin.model.WorkItemForJson;
+import java.io.IOException;
+
+/**
+ * Receives the work items of a streamed response as soon as their history is processed, in
+ * processing order (see {@link NdjsonResponseWriter} and {@link JsonResponseWriter}).
+ */
+public interface WorkItemSink {
+
+  void accept(WorkItemForJson workItem) throws IOException;
+}
@@ -1,27 +1,31 @@
 package com.teamscale.polarion.plugin;
 
 import com.polarion.alm.tracker.model.ILinkRoleOpt;
+import com.polarion.alm.tracker.model.IModule;
 import com.polarion.alm.tracker.model.IWorkItem;
 import com.polarion.platform.persistence.IDataService;
-import com.polarion.platform.persistence.diff.IDiffManager;
 import com.polarion.platform.persistence.diff.IFieldDiff;
-import com.polarion.platform.persistence.model.IPObjectList;
-import com.polarion.platform.persistence.model.IRevision;
 import com.polarion.platform.service.repository.ResourceException;
+import com.teamscale.polarion.plugin.DocumentJournal.JournaledItem;
 import com.teamscale.polarion.plugin.model.UpdateType;
 import com.teamscale.polarion.plugin.model.WorkItemChange;
+import com.teamscale.polarion.plugin.model.WorkItemFieldDiff;
 import com.teamscale.polarion.plugin.model.WorkItemForJson;
 import com.teamscale.polarion.plugin.utils.CastUtils;
+import com.teamscale.polarion.plugin.utils.FieldProjection;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This is a helper class for the main servlet class. This class provides a series of
- * functionalities to process work item history and data generation for the response.
+ * functionalities to process work item history and data generation for the response. One instance
+ * is shared by the workers processing the items of a request, so it has to be thread safe.
  */
 public class WorkItemUpdatesCollector {
 
@@ -44,183 +48,433 @@ public class WorkItemUpdatesCollector {
    */
   private final String[] includeLinkRoles;
 
-  /** This is used to keep a map of linkRoleIds to its in/out link names */
-  private final Map<String, ILinkRoleOpt> linkNamesMap = new HashMap<>();
+  /** Standard work item fields that should be included in the result */
+  private final FieldProjection includeFields;
+
+  /** Whether UPDATED items only carry the fields touched by their changes */
+  private final boolean sparsePayload;
+
+  /**
+   * This is used to keep a map of linkRoleIds to its in/out link names. Concurrent since the
+   * histories of different work items are processed in parallel by the {@link
+   * HistoryProcessingPool}.
+   */
+  private final Map<String, ILinkRoleOpt> linkNamesMap = new ConcurrentHashMap<>();
+
+  /** The requested document, all processed work items belong to it */
+  private final IModule document;
+
+  /** Repository of the document, for the revision lookups */
+  private final String repositoryName;
 
   /** This is a helper obj to help processing field updates including link changes */
   private final FieldUpdatesCollector fieldUpdatesCollector;
 
+  /** Fields whose changes are part of the response, the others are not diffed */
+  private final DiffFieldSelection diffFieldSelection;
+
+  /** Snapshots and changes of work item versions already computed (by any request) */
+  private final HistoryCache historyCache = HistoryCache.getInstance();
+
+  /** Loads the versions of the work items needed for the revision window of the request */
+  private final WorkItemHistoryAccess historyAccess;
+
+  /** Authors of the revisions, possibly prefetched for the revision window of the request */
+  private final RevisionMetadataIndex revisionMetadataIndex = RevisionMetadataIndex.getInstance();
+
+  private final PluginMetrics metrics = PluginMetrics.getInstance();
+
+  /** Key part of the request parameters for the {@link HistoryCache} */
+  private final String cacheParametersKey;
+
+  /** Checked between the versions of an item, so items with huge histories can be aborted */
+  private final RequestBudget budget;
+
+  /** Session on the change journal of the document, null if the journal is disabled */
+  private final JournalSession journalSession;
+
   public WorkItemUpdatesCollector(
-      int lastUpdate, int endRevision, String[] includeCustomFields, String[] includeLinkRoles) {
+      RequestContext context, RequestBudget budget, JournalSession journalSession) {
 
-    this.lastUpdate = lastUpdate;
-    this.endRevision = endRevision;
-    this.includeCustomFields = includeCustomFields;
-    this.includeLinkRoles = includeLinkRoles;
-    fieldUpdatesCollector = new FieldUpdatesCollector(includeLinkRoles);
+    this.lastUpdate = context.getLastUpdate();
+    this.endRevision = context.getEndRevision();
+    this.includeCustomFields = context.getIncludeCustomFields();
+    this.includeLinkRoles = context.getIncludeLinkRoles();
+    this.includeFields = context.getIncludeFields();
+    this.sparsePayload = context.isSparsePayload();
+    this.document = context.getModule();
+    this.repositoryName = RevisionMetadataIndex.getRepositoryName(document);
+    historyAccess = new WorkItemHistoryAccess(lastUpdate, endRevision);
+    diffFieldSelection =
+        new DiffFieldSelection(includeFields, includeCustomFields, includeLinkRoles);
+    fieldUpdatesCollector = new FieldUpdatesCollector(includeLinkRoles, diffFieldSelection);
+    cacheParametersKey =
+        HistoryCache.parametersKey(includeCustomFields, includeLinkRoles, includeFields);
+    this.budget = budget;
+    this.journalSession = journalSession;
   }
 
   /** Main method that will process the work item history based on the parameters in the request */
   public WorkItemForJson processHistory(IWorkItem workItem, IDataService dataService)
       throws ResourceException {
 
+    int lastRevision = Integer.parseInt(workItem.getLastRevision());
     // Short circuit for performance reasons, don't need to make Polarion fetch history
-    if (Integer.valueOf(workItem.getLastRevision()) <= lastUpdate) {
+    if (lastRevision <= lastUpdate) {
       return null;
     }
 
-    WorkItemForJson workItemForJson = null;
-    IPObjectList<IWorkItem> workItemHistory = dataService.getObjectHistory(workItem);
-    if (workItemHistory != null && workItemHistory.size() == 1 && workItemHistory.get(0) != null) {
-      // No changes in history when size == 1 (the WI remains as created)
-      // We then return only if the item was created within the revision boundaries of the request
-      if (Integer.valueOf(workItemHistory.get(0).getRevision()) <= endRevision) {
-        workItemForJson =
-            CastUtils.castWorkItem(
-                workItemHistory.get(0),
-                includeCustomFields,
-                includeLinkRoles,
-                linkNamesMap,
-                UpdateType.CREATED);
+    if (journalSession != null && journalSession.isReadable()) {
+      // Only items returned by the query of the user are looked up, so the journal never returns
+      // data of items the user cannot read
+      JournaledItem journaled = journalSession.read(workItem.getId());
+      WorkItemForJson workItemForJson = null;
+      if (lastRevision <= journalSession.getHead()) {
+        workItemForJson = readFromJournal(workItem.getId(), journaled, lastRevision);
+      } else if (journaled != null && endRevision > journalSession.getHead()) {
+        workItemForJson = continueJournal(workItem, dataService, journaled);
       }
-    } else if (workItemHistory != null && workItemHistory.size() > 1) {
-      /**
-       * From Polarion JavaDoc: "The history list is sorted from the oldest (first) to the newest
-       * (last)."
-       * https://almdemo.polarion.com/polarion/sdk/doc/javadoc/com/polarion/platform/persistence/IDataService.html#getObjectHistory(T)
-       * Then, we get the last one from the history as the current revision
-       */
-      int lastUpdateIndex = searchIndexWorkItemHistory(workItemHistory);
-
-      if (lastUpdateIndex < 0) {
-        return null;
+      if (workItemForJson != null) {
+        return workItemForJson;
       }
+    }
 
-      IDiffManager diffManager = dataService.getDiffManager();
-      Collection<WorkItemChange> workItemChanges = new ArrayList<>();
-      int endIndex =
-          collectWorkItemChanges(
-              workItemChanges, workItem.getId(), workItemHistory, dataService, lastUpdateIndex);
-      // Using the endIndex to return the workItem as in the endRevision # (not necessarily the
-      // latest version of the item)
-      UpdateType updateType = UpdateType.UPDATED;
-      if (endIndex == 0) {
-        // this means will send the item in its CREATED state since its changes occurred after
-        // endRevision
-        updateType = UpdateType.CREATED;
-      } // otherwise, endIndex > 0, the item by the endRevision goes as an UPDATED state
-      workItemForJson =
-          CastUtils.castWorkItem(
-              workItemHistory.get(endIndex),
-              includeCustomFields,
-              includeLinkRoles,
-              linkNamesMap,
-              updateType);
-      workItemForJson.setWorkItemChanges(workItemChanges);
+    ItemHistory itemHistory = collectHistory(workItem, dataService, lastUpdate);
+    if (itemHistory == null) {
+      return null;
+    }
+    if (journalSession != null) {
+      journalSession.record(workItem.getId(), itemHistory);
+    }
+    return itemHistory.workItem;
+  }
+
+  /**
+   * Returns the item as of the journal, for an item whose last change is covered by the journal.
+   * Returns null if the item has to be processed from its history in Polarion, e.g. because the
+   * journal is inconsistent with the last revision of the item.
+   */
+  private WorkItemForJson readFromJournal(
+      String workItemId, JournaledItem journaled, int lastRevision) {
+    if (journaled == null || journaled.getSnapshotRevision() < lastRevision) {
+      journalSession.invalidate("Work item " + workItemId + " has changes missing in the journal");
+      return null;
+    }
+    if (journaled.getSnapshotRevision() > lastRevision || lastRevision > endRevision) {
+      // The journal is ahead of the queried version or the request ends before the last change
+      return null;
+    }
+    WorkItemForJson workItemForJson = new WorkItemForJson(journaled.getSnapshot());
+    if (journaled.getCreatedRevision() == lastRevision) {
+      // Created in the revision window and unchanged since then
+      workItemForJson.setUpdateType(UpdateType.CREATED);
     } else {
-      /**
-       * No history. Empty list. From Polarion JavaDoc: "An empty list is returned if the object
-       * does not support history retrieval."
-       * "https://almdemo.polarion.com/polarion/sdk/doc/javadoc/com/polarion/platform/persistence/IDataService.html#getObjectHistory(T)"
-       *
-       * <p>Since we're grabbing WIs (and they support history retrieval), as far as we can tell
-       * from Polarion docs, this else will never execute. If for some reason it does happen, we
-       * throw an a runtime exception. The rationale is: if we cannot return the history of an item,
-       * it's better to not fulfill the request and return a server error rather than skipping the
-       * item and returning a state that does not necessarily reflect the work item history which
-       * can potentially lead to inconsistencies on the client side.
-       */
-      throw new ResourceException(workItem.getLocation());
+      workItemForJson.setUpdateType(UpdateType.UPDATED);
+      workItemForJson.setWorkItemChanges(journaled.getChanges());
     }
     return workItemForJson;
   }
 
-  /** Binary search to cut down the search space since the list is ordered in ascending order */
-  private int searchIndexWorkItemHistory(IPObjectList<IWorkItem> workItemHistory) {
+  /**
+   * Processes the history of an item changed after the head of the journal: only the versions after
+   * the head are loaded from Polarion, the earlier changes are taken from the journal. Returns null
+   * if the item has to be processed from its complete revision window instead.
+   */
+  private WorkItemForJson continueJournal(
+      IWorkItem workItem, IDataService dataService, JournaledItem journaled)
+      throws ResourceException {
+    ItemHistory recentHistory = collectHistory(workItem, dataService, journalSession.getHead());
+    if (recentHistory == null) {
+      // No changes up to the endRevision, the rare case is not worth another path
+      return null;
+    }
+    if (recentHistory.baseRevision != journaled.getSnapshotRevision()) {
+      if (journaled.getSnapshotRevision() <= journalSession.getHead()) {
+        journalSession.invalidate(
+            "Version of work item " + workItem.getId() + " differs from the journal");
+      }
+      return null;
+    }
+    journalSession.record(workItem.getId(), recentHistory);
+    List<WorkItemChange> workItemChanges = new ArrayList<>(journaled.getChanges());
+    workItemChanges.addAll(recentHistory.changes);
+    recentHistory.workItem.setWorkItemChanges(workItemChanges);
+    return recentHistory.workItem;
+  }
+
+  /**
+   * Processes the history of the work item in the revision window (fromRevision, endRevision].
+   * Returns null if the item has no version in the window.
+   */
+  private ItemHistory collectHistory(IWorkItem workItem, IDataService dataService, int fromRevision)
+      throws ResourceException {
 
-    // Short circuit: don't need to binarysearch if you're looking for all history
-    if (lastUpdate <= 0) {
-      return 0;
+    WorkItemHistoryAccess access =
+        fromRevision == lastUpdate
+            ? historyAccess
+            : new WorkItemHistoryAccess(fromRevision, endRevision);
+    long loadStart = System.nanoTime();
+    WorkItemHistoryView history = access.load(workItem, dataService);
+    metrics.getHistoryFetchTime().observe(System.nanoTime() - loadStart);
+    if (history.size() == 1) {
+      // No changes in history when size == 1 (the WI remains as created)
+      // We then return only if the item was created within the revision boundaries of the request
+      int createdRevision = history.getRevision(0);
+      if (createdRevision > fromRevision && createdRevision <= endRevision) {
+        return new ItemHistory(
+            castVersion(history.getVersion(0), UpdateType.CREATED),
+            new ArrayList<>(),
+            history,
+            fromRevision,
+            createdRevision,
+            createdRevision,
+            createdRevision);
+      }
+      return null;
     }
+    /**
+     * From Polarion JavaDoc: "The history list is sorted from the oldest (first) to the newest
+     * (last)."
+     * https://almdemo.polarion.com/polarion/sdk/doc/javadoc/com/polarion/platform/persistence/IDataService.html#getObjectHistory(T)
+     * Then, we get the last one from the history as the current revision
+     */
+    int lastUpdateIndex = history.baseIndex(fromRevision, endRevision);
 
-    int lastItemRevision =
-        Integer.valueOf(workItemHistory.get(workItemHistory.size() - 1).getRevision());
-    // Short circuit: don't need to search if lastUpdate points to the last version of the item
-    if (lastItemRevision == lastUpdate) {
-      return workItemHistory.size() - 1;
+    if (lastUpdateIndex < 0) {
+      return null;
     }
+    int baseRevision = history.getRevision(lastUpdateIndex);
+    // The base version is the first version of the item if it was created in the window
+    int createdRevision = baseRevision > fromRevision ? baseRevision : 0;
 
-    int firstItemVersion = Integer.valueOf(workItemHistory.get(0).getRevision());
-    // Short circuit: don't search if all changes are before lastUpdate or after endRevision
-    if (lastItemRevision < lastUpdate || firstItemVersion > endRevision) {
-      return -1;
+    List<WorkItemChange> workItemChanges = new ArrayList<>();
+    int endIndex =
+        collectWorkItemChanges(
+            workItemChanges, workItem.getId(), history, dataService, lastUpdateIndex);
+    // Using the endIndex to return the workItem as in the endRevision # (not necessarily the
+    // latest version of the item)
+    UpdateType updateType = UpdateType.UPDATED;
+    if (endIndex == 0) {
+      // this means will send the item in its CREATED state since its changes occurred after
+      // endRevision
+      updateType = UpdateType.CREATED;
+    } // otherwise, endIndex > 0, the item by the endRevision goes as an UPDATED state
+    WorkItemForJson workItemForJson;
+    if (sparsePayload && updateType == UpdateType.UPDATED) {
+      // The client already has the earlier state, so only the touched fields are sent
+      workItemForJson = castSparseVersion(history.getVersion(endIndex), workItemChanges);
+    } else {
+      workItemForJson = castVersion(history.getVersion(endIndex), updateType);
     }
+    workItemForJson.setWorkItemChanges(workItemChanges);
+    return new ItemHistory(
+        workItemForJson,
+        workItemChanges,
+        history,
+        fromRevision,
+        history.getRevision(endIndex),
+        baseRevision,
+        createdRevision);
+  }
 
-    int left = 0;
-    int right = workItemHistory.size() - 1;
-    int index = -1;
+  /** Converts a version of a work item, unless it was already converted before. */
+  private WorkItemForJson castVersion(IWorkItem version, UpdateType updateType) {
+    return historyCache.getSnapshot(
+        version,
+        cacheParametersKey,
+        updateType,
+        () -> {
+          long start = System.nanoTime();
+          WorkItemForJson workItemForJson =
+              CastUtils.castWorkItem(
+                  version,
+                  document,
+                  includeFields,
+                  includeCustomFields,
+                  includeLinkRoles,
+                  linkNamesMap,
+                  updateType);
+          metrics.getConversionTime().observe(System.nanoTime() - start);
+          return workItemForJson;
+        });
+  }
 
-    while (left <= right) {
-      int mid = (left + right) / 2;
-      if (Integer.valueOf(workItemHistory.get(mid).getRevision()) < lastUpdate) {
-        left = mid + 1;
-      } else if (Integer.valueOf(workItemHistory.get(mid).getRevision()) == lastUpdate) {
-        // When all changes came after the lastUpdate and endRevision
-        if (firstItemVersion == Integer.valueOf(workItemHistory.get(mid).getRevision())) {
-          return -1;
-        }
-        return mid;
-      } else {
-        index = mid;
-        right = mid - 1;
+  /**
+   * Converts the version of an UPDATED item for a sparse payload: only its id, revision and the
+   * (requested) fields touched by the given changes are read. The result is not cached, since it
+   * depends on the changes of the revision window.
+   */
+  private WorkItemForJson castSparseVersion(
+      IWorkItem version, Collection<WorkItemChange> workItemChanges) {
+    Set<String> touchedFields = new HashSet<>();
+    for (WorkItemChange workItemChange : workItemChanges) {
+      for (WorkItemFieldDiff fieldChange : workItemChange.getFieldChanges()) {
+        touchedFields.add(fieldChange.getFieldName());
       }
     }
-
-    // When the item changed before lastUpdate and after endRevision
-    if (Integer.valueOf(workItemHistory.get(index).getRevision()) < lastUpdate
-        || Integer.valueOf(workItemHistory.get(index).getRevision()) > endRevision) {
-      return -1;
-    }
-
-    return (index == 0 ? index : index - 1);
+    String[] touchedCustomFields =
+        includeCustomFields == null
+            ? null
+            : Arrays.stream(includeCustomFields)
+                .filter(touchedFields::contains)
+                .toArray(String[]::new);
+    String[] touchedLinkRoles =
+        touchedFields.contains(CastUtils.LINKED_WORK_ITEMS_FIELD_NAME) ? includeLinkRoles : null;
+    long start = System.nanoTime();
+    WorkItemForJson workItemForJson =
+        CastUtils.castWorkItem(
+            version,
+            document,
+            includeFields.retainTouched(touchedFields),
+            touchedCustomFields,
+            touchedLinkRoles,
+            linkNamesMap,
+            UpdateType.UPDATED);
+    metrics.getConversionTime().observe(System.nanoTime() - start);
+    return workItemForJson;
   }
 
   /**
    * Helper method that will collect work item changes (WorkItemChange) based on the diff of each
    * pair of work item versions in a given work item history and then returns the index of the last
-   * workItem in the history (considering the endRevision request parameter)
+   * workItem in the history (considering the endRevision request parameter). Versions are released
+   * from the history once their diff has been collected.
    */
   private int collectWorkItemChanges(
       Collection<WorkItemChange> workItemChanges,
       String workItemId,
-      List<IWorkItem> workItemHistory,
+      WorkItemHistoryView history,
       IDataService dataService,
       int lastUpdateIndex) {
-    int index = lastUpdateIndex;
-    int next = index + 1;
-    while (next < workItemHistory.size()
-        && Integer.valueOf(workItemHistory.get(next).getRevision()) <= endRevision) {
-
-      if (Integer.valueOf(workItemHistory.get(next).getRevision()) > lastUpdate) {
-        IFieldDiff[] fieldDiffs =
-            dataService
-                .getDiffManager()
-                .generateDiff(
-                    workItemHistory.get(index), workItemHistory.get(next), new HashSet<>());
-        String wiChangeRev = workItemHistory.get(next).getRevision();
-        IRevision revObj =
-            dataService.getRevision(workItemHistory.get(next).getContextId(), wiChangeRev);
-        String revAuthorId = revObj.getStringAuthor();
-        WorkItemChange fieldChangesToAdd =
-            fieldUpdatesCollector.collectFieldChanges(
-                workItemId, fieldDiffs, workItemHistory.get(next).getRevision(), revAuthorId);
-        if (fieldChangesToAdd != null) {
-          workItemChanges.add(fieldChangesToAdd);
-        }
+    // All versions after the base version are after lastUpdate
+    int endIndex = Math.max(lastUpdateIndex, history.lastIndexAtOrBelow(endRevision));
+    for (int next = lastUpdateIndex + 1; next <= endIndex; next++) {
+      budget.checkDeadline();
+      IWorkItem previousVersion = history.getVersion(next - 1);
+      IWorkItem nextVersion = history.getVersion(next);
+      WorkItemChange fieldChangesToAdd =
+          historyCache.getChange(
+              previousVersion,
+              nextVersion,
+              cacheParametersKey,
+              () -> collectChange(workItemId, previousVersion, nextVersion, dataService));
+      if (fieldChangesToAdd != null) {
+        workItemChanges.add(fieldChangesToAdd);
       }
-      index++;
-      next++;
+      history.release(next - 1);
+    }
+    return endIndex;
+  }
+
+  /**
+   * Diffs the selected fields of two consecutive versions of a work item and records the time in
+   * the {@link PluginMetrics}. Returns null if there are no changes.
+   */
+  private WorkItemChange collectChange(
+      String workItemId,
+      IWorkItem previousVersion,
+      IWorkItem nextVersion,
+      IDataService dataService) {
+    long start = System.nanoTime();
+    try {
+      return diff(workItemId, previousVersion, nextVersion, dataService);
+    } finally {
+      metrics.getDiffTime().observe(System.nanoTime() - start);
+    }
+  }
+
+  private WorkItemChange diff(
+      String workItemId,
+      IWorkItem previousVersion,
+      IWorkItem nextVersion,
+      IDataService dataService) {
+    IFieldDiff[] fieldDiffs =
+        dataService
+            .getDiffManager()
+            .generateDiff(
+                previousVersion,
+                nextVersion,
+                diffFieldSelection.getIgnoredFields(previousVersion, nextVersion));
+    if (fieldDiffs == null || fieldDiffs.length == 0) {
+      return null;
+    }
+    String revAuthorId = revisionMetadataIndex.getAuthor(dataService, repositoryName, nextVersion);
+    return fieldUpdatesCollector.collectFieldChanges(
+        workItemId,
+        fieldDiffs,
+        nextVersion.getCustomFieldsList(),
+        nextVersion.getRevision(),
+        revAuthorId);
+  }
+
+  /** Result of processing the history of a work item in a revision window */
+  static class ItemHistory {
+
+    /** The item as of the end of the window, with its changes */
+    private final WorkItemForJson workItem;
+
+    /** Changes in the window, ascending */
+    private final List<WorkItemChange> changes;
+
+    /** Versions of the item loaded for the window (released ones only have their revision) */
+    private final WorkItemHistoryView history;
+
+    /** Start of the window (excluded) */
+    private final int fromRevision;
+
+    /** Revision of the version the item is sent as */
+    private final int endVersionRevision;
+
+    /** Revision of the version the changes are based on */
+    private final int baseRevision;
+
+    /** Revision the item was created in, 0 if it was created before the window */
+    private final int createdRevision;
+
+    private ItemHistory(
+        WorkItemForJson workItem,
+        List<WorkItemChange> changes,
+        WorkItemHistoryView history,
+        int fromRevision,
+        int endVersionRevision,
+        int baseRevision,
+        int createdRevision) {
+      this.workItem = workItem;
+      this.changes = changes;
+      this.history = history;
+      this.fromRevision = fromRevision;
+      this.endVersionRevision = endVersionRevision;
+      this.baseRevision = baseRevision;
+      this.createdRevision = createdRevision;
+    }
+
+    public WorkItemForJson getWorkItem() {
+      return workItem;
+    }
+
+    public List<WorkItemChange> getChanges() {
+      return changes;
+    }
+
+    public int getEndVersionRevision() {
+      return endVersionRevision;
+    }
+
+    public int getCreatedRevision() {
+      return createdRevision;
+    }
+
+    public int getFromRevision() {
+      return fromRevision;
+    }
+
+    /**
+     * Returns the revision of the last version at or before the given revision (which must not be
+     * before the start of the window), or -1 if the item didn't exist yet.
+     */
+    public int getRevisionAtOrBelow(int revision) {
+      int index = history.lastIndexAtOrBelow(revision);
+      return index < 0 ? -1 : history.getRevision(index);
     }
-    return index;
   }
 }
@@ -0,0 +1,98 @@
+package com.teamscale.polarion.plugin;
+
+import com.teamscale.polarion.plugin.model.ResponseType;
+import com.teamscale.polarion.plugin.model.WorkItemForJson;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds what a single request collected before it is serialized into the response. Instances are
+ * request-local and only accessed by the request thread (workers hand their results back to the
+ * request thread, which merges them here).
+ *
+ * <p>If the response is streamed, the processed items are passed on to a {@link WorkItemSink}
+ * instead of being kept until the end of the request.
+ */
+public class WorkItemUpdatesResult {
+
+  /** All item ids present (not deleted) in the latest revision of the proj/folder/doc */
+  private final List<String> allValidItemIds = new ArrayList<>();
+
+  /**
+   * This is to keep in memory all result objects (type WorkItemsForJson) indexed by WorkItem ID
+   * This provides O(1) access when, at the end, when we need to send a list of processed item IDs.
+   * The map keeps the insertion order, which is the processing order (by work item id).
+   */
+  private final Map<String, WorkItemForJson> allItemsToSend = new LinkedHashMap<>();
+
+  /** Null unless the response is streamed */
+  private final WorkItemSink sink;
+
+  /** Ids of the items passed on to the sink, in processing order */
+  private final List<String> streamedItemIds = new ArrayList<>();
+
+  /** We assume a complete response unless it's close to timeout then we turn it into partial. */
+  private ResponseType responseType = ResponseType.COMPLETE;
+
+  /**
+   * Id of the last item (in the processing order) whose history was processed. Empty if no item was
+   * processed. This is where a follow-up request resumes if the response is partial.
+   */
+  private String lastProcessedItemId = "";
+
+  public WorkItemUpdatesResult() {
+    this(null);
+  }
+
+  /** For streamed responses, the processed items go straight to the given sink. */
+  public WorkItemUpdatesResult(WorkItemSink sink) {
+    this.sink = sink;
+  }
+
+  public List<String> getAllValidItemIds() {
+    return allValidItemIds;
+  }
+
+  public void addValidItemId(String workItemId) {
+    allValidItemIds.add(workItemId);
+  }
+
+  public Collection<String> getItemsIdsProcessed() {
+    return sink == null ? allItemsToSend.keySet() : streamedItemIds;
+  }
+
+  /** Empty if the response is streamed (the items have already been passed on to the sink). */
+  public Collection<WorkItemForJson> getItemsToSend() {
+    return sink == null ? allItemsToSend.values() : Collections.emptyList();
+  }
+
+  public void addItemToSend(WorkItemForJson workItemForJson) throws IOException {
+    if (sink != null) {
+      sink.accept(workItemForJson);
+      streamedItemIds.add(workItemForJson.getId());
+    } else {
+      allItemsToSend.put(workItemForJson.getId(), workItemForJson);
+    }
+  }
+
+  public ResponseType getResponseType() {
+    return responseType;
+  }
+
+  public void setResponseType(ResponseType responseType) {
+    this.responseType = responseType;
+  }
+
+  public String getLastProcessedItemId() {
+    return lastProcessedItemId;
+  }
+
+  public void setLastProcessedItemId(String lastProcessedItemId) {
+    this.lastProcessedItemId = lastProcessedItemId;
+  }
+}
@@ -1,36 +1,54 @@
 package com.teamscale.polarion.plugin;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import com.polarion.alm.projects.model.IProject;
 import com.polarion.alm.tracker.ITrackerService;
 import com.polarion.alm.tracker.model.IModule;
 import com.polarion.alm.tracker.model.IWorkItem;
-import com.polarion.platform.core.PlatformContext;
 import com.polarion.platform.persistence.IDataService;
 import com.polarion.platform.persistence.IEnumOption;
 import com.polarion.platform.persistence.IEnumeration;
 import com.polarion.platform.persistence.UnresolvableObjectException;
 import com.polarion.platform.persistence.model.IPObjectList;
+import com.polarion.platform.security.ISecurityService;
 import com.polarion.platform.security.PermissionDeniedException;
 import com.polarion.platform.service.repository.AccessDeniedException;
 import com.polarion.platform.service.repository.ResourceException;
 import com.polarion.subterra.base.data.model.TypeFactory;
+import com.teamscale.polarion.plugin.model.BatchRequest;
+import com.teamscale.polarion.plugin.model.CompactIdSet;
+import com.teamscale.polarion.plugin.model.DocumentChanges;
 import com.teamscale.polarion.plugin.model.Response;
 import com.teamscale.polarion.plugin.model.ResponseType;
 import com.teamscale.polarion.plugin.model.UpdateType;
 import com.teamscale.polarion.plugin.model.WorkItemForJson;
+import com.teamscale.polarion.plugin.utils.AcceptHeader;
+import com.teamscale.polarion.plugin.utils.ContentEncoding;
+import com.teamscale.polarion.plugin.utils.FieldProjection;
+import com.teamscale.polarion.plugin.utils.IdSetEncoding;
+import com.teamscale.polarion.plugin.utils.KnownIdSet;
 import com.teamscale.polarion.plugin.utils.PluginLogger;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -41,54 +59,73 @@ import javax.servlet.http.HttpServletResponse;
  * is to return a json object representing updates on work items of a particular document, in a
  * given folder (space) and project.
  *
+ * <p>Tomcat uses a single instance of this servlet for all requests. Therefore, the servlet does
+ * not keep any request state in fields: the request parameters are held by a {@link RequestContext}
+ * and the collected updates by a {@link WorkItemUpdatesResult}, both created per request.
+ *
  * @author Bruno da Silva
  */
 public class WorkItemUpdatesServlet extends HttpServlet {
 
   private static final long serialVersionUID = 1L;
 
-  private ResponseType responseType;
-
   private final PluginLogger logger = new PluginLogger();
 
-  private final ITrackerService trackerService =
-      (ITrackerService) PlatformContext.getPlatform().lookupService(ITrackerService.class);
+  private final ITrackerService trackerService = PlatformServices.lookup(ITrackerService.class);
 
-  private IModule module;
+  private final ISecurityService securityService = PlatformServices.lookup(ISecurityService.class);
 
-  /**
-   * If empty, no work item links should be included. For the values, we expect role names since
-   * this is the format utilized in the Teamscale configuration
-   */
-  private String[] includeLinkRoles;
+  /** Level (0-9, -1 for the default) of the response compression, if the client accepts it */
+  private static final int COMPRESSION_LEVEL =
+      Math.max(
+          -1,
+          Math.min(9, Integer.getInteger("com.teamscale.polarion.plugin.compression-level", 6)));
 
-  /** Base revision # for the request */
-  private int lastUpdate;
+  /** Value of the format parameter for streaming the response as newline delimited json */
+  private static final String NDJSON_FORMAT = "ndjson";
 
-  /** End revision # to indicate the final revision (included) the request is looking for */
-  private int endRevision;
+  /** Value of the payload parameter for sending UPDATED items without their full snapshot */
+  private static final String SPARSE_PAYLOAD = "sparse";
 
   /**
-   * List of possible types the result can have. If empty, items of all types should be included.
+   * Starts feeding the {@link ChangeIndex} (if enabled) and the precomputation of the configured
+   * documents (see {@link PrecomputationScheduler}).
    */
-  private String[] workItemTypes;
+  @Override
+  public void init() throws ServletException {
+    if (ChangeIndex.isEnabled()) {
+      ChangeIndex.getInstance()
+          .start(
+              new PolarionChangeEventSource(trackerService.getDataService()), getLatestRevision());
+    }
+    PrecomputationScheduler.getInstance().start(this::precompute);
+  }
 
-  /**
-   * List of work item custom fields that should be included in the result. If empty, no custom
-   * fields should be present.
-   */
-  private String[] includeCustomFields;
+  @Override
+  public void destroy() {
+    PrecomputationScheduler.getInstance().stop();
+    ChangeIndex.getInstance().stop();
+  }
 
   /**
-   * This is to keep in memory all result objects (type WorkItemsForJson) indexed by WorkItem ID
-   * This provides O(1) access when, at the end, when we need to send a list of processed item IDs
+   * Background precomputations yield to requests while they are in progress (and run in the
+   * security context of the requests of the configured user). The request and the bytes it
+   * allocated are recorded in the {@link PluginMetrics}.
    */
-  private Map<String, WorkItemForJson> allItemsToSend;
-
-  /** Time limit to stop analyzing new items - triggers a partial response */
-  private static final int TIME_THRESHOLD =
-      Integer.getInteger("com.teamscale.polarion.plugin.request-time-threshold", 15)
-          * 1000; // milliseconds
+  @Override
+  protected void service(HttpServletRequest req, HttpServletResponse res)
+      throws ServletException, IOException {
+    PrecomputationScheduler.getInstance().requestReceived();
+    PluginMetrics metrics = PluginMetrics.getInstance();
+    PluginMetrics.RequestAllocations allocations = metrics.requestStarted();
+    BackgroundThrottle.requestStarted();
+    try {
+      super.service(req, res);
+    } finally {
+      BackgroundThrottle.requestFinished();
+      metrics.requestFinished(allocations);
+    }
+  }
 
   /**
    * @see javax.servlet.http.HttpServlet#doGet(javax.servlet.http.HttpServletRequest,
@@ -98,84 +135,474 @@ public class WorkItemUpdatesServlet extends HttpServlet {
   protected void doGet(final HttpServletRequest req, final HttpServletResponse res)
       throws ServletException, IOException {
 
-    String[] clientKnownIds = readRequestBody(req);
+    if (ActionsFilter.CHANGES_SINCE_ACTION.equals(req.getAttribute("action"))) {
+      processChangesProbe(req, res);
+      return;
+    }
+
+    if (!ContentEncoding.isSupported(req.getHeader("Content-Encoding"))) {
+      String msg = "Unsupported Content-Encoding. Supported are gzip and deflate.";
+      logger.error(msg);
+      res.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE, msg);
+      return;
+    }
+
+    // The budget includes the setup of the request
+    RequestBudget budget = RequestBudget.fromRequest(req);
+    if (budget == null) {
+      String msg = "Invalid budget. Review timeBudget, maxItems and maxBytes parameters.";
+      logger.error(msg);
+      res.sendError(HttpServletResponse.SC_BAD_REQUEST, msg);
+      return;
+    }
+
+    if (FieldProjection.of(req.getParameterValues("includedWorkItemFields")) == null) {
+      String msg =
+          "Invalid includedWorkItemFields. Supported fields: "
+              + String.join(", ", FieldProjection.STANDARD_FIELDS);
+      logger.error(msg);
+      res.sendError(HttpServletResponse.SC_BAD_REQUEST, msg);
+      return;
+    }
+
+    if (ActionsFilter.BATCH_ACTION.equals(req.getAttribute("action"))) {
+      processBatch(req, res, budget);
+      return;
+    }
+
+    boolean compactIdEncoding = IdSetEncoding.COMPACT.equals(req.getParameter("idEncoding"));
+    KnownIdSet clientKnownIds;
+    try {
+      clientKnownIds = readRequestBody(req, compactIdEncoding);
+    } catch (IllegalArgumentException e) {
+      String msg = "Invalid known ids in the request body: " + e.getMessage();
+      logger.error(msg);
+      res.sendError(HttpServletResponse.SC_BAD_REQUEST, msg);
+      return;
+    }
     if (clientKnownIds == null) {
       logger.error("Error attempting to read request body.");
       res.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       return;
     }
 
-    // We assume a complete response unless it's close to timeout then we turn it into partial.
-    responseType = ResponseType.COMPLETE;
+    ContinuationCursor cursor = null;
+    String cursorStr = req.getParameter("continuationCursor");
+    if (cursorStr != null) {
+      cursor = ContinuationCursor.decode(cursorStr);
+      if (cursor == null) {
+        String msg = "Invalid continuation cursor.";
+        logger.error(msg);
+        res.sendError(HttpServletResponse.SC_BAD_REQUEST, msg);
+        return;
+      }
+    }
 
-    String lastUpdateStr = req.getParameter("lastUpdate");
-    String endRevisionStr = req.getParameter("endRevision");
+    RequestContext context = createRequestContext(req, clientKnownIds, compactIdEncoding, cursor);
 
-    if (!processRevisionNumbers(lastUpdateStr, endRevisionStr)) {
+    if (context == null) {
       String msg = "Invalid revision numbers. Review lastUpdate and" + " endRevision parameters.";
       logger.error(msg);
       res.sendError(HttpServletResponse.SC_BAD_REQUEST, msg);
       return;
     }
 
-    workItemTypes = req.getParameterValues("includedWorkItemTypes");
-    includeCustomFields = req.getParameterValues("includedWorkItemCustomFields");
-    includeLinkRoles = req.getParameterValues("includedWorkItemLinkRoles");
-
-    String projId = (String) req.getAttribute("project");
-    String spaceId = (String) req.getAttribute("space");
-    String docId = (String) req.getAttribute("document");
+    if (cursor != null) {
+      if (!cursor.getParametersHash().equals(context.getParametersHash())) {
+        String msg = "The continuation cursor belongs to a request with different parameters.";
+        logger.error(msg);
+        res.sendError(HttpServletResponse.SC_BAD_REQUEST, msg);
+        return;
+      }
+      context = context.withResumeAfterItemId(cursor.getLastItemId());
+    }
 
     try {
-      allItemsToSend = new HashMap<>();
+      RequestContext validatedContext = validateParameters(context);
 
-      Collection<String> allValidItemsLatest =
-          retrieveChanges(projId, spaceId, docId, clientKnownIds);
-
-      if (allValidItemsLatest == null) {
+      if (validatedContext == null) {
         logger.error("Invalid combination of projectId/folderId/documentId");
         res.sendError(HttpServletResponse.SC_NOT_FOUND, "The requested resource is not found");
       } else {
-        sendResponse(res, allValidItemsLatest);
+        if (NDJSON_FORMAT.equals(req.getParameter("format"))) {
+          streamResponse(req, res, validatedContext, budget);
+        } else {
+          int latestRevision = getLatestRevision();
+          boolean closedRange = validatedContext.getEndRevision() < latestRevision;
+          String ifNoneMatch = req.getHeader("If-None-Match");
+          String etag = null;
+          if (ifNoneMatch != null) {
+            // The document state is probed before processing, so the response includes it
+            etag =
+                computeETag(
+                    req,
+                    validatedContext,
+                    closedRange ? null : probeDocumentState(validatedContext, Integer.MAX_VALUE));
+            if (ResponseETag.matches(ifNoneMatch, etag)) {
+              // The client already has this response, no history needs to be processed
+              setCachingHeaders(res, etag, closedRange);
+              res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+              logger.info("Response not modified since the client's version");
+              return;
+            }
+          }
+          sendResponse(req, res, validatedContext, budget, etag, latestRevision);
+        }
         logger.info("Successful response sent");
       }
     } catch (PermissionDeniedException permissionDenied) {
       logger.error("Permission denied raised by Polarion", permissionDenied);
-      res.sendError(HttpServletResponse.SC_FORBIDDEN);
+      sendErrorIfNotCommitted(res, HttpServletResponse.SC_FORBIDDEN);
     } catch (AccessDeniedException accessDenied) {
       logger.error("Access denied raised by Polarion", accessDenied);
-      res.sendError(HttpServletResponse.SC_FORBIDDEN);
+      sendErrorIfNotCommitted(res, HttpServletResponse.SC_FORBIDDEN);
     } catch (ResourceException resourceException) {
       logger.error(
           "Cannot fulfill request. Failed to process histoy for WorkItem "
               + resourceException.getResource(),
           resourceException);
-      res.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      sendErrorIfNotCommitted(res, HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+  }
+
+  /**
+   * Handles the changes-since probe. It only needs the document, lastUpdate and the work item
+   * types, so the body, budget, cursor and inclusion parameters of the request are not read. Unlike
+   * for the work item updates, a lastUpdate at (or after) the latest revision is valid: it's the
+   * most common probe, a client that is up to date, which is answered with changed=false.
+   */
+  private void processChangesProbe(HttpServletRequest req, HttpServletResponse res)
+      throws IOException {
+    String lastUpdateStr = req.getParameter("lastUpdate");
+    if (lastUpdateStr != null && !validateRevisionNumberString(lastUpdateStr)) {
+      String msg = "Invalid revision number. Review the lastUpdate parameter.";
+      logger.error(msg);
+      res.sendError(HttpServletResponse.SC_BAD_REQUEST, msg);
+      return;
+    }
+    RequestContext context =
+        new RequestContext(
+            (String) req.getAttribute("project"),
+            (String) req.getAttribute("space"),
+            (String) req.getAttribute("document"),
+            lastUpdateStr == null ? 0 : Integer.parseInt(lastUpdateStr),
+            getLatestRevision(),
+            req.getParameterValues("includedWorkItemTypes"),
+            null,
+            null,
+            FieldProjection.of(null),
+            new KnownIdSet(),
+            false,
+            false);
+    try {
+      RequestContext validatedContext = validateParameters(context);
+      if (validatedContext == null) {
+        logger.error("Invalid combination of projectId/folderId/documentId");
+        res.sendError(HttpServletResponse.SC_NOT_FOUND, "The requested resource is not found");
+        return;
+      }
+      sendDocumentChanges(res, validatedContext);
+    } catch (PermissionDeniedException | AccessDeniedException accessDenied) {
+      logger.error("Access denied raised by Polarion", accessDenied);
+      sendErrorIfNotCommitted(res, HttpServletResponse.SC_FORBIDDEN);
+    }
+  }
+
+  /**
+   * Handles a batch request: the work item updates of several documents of the project, which share
+   * the inclusion parameters and endRevision of the request. Compared to a request per document,
+   * authentication and the link roles of the project are resolved once, the changed items of all
+   * documents are loaded with a single query, and the revisions of the union of the revision
+   * windows are prefetched at once. The result of each document is streamed as soon as it is
+   * processed (see {@link BatchResponseWriter}). All documents share the budget of the request:
+   * documents not (completely) processed within the budget get a partial response, which can be
+   * continued with a single document request.
+   */
+  private void processBatch(HttpServletRequest req, HttpServletResponse res, RequestBudget budget)
+      throws IOException {
+    final long timeBefore = System.currentTimeMillis();
+
+    BatchRequest batchRequest = readBatchRequest(req);
+    if (batchRequest == null || batchRequest.getDocuments() == null) {
+      String msg = "Invalid batch request body.";
+      logger.error(msg);
+      res.sendError(HttpServletResponse.SC_BAD_REQUEST, msg);
+      return;
+    }
+    boolean compactIdEncoding = IdSetEncoding.COMPACT.equals(req.getParameter("idEncoding"));
+
+    try {
+      List<BatchDocument> documents = new ArrayList<>();
+      List<RequestContext> validContexts = new ArrayList<>();
+      for (BatchRequest.DocumentEntry entry : batchRequest.getDocuments()) {
+        BatchDocument document = validateBatchDocument(req, entry, compactIdEncoding);
+        documents.add(document);
+        if (document.context != null) {
+          validContexts.add(document.context);
+        }
+      }
+      Map<String, IWorkItem> changedItemsByUri = loadChangedItems(validContexts);
+
+      long timeAfter = System.currentTimeMillis();
+      logger.debug(
+          "Finished batch validation and sql query. Execution time (ms): "
+              + (timeAfter - timeBefore));
+
+      res.setContentType(JsonResponseWriter.MEDIA_TYPE);
+      res.setCharacterEncoding(StandardCharsets.UTF_8.name());
+      res.setHeader("Vary", "Accept-Encoding");
+      ResponseBody body = new ResponseBody(req, res, COMPRESSION_LEVEL, true);
+      BatchResponseWriter writer =
+          new BatchResponseWriter(body.getOutputStream(), compactIdEncoding);
+      writer.begin();
+      for (BatchDocument document : documents) {
+        writeBatchDocument(writer, document, changedItemsByUri, budget);
+      }
+      writer.end();
+      body.finish();
+      logger.info("Successful batch response sent for " + documents.size() + " documents");
+    } catch (PermissionDeniedException | AccessDeniedException accessDenied) {
+      logger.error("Access denied raised by Polarion", accessDenied);
+      sendErrorIfNotCommitted(res, HttpServletResponse.SC_FORBIDDEN);
     }
   }
 
-  /** Returns null if an error occurs, otherwise returns a populated or empty string array */
-  private String[] readRequestBody(final HttpServletRequest request) throws IOException {
-    String[] knownIds = null;
-    StringBuilder jsonBody = new StringBuilder();
-    String line;
+  /** Returns null if the body is not a valid batch request. */
+  private BatchRequest readBatchRequest(HttpServletRequest request) {
+    String encoding = request.getCharacterEncoding();
+    try (Reader reader =
+        new InputStreamReader(
+            openRequestBody(request),
+            encoding == null ? StandardCharsets.UTF_8 : Charset.forName(encoding))) {
+      return new Gson().fromJson(reader, BatchRequest.class);
+    } catch (IOException | JsonParseException e) {
+      logger.error("Unable to read the batch request body", e);
+      return null;
+    }
+  }
+
+  /** Validates a document of a batch. The context of the returned document is null if invalid. */
+  private BatchDocument validateBatchDocument(
+      HttpServletRequest req, BatchRequest.DocumentEntry entry, boolean compactIdEncoding) {
+    if (entry.getSpace() == null || entry.getDocument() == null) {
+      return new BatchDocument(
+          entry, null, HttpServletResponse.SC_BAD_REQUEST, "Missing space or document.");
+    }
+    RequestContext context =
+        createRequestContext(
+            req,
+            entry.getSpace(),
+            entry.getDocument(),
+            entry.getLastUpdate() == null ? null : String.valueOf(entry.getLastUpdate()),
+            req.getParameter("endRevision"),
+            new KnownIdSet(),
+            compactIdEncoding);
+    if (context == null) {
+      return new BatchDocument(
+          entry,
+          null,
+          HttpServletResponse.SC_BAD_REQUEST,
+          "Invalid revision numbers. Review lastUpdate and endRevision parameters.");
+    }
+    RequestContext validatedContext = validateParameters(context);
+    if (validatedContext == null) {
+      return new BatchDocument(
+          entry, null, HttpServletResponse.SC_NOT_FOUND, "The requested resource is not found");
+    }
+    return new BatchDocument(entry, validatedContext, HttpServletResponse.SC_OK, null);
+  }
+
+  /**
+   * Loads the changed items of all documents with a single query (after prefetching the revisions
+   * of all revision windows) by their URI. The items are assigned to their documents by the URIs of
+   * the document items (stage 1), so their modules don't need to be resolved.
+   */
+  private Map<String, IWorkItem> loadChangedItems(List<RequestContext> contexts) {
+    Map<String, IWorkItem> changedItemsByUri = new HashMap<>();
+    if (contexts.isEmpty()) {
+      return changedItemsByUri;
+    }
+    IDataService dataService = trackerService.getDataService();
+    int minLastUpdate = contexts.stream().mapToInt(RequestContext::getLastUpdate).min().getAsInt();
+    // All contexts share the endRevision of the request
+    contexts.stream()
+        .map(context -> RevisionMetadataIndex.getRepositoryName(context.getModule()))
+        .distinct()
+        .forEach(
+            repositoryName ->
+                RevisionMetadataIndex.getInstance()
+                    .prefetch(
+                        dataService,
+                        repositoryName,
+                        minLastUpdate,
+                        contexts.get(0).getEndRevision()));
+    for (IWorkItem workItem : WorkItemQueryPlan.loadChangedItems(dataService, contexts)) {
+      changedItemsByUri.put(workItem.getUri().toString(), workItem);
+    }
+    return changedItemsByUri;
+  }
+
+  /**
+   * Processes a document of a batch and writes its result. Failures are reported as the status of
+   * the document, so the other documents are still processed.
+   */
+  private void writeBatchDocument(
+      BatchResponseWriter writer,
+      BatchDocument document,
+      Map<String, IWorkItem> changedItemsByUri,
+      RequestBudget budget)
+      throws IOException {
+    String space = document.entry.getSpace();
+    String documentId = document.entry.getDocument();
+    RequestContext context = document.context;
+    if (context == null) {
+      writer.writeError(space, documentId, document.status, document.message);
+      return;
+    }
     try {
-      BufferedReader reader = request.getReader();
-      line = reader.readLine();
-      while (line != null) {
-        jsonBody.append(line);
-        line = reader.readLine();
+      WorkItemUpdatesResult result = new WorkItemUpdatesResult();
+      // Stage 1, which also picks the items of the document from the changed items of the batch
+      List<IWorkItem> changedItems = new ArrayList<>();
+      for (IWorkItem workItem :
+          new WorkItemQueryPlan(context).listDocumentItems(trackerService.getDataService())) {
+        result.addValidItemId(workItem.getId());
+        IWorkItem changedItem = changedItemsByUri.get(workItem.getUri().toString());
+        if (changedItem != null) {
+          changedItems.add(changedItem);
+        }
       }
-    } catch (IOException e) {
-      return knownIds;
+      processChangedItems(context, result, changedItems, budget);
+      writer.writeDocument(space, documentId, buildResponse(context, result));
+    } catch (PermissionDeniedException | AccessDeniedException accessDenied) {
+      logger.error("Access denied raised by Polarion for document " + documentId, accessDenied);
+      writer.writeError(space, documentId, HttpServletResponse.SC_FORBIDDEN, "Forbidden");
+    } catch (ResourceException resourceException) {
+      logger.error(
+          "Failed to process histoy for WorkItem " + resourceException.getResource(),
+          resourceException);
+      writer.writeError(
+          space,
+          documentId,
+          HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+          "Failed to process the work item history");
     }
-    if (jsonBody.length() == 0) {
-      return new String[] {};
+  }
+
+  /** A document of a batch request with its validated context (null if it is invalid) */
+  private static class BatchDocument {
+
+    private final BatchRequest.DocumentEntry entry;
+
+    private final RequestContext context;
+
+    /** Http status of the document, the reason is given by the message if it's not 200 */
+    private final int status;
+
+    private final String message;
+
+    private BatchDocument(
+        BatchRequest.DocumentEntry entry, RequestContext context, int status, String message) {
+      this.entry = entry;
+      this.context = context;
+      this.status = status;
+      this.message = message;
+    }
+  }
+
+  /**
+   * Returns the current storage revision. If the endRevision of a request is before it, the
+   * response does not change with later changes in Polarion (see {@link ResponseETag}).
+   */
+  private int getLatestRevision() {
+    return Integer.parseInt(trackerService.getDataService().getLastStorageRevision().getName());
+  }
+
+  /**
+   * Queries the current state of the document for the ETag of an open revision window. Returns null
+   * if the document or its items changed after the given revision.
+   */
+  private String probeDocumentState(RequestContext context, int maxRevision) {
+    DocumentChanges changes =
+        new WorkItemQueryPlan(context)
+            .probeChanges(trackerService.getDataService(), context.getModule());
+    if (Integer.parseInt(changes.getDocumentRevision()) > maxRevision
+        || (changes.getMaxItemRevision() != null
+            && Integer.parseInt(changes.getMaxItemRevision()) > maxRevision)) {
+      return null;
+    }
+    return WorkItemQueryPlan.getDocumentState(changes);
+  }
+
+  /**
+   * Computes the ETag of the response for the representation (format and compression) the request
+   * negotiates. The document state is null for closed revision windows.
+   */
+  private String computeETag(HttpServletRequest req, RequestContext context, String documentState) {
+    String mediaType =
+        acceptsCbor(req.getHeader("Accept"))
+            ? CborResponseWriter.MEDIA_TYPE
+            : JsonResponseWriter.MEDIA_TYPE;
+    String representation =
+        mediaType + ";" + ContentEncoding.negotiate(req.getHeader("Accept-Encoding"));
+    return ResponseETag.compute(
+        context, String.valueOf(securityService.getCurrentUser()), representation, documentState);
+  }
+
+  /** Sets the headers of a complete response (or the 304 for it). The ETag may be null. */
+  private static void setCachingHeaders(HttpServletResponse res, String etag, boolean closedRange) {
+    if (etag != null) {
+      res.setHeader("ETag", etag);
+    }
+    res.setHeader(
+        "Cache-Control",
+        closedRange
+            ? ResponseETag.CLOSED_RANGE_CACHE_CONTROL
+            : ResponseETag.OPEN_RANGE_CACHE_CONTROL);
+    res.setHeader("Vary", "Accept, Accept-Encoding");
+  }
+
+  /**
+   * Once a streamed response has sent its first items, the status cannot be changed anymore. The
+   * stream then just ends without its trailer line, which tells the client it is incomplete.
+   */
+  private static void sendErrorIfNotCommitted(HttpServletResponse res, int status)
+      throws IOException {
+    if (!res.isCommitted()) {
+      res.sendError(status);
+    }
+  }
+
+  /**
+   * Returns null if an error occurs, otherwise returns the (possibly empty) set of ids known by the
+   * client. The body is either a json array of ids or, if the client uses the compact id encoding,
+   * a {@link CompactIdSet}. The body is parsed while it is read, so it's never held as one string.
+   * Throws an {@link IllegalArgumentException} if the ids are malformed or exceed the limits of the
+   * {@link KnownIdSet}.
+   */
+  private KnownIdSet readRequestBody(final HttpServletRequest request, boolean compactIdEncoding) {
+    String encoding = request.getCharacterEncoding();
+    try (Reader reader =
+        new InputStreamReader(
+            openRequestBody(request),
+            encoding == null ? StandardCharsets.UTF_8 : Charset.forName(encoding))) {
+      Gson gson = new Gson();
+      // Gson returns null for an empty body
+      if (compactIdEncoding) {
+        CompactIdSet compactIdSet = gson.fromJson(reader, CompactIdSet.class);
+        return compactIdSet == null ? new KnownIdSet() : IdSetEncoding.decode(compactIdSet);
+      }
+      String[] knownIds = gson.fromJson(reader, String[].class);
+      return knownIds == null ? new KnownIdSet() : KnownIdSet.of(knownIds);
+    } catch (IOException | JsonParseException e) {
+      logger.error("Unable to read the known ids from the request body", e);
+      return null;
     }
+  }
 
-    Gson gson = new Gson();
-    knownIds = gson.fromJson(jsonBody.toString(), String[].class);
-    return knownIds;
+  /** Opens the request body, decompressing it if it was sent compressed (gzip or deflate). */
+  private static InputStream openRequestBody(final HttpServletRequest request) throws IOException {
+    return ContentEncoding.decompress(
+        request.getInputStream(), request.getHeader("Content-Encoding"));
   }
 
   /**
@@ -194,123 +621,235 @@ public class WorkItemUpdatesServlet extends HttpServlet {
     doGet(req, resp);
   }
 
-  private boolean processRevisionNumbers(String lastUpdateStr, String endRevisionStr) {
+  /**
+   * Creates the context of the request out of its parameters. Returns null if the revision numbers
+   * are invalid. If the request continues a partial response, the revision numbers are taken from
+   * the continuation cursor (the lastUpdate and endRevision parameters are ignored).
+   */
+  private RequestContext createRequestContext(
+      HttpServletRequest req,
+      KnownIdSet clientKnownIds,
+      boolean compactIdEncoding,
+      ContinuationCursor cursor) {
+    String lastUpdateStr = req.getParameter("lastUpdate");
+    String endRevisionStr = req.getParameter("endRevision");
+    if (cursor != null) {
+      lastUpdateStr = String.valueOf(cursor.getLastUpdate());
+      endRevisionStr = String.valueOf(cursor.getEndRevision());
+    }
+    return createRequestContext(
+        req,
+        (String) req.getAttribute("space"),
+        (String) req.getAttribute("document"),
+        lastUpdateStr,
+        endRevisionStr,
+        clientKnownIds,
+        compactIdEncoding);
+  }
+
+  /**
+   * Creates the context for a document of the project of the request, with the inclusion parameters
+   * of the request. Returns null if the revision numbers are invalid. The included fields must have
+   * been validated already.
+   */
+  private RequestContext createRequestContext(
+      HttpServletRequest req,
+      String space,
+      String document,
+      String lastUpdateStr,
+      String endRevisionStr,
+      KnownIdSet clientKnownIds,
+      boolean compactIdEncoding) {
     if (lastUpdateStr == null) {
       lastUpdateStr = "0"; // process from beginning
     } else if (!validateRevisionNumberString(lastUpdateStr)) {
-      return false;
+      return null;
     }
-    lastUpdate = Integer.parseInt(lastUpdateStr);
+    int lastUpdate = Integer.parseInt(lastUpdateStr);
 
+    int endRevision;
     int latestRevInPolarion =
         Integer.valueOf(trackerService.getDataService().getLastStorageRevision().getName());
     if (endRevisionStr == null) {
       // process all the way to the latest by default if endRevision is not passed in
       endRevision = latestRevInPolarion;
     } else if (!validateRevisionNumberString(endRevisionStr)) {
-      return false;
+      return null;
     } else {
       // We don't take an endRevision that's greater than the latest in Polarion at the moment
       endRevision = Math.min(Integer.parseInt(endRevisionStr), latestRevInPolarion);
     }
 
-    return (lastUpdate < endRevision);
+    if (lastUpdate >= endRevision) {
+      return null;
+    }
+
+    return new RequestContext(
+        (String) req.getAttribute("project"),
+        space,
+        document,
+        lastUpdate,
+        endRevision,
+        req.getParameterValues("includedWorkItemTypes"),
+        req.getParameterValues("includedWorkItemCustomFields"),
+        req.getParameterValues("includedWorkItemLinkRoles"),
+        FieldProjection.of(req.getParameterValues("includedWorkItemFields")),
+        clientKnownIds,
+        compactIdEncoding,
+        SPARSE_PAYLOAD.equals(req.getParameter("payload")));
   }
 
-  private void sendResponse(HttpServletResponse resp, Collection<String> allValidItems)
-      throws ServletException, IOException {
+  /**
+   * Processes the work items and streams the response as json or CBOR: each item is written into
+   * the workItems array as soon as its history is processed, so the items are not kept in memory
+   * until the end of the request (see {@link JsonResponseWriter}), followed by the remaining
+   * fields.
+   *
+   * <p>The caching headers depend on whether the response is complete, which is only known once the
+   * items are processed. Until then, the response is marked as not cacheable. The headers of a
+   * complete response (and its ETag, which may have been computed before the processing) are only
+   * set if the response was not committed yet, i.e. if it fits into the buffers of the body. Larger
+   * responses are sent without ETag.
+   */
+  private void sendResponse(
+      HttpServletRequest req,
+      HttpServletResponse resp,
+      RequestContext context,
+      RequestBudget budget,
+      String etag,
+      int latestRevision)
+      throws ResourceException, IOException {
+
+    boolean cbor = acceptsCbor(req.getHeader("Accept"));
+    if (cbor) {
+      resp.setContentType(CborResponseWriter.MEDIA_TYPE);
+    } else {
+      resp.setContentType(JsonResponseWriter.MEDIA_TYPE);
+      resp.setCharacterEncoding(StandardCharsets.UTF_8.name());
+    }
+    // The response differs depending on the accepted format and compression
+    resp.setHeader("Vary", "Accept, Accept-Encoding");
+    resp.setHeader("Cache-Control", ResponseETag.PARTIAL_CACHE_CONTROL);
+
+    // The response is streamed rather than converted into a single json string first
+    ResponseBody body = new ResponseBody(req, resp, COMPRESSION_LEVEL, false);
+    JsonResponseWriter writer =
+        cbor
+            ? new CborResponseWriter(body.getOutputStream(), context.isCompactIdEncoding())
+            : new JsonResponseWriter(body.getOutputStream(), context.isCompactIdEncoding());
+    WorkItemUpdatesResult result =
+        retrieveChanges(context, new WorkItemUpdatesResult(writer), budget);
+
+    if (result.getResponseType() == ResponseType.COMPLETE && !resp.isCommitted()) {
+      boolean closedRange = context.getEndRevision() < latestRevision;
+      if (etag == null && closedRange) {
+        etag = computeETag(req, context, null);
+      } else if (etag == null) {
+        // Only if the document didn't change while the changes were processed
+        String documentState = probeDocumentState(context, latestRevision);
+        etag = documentState == null ? null : computeETag(req, context, documentState);
+      }
+      setCachingHeaders(resp, etag, closedRange);
+    }
 
-    final long timeBefore = System.currentTimeMillis();
+    writer.write(buildResponse(context, result));
+    body.finish();
+    PluginMetrics.getInstance().getSerializationTime().observe(writer.getWriteNanos());
+    logger.debug(
+        (cbor ? "CBOR" : "Json")
+            + " response sent. Serialization time (ms): "
+            + writer.getWriteNanos() / 1_000_000);
+  }
 
-    Gson gson = new Gson();
+  /**
+   * Processes the work items and sends each of them as NDJSON line as soon as its history is
+   * processed, followed by the trailer line (see {@link NdjsonResponseWriter}). The body is flushed
+   * after each item, also if it is compressed.
+   */
+  private void streamResponse(
+      HttpServletRequest req,
+      HttpServletResponse resp,
+      RequestContext context,
+      RequestBudget budget)
+      throws ResourceException, IOException {
+    resp.setContentType(NdjsonResponseWriter.MEDIA_TYPE);
+    resp.setCharacterEncoding(StandardCharsets.UTF_8.name());
+    resp.setHeader("Vary", "Accept, Accept-Encoding");
+
+    ResponseBody body = new ResponseBody(req, resp, COMPRESSION_LEVEL, true);
+    NdjsonResponseWriter writer =
+        new NdjsonResponseWriter(body.getOutputStream(), context.isCompactIdEncoding());
+    WorkItemUpdatesResult result =
+        retrieveChanges(context, new WorkItemUpdatesResult(writer), budget);
+    writer.write(buildResponse(context, result));
+    body.finish();
+  }
+
+  /**
+   * Answers the changes-since probe: whether the document changed after lastUpdate, without
+   * processing any history (see {@link WorkItemQueryPlan#probeChanges(IDataService, IModule)}).
+   */
+  private void sendDocumentChanges(HttpServletResponse resp, RequestContext context)
+      throws IOException {
+    final long timeBefore = System.currentTimeMillis();
+    DocumentChanges changes =
+        new WorkItemQueryPlan(context)
+            .probeChanges(trackerService.getDataService(), context.getModule());
+    resp.setContentType(JsonResponseWriter.MEDIA_TYPE);
+    resp.setCharacterEncoding(StandardCharsets.UTF_8.name());
+    resp.getWriter().write(new Gson().toJson(changes));
+    logger.debug(
+        "Changes probe sent. Execution time (ms): " + (System.currentTimeMillis() - timeBefore));
+  }
 
+  /** Builds the response from the collected result (without items if they were streamed). */
+  private static Response buildResponse(RequestContext context, WorkItemUpdatesResult result) {
+    PluginMetrics.getInstance().recordResponse(result.getResponseType());
     String endRevisionStr;
-    if (endRevision == Integer.MAX_VALUE) {
+    if (context.getEndRevision() == Integer.MAX_VALUE) {
       endRevisionStr = "HEAD";
     } else {
-      endRevisionStr = String.valueOf(endRevision);
+      endRevisionStr = String.valueOf(context.getEndRevision());
     }
-    if (responseType.equals(ResponseType.PARTIAL)) {
+    Collection<String> allValidItems = result.getAllValidItemIds();
+    if (result.getResponseType().equals(ResponseType.PARTIAL)) {
       // If it's a PARTIAL response then it doesn't make sense to send all item ids since the only
       // purpose for it is the diff check on the client. Client should only do this check after a
       // complete
       allValidItems = null;
     }
-    Response response =
-        new Response(
-            allValidItems,
-            allItemsToSend.keySet(),
-            allItemsToSend.values(),
-            responseType,
-            String.valueOf(lastUpdate + 1),
-            endRevisionStr);
-
-    String jsonResult = gson.toJson(response);
-    resp.setContentType("application/json");
-    PrintWriter out = resp.getWriter();
-    out.print(jsonResult);
-
-    long timeAfter = System.currentTimeMillis();
-    logger.debug(
-        " Json serialization and response sent. Execution time (ms): " + (timeAfter - timeBefore));
+    String continuationCursor = null;
+    if (result.getResponseType().equals(ResponseType.PARTIAL)) {
+      // The cursor pins endRevision, so the follow-up request covers the same revision window
+      continuationCursor =
+          new ContinuationCursor(
+                  context.getLastUpdate(),
+                  context.getEndRevision(),
+                  context.getParametersHash(),
+                  result.getLastProcessedItemId())
+              .encode();
+    }
+    return new Response(
+        allValidItems,
+        result.getItemsIdsProcessed(),
+        result.getItemsToSend(),
+        result.getResponseType(),
+        String.valueOf(context.getLastUpdate() + 1),
+        endRevisionStr,
+        continuationCursor);
   }
 
   /**
-   * Polarion does not provide a prepared statement or SQL query builder API. Therefore, to prevent
-   * SQL injection issues or any unexpected behavior, we check if the variables passed to this query
-   * are valid. See what we do in the following method: {@link
-   * WorkItemUpdatesServlet#validateParameters(String, String, String)}
-   *
-   * <p>Besides, Polarion internally maintains a configurable set of invalid SQL commands for
-   * security reasons. See the following answer posted in the community forum: Since Polarion 22R2,
-   * there is the system configuration property com.polarion.platform.sql.invalidCommands If you
-   * don't configure it, the SQL query is not executed if the query contains one of the following
-   * default commands: "ABORT_SESSION", "ARRAY_GET", "CARDINALITY", "ARRAY_CONTAINS", "ARRAY_CAT",
-   * "ARRAY_APPEND", "ARRAY_MAX_CARDINALITY", "TRIM_ARRAY", "ARRAY_SLICE", "AUTOCOMMIT",
-   * "CANCEL_SESSION", "CASEWHEN", "COALESCE", "CONVERT", "CURRVAL", "CSVWRITE", "CURRENT_SCHEMA",
-   * "CURRENT_CATALOG", "DATABASE_PATH", "DATA_TYPE_SQL", "DB_OBJECT_ID", "DB_OBJECT_SQL", "DECODE",
-   * "DISK_SPACE_USED", "SIGNAL", "ESTIMATED_ENVELOPE", "FILE_READ", "FILE_WRITE", "GREATEST",
-   * "LEAST", "LOCK_MODE", "LOCK_TIMEOUT", "MEMORY_FREE", "MEMORY_USED", "NEXTVAL", "NULLIF",
-   * "NVL2", "READONLY", "ROWNUM", "SESSION_ID", "SET", "TRANSACTION_ID", "TRUNCATE_VALUE",
-   * "CURRENT_PATH", "CURRENT_ROLE", "CURRENT_USER", "H2VERSION"
-   *
-   * <p>Link to the <a
-   * href="https://community.sw.siemens.com/s/question/0D54O000087hf0wSAA/validate-sql-queries-before-running-them">thread</a>
+   * CBOR is only sent if the client explicitly accepts it, at least with the same quality as json.
+   * Json stays the default (also for wildcards like * / *).
    */
-  private String buildSqlQuery(String projId, String spaceId, String docId) {
-
-    if (!validateParameters(projId, spaceId, docId)) {
-      return null;
-    }
-
-    StringBuilder sqlQuery = new StringBuilder("select * from WORKITEM WI ");
-    sqlQuery.append("inner join PROJECT P on WI.FK_URI_PROJECT = P.C_URI ");
-    sqlQuery.append("inner join MODULE M on WI.FK_URI_MODULE = M.C_URI ");
-    sqlQuery.append("where P.C_ID = '" + projId + "'");
-    sqlQuery.append(" and M.C_ID = '" + docId + "'");
-    sqlQuery.append(" and M.C_MODULEFOLDER = '" + spaceId + "'");
-    sqlQuery.append(generateWorkItemTypesAndClause());
-    // Note: We do not add a clause to select WIs after a given revision as we still
-    // want to return a list of all WIs for the client to do delete control logic.
-    return sqlQuery.toString();
-  }
-
-  /** If the return string is blank work items of all types will be included in the query. */
-  private String generateWorkItemTypesAndClause() {
-    StringBuilder andClause = new StringBuilder("");
-    if (workItemTypes != null && workItemTypes.length > 0) {
-      andClause.append(" and WI.C_TYPE in (");
-      for (int i = 0; i < workItemTypes.length; i++) {
-        if (workItemTypes[i] != null && !workItemTypes[i].isBlank()) {
-          andClause.append("'" + workItemTypes[i] + "',");
-        }
-      }
-      if (andClause.toString().endsWith(",")) {
-        andClause.deleteCharAt(andClause.length() - 1);
-      }
-      andClause.append(")");
+  private static boolean acceptsCbor(String accept) {
+    Double cborQuality = AcceptHeader.getQuality(accept, CborResponseWriter.MEDIA_TYPE);
+    if (cborQuality == null || cborQuality <= 0) {
+      return false;
     }
-    return andClause.toString();
+    Double jsonQuality = AcceptHeader.getQuality(accept, JsonResponseWriter.MEDIA_TYPE);
+    return jsonQuality == null || cborQuality >= jsonQuality;
   }
 
   /**
@@ -332,73 +871,271 @@ public class WorkItemUpdatesServlet extends HttpServlet {
   }
 
   /**
-   * This method runs the SQL query and starts processing all the work items returned from the
-   * query. Additionally, it returns all work item Ids that are valid in the database at the moment
-   * (after lastUpdate). That return will be used to pass this list of Ids to the response. *
+   * This method runs the SQL queries of the {@link WorkItemQueryPlan} and starts processing the
+   * changed work items returned from the query. Additionally, it collects all work item Ids that
+   * are valid in the database at the moment. That list will be used to pass these Ids to the
+   * response. The processed items are added to the given result (or passed on to its sink). If the
+   * {@link ChangeIndex} covers the revisions after lastUpdate, the changed items are taken from it
+   * instead of running the query of stage 2.
    */
-  private Collection<String> retrieveChanges(
-      String projId, String spaceId, String docId, String[] clientKnownIds)
-      throws ResourceException {
+  private WorkItemUpdatesResult retrieveChanges(
+      RequestContext context, WorkItemUpdatesResult result, RequestBudget budget)
+      throws ResourceException, IOException {
 
     final long timeBefore = System.currentTimeMillis();
 
-    String sqlQuery = buildSqlQuery(projId, spaceId, docId);
-
-    if (sqlQuery == null || sqlQuery.isEmpty()) {
-      return null;
-    }
+    WorkItemQueryPlan queryPlan = new WorkItemQueryPlan(context);
 
     IDataService dataService = trackerService.getDataService();
 
-    final List<String> allValidItemIdsLatest = new ArrayList<>();
+    // Stage 1: Ids of all items of the document, so the client can do the diff for deletions
+    IPObjectList<IWorkItem> documentItems = queryPlan.listDocumentItems(dataService);
+    for (IWorkItem workItem : documentItems) {
+      result.addValidItemId(workItem.getId());
+    }
 
-    IPObjectList<IWorkItem> workItems = dataService.sqlSearch(sqlQuery);
+    // Stage 2: Only items changed after lastUpdate are loaded for history processing
+    List<IWorkItem> changedItems = loadChangedItems(context, queryPlan, documentItems, dataService);
 
     long timeAfter = System.currentTimeMillis();
-    logger.debug("Finished sql query. Execution time (ms): " + (timeAfter - timeBefore));
+    logger.debug("Finished sql queries. Execution time (ms): " + (timeAfter - timeBefore));
 
-    WorkItemUpdatesCollector workItemUpdatesCollector =
-        new WorkItemUpdatesCollector(
-            lastUpdate, endRevision, includeCustomFields, includeLinkRoles);
+    processChangedItems(context, result, changedItems, budget);
+    return result;
+  }
+
+  /**
+   * Returns the items of the document that changed after lastUpdate, taken from the {@link
+   * ChangeIndex} if it covers the revisions after lastUpdate, and queried otherwise.
+   */
+  private static List<IWorkItem> loadChangedItems(
+      RequestContext context,
+      WorkItemQueryPlan queryPlan,
+      List<IWorkItem> documentItems,
+      IDataService dataService) {
+    if (!ChangeIndex.isEnabled()) {
+      return queryPlan.loadChangedItems(dataService);
+    }
+    int latestRevision = Integer.parseInt(dataService.getLastStorageRevision().getName());
+    Set<String> changedUris =
+        ChangeIndex.getInstance().getItemsChangedAfter(context.getLastUpdate(), latestRevision);
+    if (changedUris == null) {
+      return queryPlan.loadChangedItems(dataService);
+    }
+    List<IWorkItem> changedItems = new ArrayList<>();
+    for (IWorkItem workItem : documentItems) {
+      if (changedUris.contains(workItem.getUri().toString())) {
+        changedItems.add(workItem);
+      }
+    }
+    return changedItems;
+  }
+
+  /**
+   * Processes the changed items of a document in the background, so their history ends up in the
+   * caches. The processed items are dropped. Returns true if all changed items were processed.
+   */
+  private boolean precompute(RequestContext context, RequestBudget budget)
+      throws ResourceException, IOException {
+    RequestContext validatedContext = validateParameters(context);
+    if (validatedContext == null) {
+      logger.error("Precomputed document not found: " + context.getDocumentId());
+      return false;
+    }
+    WorkItemUpdatesResult result = new WorkItemUpdatesResult(workItem -> {});
+    return retrieveChanges(validatedContext, result, budget).getResponseType()
+        == ResponseType.COMPLETE;
+  }
 
-    boolean closing = false;
+  /**
+   * Processes the history of the changed items of a document (loaded by stage 2), except the ones
+   * known by the client or processed by previous partial responses, within the given budget. The
+   * changes of a complete response are appended to the {@link ChangeJournal} of the document.
+   */
+  private void processChangedItems(
+      RequestContext context,
+      WorkItemUpdatesResult result,
+      List<IWorkItem> changedItems,
+      RequestBudget budget)
+      throws ResourceException, IOException {
 
-    for (int i = 0; i < workItems.size() && !closing; i++) {
-      IWorkItem workItem = workItems.get(i);
+    final long timeBefore = System.currentTimeMillis();
+
+    IDataService dataService = trackerService.getDataService();
 
-      timeAfter = System.currentTimeMillis();
-      if ((timeAfter - timeBefore) >= TIME_THRESHOLD) {
-        closing = true;
-        responseType = ResponseType.PARTIAL;
+    JournalSession journalSession = ChangeJournal.getInstance().openSession(context, dataService);
+    WorkItemUpdatesCollector workItemUpdatesCollector =
+        new WorkItemUpdatesCollector(context, budget, journalSession);
+
+    // Items whose history needs to be processed, ordered by id. The order is stable across
+    // requests, so a partial response can be continued after its last processed item. Sorting is
+    // done here rather than in SQL, so the order does not depend on the database collation.
+    List<IWorkItem> itemsToProcess = new ArrayList<>();
+    PluginMetrics.getInstance().recordItemsScanned(changedItems.size());
+    String resumeAfterItemId = context.getResumeAfterItemId();
+
+    for (IWorkItem workItem : changedItems) {
+      String workItemId = workItem.getId();
+      // Skip items processed by previous partial responses and items in client's known list
+      if ((resumeAfterItemId == null || workItemId.compareTo(resumeAfterItemId) > 0)
+          && !context.isKnownByClient(workItemId)) {
+        itemsToProcess.add(workItem);
       }
+    }
+    itemsToProcess.sort(Comparator.comparing(IWorkItem::getId));
+
+    if (!itemsToProcess.isEmpty()) {
+      // One bulk query instead of a round trip per change (if the window is small enough)
+      RevisionMetadataIndex.getInstance()
+          .prefetch(
+              dataService,
+              RevisionMetadataIndex.getRepositoryName(context.getModule()),
+              context.getLastUpdate(),
+              context.getEndRevision());
+    }
 
-      // Only check history if workItem is not in client's known list and
-      // if there were changes after lastUpdate and if response is not closing
-      if (!closing
-          && Arrays.stream(clientKnownIds).noneMatch(workItem.getId()::equals)
-          && Integer.valueOf(workItem.getLastRevision()) > lastUpdate) {
+    processWorkItems(
+        context, result, itemsToProcess, workItemUpdatesCollector, dataService, budget);
 
-        WorkItemForJson workItemForJson;
+    if (journalSession != null && result.getResponseType() == ResponseType.COMPLETE) {
+      // All changed items of the document were processed, so the journal can be advanced
+      journalSession.commit();
+    }
 
-        // This is because WIs moved to the recycle bin are still in the Polarion WI table we query
-        if (wasMovedToRecycleBin(workItem) && shouldIncludeItemFromRecybleBin(workItem)) {
-          workItemForJson = buildDeletedWorkItemForJson(workItem);
-        } else {
-          workItemForJson = workItemUpdatesCollector.processHistory(workItem, dataService);
-        }
+    long timeAfter = System.currentTimeMillis();
+    logger.debug("Ended history processing. Execution time (ms): " + (timeAfter - timeBefore));
+    HistoryCache historyCache = HistoryCache.getInstance();
+    logger.debug("History cache snapshots: " + historyCache.getSnapshots().getStatistics());
+    logger.debug("History cache changes: " + historyCache.getChanges().getStatistics());
+    logger.debug("Revision metadata index: " + RevisionMetadataIndex.getInstance().getStatistics());
+    if (ChangeIndex.isEnabled()) {
+      logger.debug("Change index: " + ChangeIndex.getInstance().getStatistics());
+    }
+  }
+
+  /**
+   * Processes the work items on the {@link HistoryProcessingPool}. Items are submitted in order and
+   * their results are merged in that same order, so the response does not depend on which worker
+   * finishes first. At most {@link HistoryProcessingPool#getParallelism()} items of this request
+   * are in flight at a time. Once the budget doesn't allow another item, no further items are
+   * submitted and the response becomes partial. The items already submitted are still awaited, so
+   * the processed items are always the leading items of the list (and only fully processed items
+   * are sent). If an item is aborted because the deadline passed, the items after it are dropped.
+   * Background precomputations wait before each item until the {@link BackgroundThrottle} lets them
+   * continue.
+   */
+  private void processWorkItems(
+      RequestContext context,
+      WorkItemUpdatesResult result,
+      List<IWorkItem> workItems,
+      WorkItemUpdatesCollector workItemUpdatesCollector,
+      IDataService dataService,
+      RequestBudget budget)
+      throws ResourceException, IOException {
+
+    HistoryProcessingPool pool = HistoryProcessingPool.getInstance();
+    PluginMetrics.RequestAllocations allocations = PluginMetrics.currentRequest();
+    Deque<Future<WorkItemForJson>> inFlight = new ArrayDeque<>();
+    int next = 0;
+    int merged = 0;
 
+    try {
+      while (next < workItems.size() || !inFlight.isEmpty()) {
+        while (next < workItems.size()
+            && inFlight.size() < pool.getParallelism()
+            && result.getResponseType() == ResponseType.COMPLETE) {
+          if (!budget.awaitTurn() || !budget.canStartItem(inFlight.size(), pool.getParallelism())) {
+            result.setResponseType(ResponseType.PARTIAL);
+          } else {
+            IWorkItem workItem = workItems.get(next++);
+            inFlight.add(
+                pool.submit(
+                    () ->
+                        processWorkItem(
+                            context,
+                            workItem,
+                            workItemUpdatesCollector,
+                            dataService,
+                            budget,
+                            allocations)));
+          }
+        }
+        if (inFlight.isEmpty()) {
+          // Closing a partial response, nothing left to merge
+          break;
+        }
+        WorkItemForJson workItemForJson;
+        try {
+          workItemForJson = awaitResult(inFlight.poll());
+        } catch (RequestBudget.ExhaustedException exhausted) {
+          // The item and the ones submitted after it are not part of the response
+          result.setResponseType(ResponseType.PARTIAL);
+          break;
+        }
+        budget.recordItem(workItemForJson);
         if (workItemForJson != null) {
-          allItemsToSend.put(workItem.getId(), workItemForJson);
+          result.addItemToSend(workItemForJson);
         }
+        // Results are merged in submission order, so this is the item the future belongs to
+        result.setLastProcessedItemId(workItems.get(merged++).getId());
+        PluginMetrics.getInstance().recordItemProcessed();
       }
-      // Regardless, add item to the response so the client can do the diff to check for deletions
-      allValidItemIdsLatest.add(workItem.getId());
+    } finally {
+      // Only non-empty if processing failed. The results of these items are not needed anymore.
+      inFlight.forEach(future -> future.cancel(false));
     }
+  }
 
-    timeAfter = System.currentTimeMillis();
-    logger.debug("Ended history processing. Execution time (ms): " + (timeAfter - timeBefore));
+  /**
+   * Processes a single work item and records its processing time in the budget (and the bytes it
+   * allocated on a worker in the allocations of the request, if measured). This runs on a worker
+   * thread of the pool.
+   */
+  private WorkItemForJson processWorkItem(
+      RequestContext context,
+      IWorkItem workItem,
+      WorkItemUpdatesCollector workItemUpdatesCollector,
+      IDataService dataService,
+      RequestBudget budget,
+      PluginMetrics.RequestAllocations allocations)
+      throws ResourceException {
+    long start = System.nanoTime();
+    long allocatedBefore = allocations == null ? -1 : allocations.workerStarted();
+    try {
+      // This is because WIs moved to the recycle bin are still in the Polarion WI table we query
+      if (wasMovedToRecycleBin(context, workItem)
+          && shouldIncludeItemFromRecybleBin(context, workItem)) {
+        return buildDeletedWorkItemForJson(workItem);
+      }
+      return workItemUpdatesCollector.processHistory(workItem, dataService);
+    } finally {
+      budget.recordProcessingTime(System.nanoTime() - start);
+      if (allocations != null) {
+        allocations.workerFinished(allocatedBefore);
+      }
+    }
+  }
 
-    return allValidItemIdsLatest;
+  /** Waits for the result of a work item and rethrows the failure the work item processing had. */
+  private static WorkItemForJson awaitResult(Future<WorkItemForJson> future)
+      throws ResourceException {
+    try {
+      return future.get();
+    } catch (InterruptedException interruptedException) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(
+          "Interrupted while waiting for work item history processing", interruptedException);
+    } catch (ExecutionException executionException) {
+      Throwable cause = executionException.getCause();
+      if (cause instanceof ResourceException) {
+        throw (ResourceException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
   }
 
   /**
@@ -406,18 +1143,19 @@ public class WorkItemUpdatesServlet extends HttpServlet {
    * they're still related to the module. However, the following API method excludes them and
    * consider them as items NOT contained in the module. *
    */
-  private boolean wasMovedToRecycleBin(IWorkItem workItem) {
-    return !module.containsWorkItem(workItem);
+  private boolean wasMovedToRecycleBin(RequestContext context, IWorkItem workItem) {
+    return !context.getModule().containsWorkItem(workItem);
   }
 
   /**
    * Not all items in the recycle bin are supposed to be included in the response. It'll depend on
    * the request lastUpdate revision and endRevision parameters. *
    */
-  private boolean shouldIncludeItemFromRecybleBin(IWorkItem workItem) {
+  private boolean shouldIncludeItemFromRecybleBin(RequestContext context, IWorkItem workItem) {
     Integer workItemLastRevision = Integer.parseInt(workItem.getLastRevision());
 
-    return (workItemLastRevision > lastUpdate && workItemLastRevision <= endRevision);
+    return (workItemLastRevision > context.getLastUpdate()
+        && workItemLastRevision <= context.getEndRevision());
   }
 
   /** Create the work item object as DELETED */
@@ -435,16 +1173,31 @@ public class WorkItemUpdatesServlet extends HttpServlet {
 
   /**
    * This method validates the required request path attributes plus the optional includedLinkRoles
-   * query parameter.
+   * query parameter. Returns the validated context (with the resolved module and the valid link
+   * roles) or null if the parameters are not valid.
    */
-  private boolean validateParameters(String projectId, String space, String doc) {
+  private RequestContext validateParameters(RequestContext context) {
     // Needs to be executed in this order. Space validation only runs after projectId is validated.
     // DocId is validated only if projectId and SpaceId are validated.
     // And linkRoles are validated only after document is valid (module is defined).
-    return validateProjectId(projectId)
-        && validateSpaceId(projectId, space)
-        && validateDocumentId(projectId, space, doc)
-        && validateLinkRoles();
+    // Validated parameters are cached until the next change in Polarion (storage revision).
+    String projectId = context.getProjectId();
+    String space = context.getSpaceId();
+    String documentId = context.getDocumentId();
+    String storageRevision = trackerService.getDataService().getLastStorageRevision().getName();
+    MetadataCache metadataCache = MetadataCache.getInstance();
+    IModule module = metadataCache.getModule(storageRevision, projectId, space, documentId);
+    if (module == null) {
+      if (!validateProjectId(projectId) || !validateSpaceId(projectId, space)) {
+        return null;
+      }
+      module = validateDocumentId(projectId, space, documentId);
+      if (module == null) {
+        return null;
+      }
+      metadataCache.putModule(storageRevision, projectId, space, documentId, module);
+    }
+    return validateLinkRoles(context.withModule(module), storageRevision);
   }
 
   private boolean validateProjectId(String projectId) {
@@ -470,8 +1223,11 @@ public class WorkItemUpdatesServlet extends HttpServlet {
     return false;
   }
 
-  /** This helper method should be called after validating the space (aka folder) */
-  private boolean validateDocumentId(String projId, String space, String docId) {
+  /**
+   * This helper method should be called after validating the space (aka folder). Returns the
+   * document (module) or null if it does not exist.
+   */
+  private IModule validateDocumentId(String projId, String space, String docId) {
     // Haven't found in the Polarion Java API a straightforward way to validate a docId.
     // That's why the current solution has to select all documents in the given
     // valid space (folder) then loops through the documents to validate the given docId
@@ -488,27 +1244,57 @@ public class WorkItemUpdatesServlet extends HttpServlet {
     IPObjectList<IModule> modules = dataService.sqlSearch(query);
     for (IModule module : modules) {
       if (module.getId().equals(docId)) {
-        this.module = module;
         logger.debug("Attempting to read document: " + docId);
-        return true;
+        return module;
       }
     }
     logger.error("Not possible to find document with id: " + docId);
-    return false;
+    return null;
   }
 
-  private boolean validateLinkRoles() {
+  /**
+   * Returns the context with only the valid link roles (or none if none of them is valid), or null
+   * if the link roles cannot be validated.
+   */
+  private RequestContext validateLinkRoles(RequestContext context, String storageRevision) {
+    String[] includeLinkRoles = context.getIncludeLinkRoles();
     if (includeLinkRoles == null) {
       // an empty list of linkRoles is valid.
-      return true;
+      return context;
     }
 
+    IModule module = context.getModule();
     if (module == null) {
       logger.error(
           "Unable to retrieve list of workitem link roles because module is still undefined");
-      return false;
+      return null;
+    }
+
+    MetadataCache metadataCache = MetadataCache.getInstance();
+    Set<String> allLinkRolesStrSet = metadataCache.getLinkRoleNames(storageRevision, module);
+    if (allLinkRolesStrSet == null) {
+      allLinkRolesStrSet = loadLinkRoleNames(module);
+      if (allLinkRolesStrSet == null) {
+        return null;
+      }
+      metadataCache.putLinkRoleNames(storageRevision, module, allLinkRolesStrSet);
+    }
+    Set<String> validLinkRoles = allLinkRolesStrSet;
+    String[] newLinkRolesList =
+        Arrays.asList(includeLinkRoles).stream()
+            .filter(linkRole -> validLinkRoles.contains(linkRole))
+            .toArray(String[]::new);
+    if (newLinkRolesList.length > 0) {
+      return context.withIncludeLinkRoles(newLinkRolesList);
     }
+    return context.withIncludeLinkRoles(null);
+  }
 
+  /**
+   * Returns the names (and opposite names) of the link roles of the project of the document, or
+   * null if they cannot be loaded.
+   */
+  private Set<String> loadLinkRoleNames(IModule module) {
     IEnumeration linkRolesEnum;
     try {
       // This Polarion method getEnumerationForEnumId returns an unparameterized IEnumeration
@@ -521,18 +1307,18 @@ public class WorkItemUpdatesServlet extends HttpServlet {
                   module.getContextId());
     } catch (ClassCastException classCastException) {
       logger.error("Unable to retrieve list of workitem link roles", classCastException);
-      return false;
+      return null;
     }
 
     if (linkRolesEnum == null) {
       logger.error("Unable to retrieve list of workitem link roles");
-      return false;
+      return null;
     }
 
     List<IEnumOption> allLinkRoles = linkRolesEnum.getAllOptions();
     if (allLinkRoles == null || allLinkRoles.isEmpty()) {
       // if there aren't link roles set up then we cannot validate the requested linkRoles
-      return false;
+      return null;
     }
     Set<String> allLinkRolesStrSet = new HashSet<String>();
     allLinkRoles.stream()
@@ -544,15 +1330,7 @@ public class WorkItemUpdatesServlet extends HttpServlet {
                 allLinkRolesStrSet.add(oppositeName);
               }
             });
-    String[] newLinkRolesList =
-        Arrays.asList(includeLinkRoles).stream()
-            .filter(linkRole -> allLinkRolesStrSet.contains(linkRole))
-            .toArray(String[]::new);
-    if (newLinkRolesList.length > 0) {
-      includeLinkRoles = newLinkRolesList;
-    } else {
-      includeLinkRoles = null;
-    }
-    return true;
+    // Shared by the requests through the cache, so it must not be modified anymore
+    return Collections.unmodifiableSet(allLinkRolesStrSet);
   }
 }
@@ -0,0 +1,111 @@
+package com.teamscale.polarion.plugin.client;
+
+import com.teamscale.polarion.plugin.CborResponseWriter;
+import com.teamscale.polarion.plugin.JsonResponseWriter;
+import com.teamscale.polarion.plugin.ResponseWriter;
+import com.teamscale.polarion.plugin.model.Response;
+import com.teamscale.polarion.plugin.model.ResponseType;
+import com.teamscale.polarion.plugin.model.UpdateType;
+import com.teamscale.polarion.plugin.model.WorkItemChange;
+import com.teamscale.polarion.plugin.model.WorkItemFieldDiff;
+import com.teamscale.polarion.plugin.model.WorkItemForJson;
+import com.teamscale.polarion.plugin.utils.MeteredOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares size and serialization throughput of the json and the CBOR response encoding on a
+ * synthetic large document. Like the {@link PluginClient}, this is for development purposes only
+ * and not part of the plugin jar.
+ *
+ * <p>Usage: ResponseEncodingComparison [number of work items] (default: 50000)
+ */
+public class ResponseEncodingComparison {
+
+  private static final int RUNS = 5;
+
+  public static void main(String[] args) throws IOException {
+    int itemCount = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+    Response response = createSyntheticResponse(itemCount);
+
+    System.out.println("Synthetic document with " + itemCount + " work items");
+    // The first round warms up the JIT, only the second one is reported
+    for (int round = 0; round < 2; round++) {
+      measure("json", response, round == 1, false);
+      measure("cbor", response, round == 1, true);
+    }
+  }
+
+  private static void measure(String name, Response response, boolean report, boolean cbor)
+      throws IOException {
+    long bytes = 0;
+    long nanos = 0;
+    for (int run = 0; run < RUNS; run++) {
+      MeteredOutputStream out = new MeteredOutputStream(OutputStream.nullOutputStream());
+      ResponseWriter writer =
+          cbor ? new CborResponseWriter(out, false) : new JsonResponseWriter(out, false);
+      long start = System.nanoTime();
+      writer.write(response);
+      nanos += System.nanoTime() - start;
+      bytes = out.getByteCount();
+    }
+    if (report) {
+      double seconds = nanos / 1e9 / RUNS;
+      System.out.printf(
+          "%s: %d bytes, %.1f ms per response, %.1f MB/s, %.0f items/s%n",
+          name,
+          bytes,
+          seconds * 1000,
+          bytes / seconds / 1024 / 1024,
+          response.getWorkItems().size() / seconds);
+    }
+  }
+
+  /** Work items roughly shaped like the ones of a requirements document, with 5 changes each */
+  private static Response createSyntheticResponse(int itemCount) {
+    List<String> ids = new ArrayList<>();
+    List<WorkItemForJson> workItems = new ArrayList<>();
+    for (int i = 1; i <= itemCount; i++) {
+      String id = "EL-" + i;
+      ids.add(id);
+      WorkItemForJson workItem =
+          new WorkItemForJson(
+              id, "subterra:data-service:objects:/default/elibrary${WorkItem}" + id);
+      workItem.setUpdateType(UpdateType.UPDATED);
+      workItem.setRevision(String.valueOf(1000 + i));
+      workItem.setTitle("Requirement " + i + " of the synthetic document");
+      workItem.setDescription(
+          "<p>The system shall handle the case number " + i + " within 200 ms.</p>");
+      workItem.setCreated("2023-01-01T10:00:00Z");
+      workItem.setUpdated("2023-06-01T10:00:00Z");
+      workItem.setStatus("approved");
+      workItem.setType("requirement");
+      workItem.setSeverity("must_have");
+      workItem.setModuleId("Requirements Specification");
+      workItem.setModuleTitle("Requirements Specification");
+      workItem.setModuleFolder("Specification");
+      workItem.setProjectId("elibrary");
+      workItem.setAuthor("admin");
+      workItem.setAssignees(List.of("admin", "reviewer"));
+      Map<String, Object> customFields = new HashMap<>();
+      customFields.put("testType", "automated");
+      customFields.put("riskLevel", "high");
+      workItem.setCustomFields(customFields);
+      List<WorkItemChange> changes = new ArrayList<>();
+      for (int change = 1; change <= 5; change++) {
+        List<WorkItemFieldDiff> fieldChanges = new ArrayList<>();
+        fieldChanges.add(new WorkItemFieldDiff("status", "draft", "approved"));
+        fieldChanges.add(
+            new WorkItemFieldDiff("title", "Requirement " + i, "Requirement " + i + " (v2)"));
+        changes.add(new WorkItemChange(String.valueOf(1000 + i + change), fieldChanges, "admin"));
+      }
+      workItem.setWorkItemChanges(changes);
+      workItems.add(workItem);
+    }
+    return new Response(ids, ids, workItems, ResponseType.COMPLETE, "1", "HEAD", null);
+  }
+}
@@ -0,0 +1,45 @@
+package com.teamscale.polarion.plugin.model;
+
+import java.util.List;
+
+/**
+ * Body of a batch request: the documents (of the project in the request path) to retrieve the work
+ * item updates of. For example:
+ *
+ * <pre>{"documents": [{"space": "Specification", "document": "Requirements", "lastUpdate": 120}]}
+ * </pre>
+ *
+ * The inclusion parameters (types, custom fields, link roles, fields) and endRevision are request
+ * parameters shared by all documents.
+ */
+public class BatchRequest {
+
+  private List<DocumentEntry> documents;
+
+  public List<DocumentEntry> getDocuments() {
+    return documents;
+  }
+
+  /** A document of the batch and the last revision the client retrieved for it */
+  public static class DocumentEntry {
+
+    private String space;
+
+    private String document;
+
+    /** Null is the same as 0 (all updates) */
+    private Integer lastUpdate;
+
+    public String getSpace() {
+      return space;
+    }
+
+    public String getDocument() {
+      return document;
+    }
+
+    public Integer getLastUpdate() {
+      return lastUpdate;
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package com.teamscale.polarion.plugin.model;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact json representation of a set of work item ids. Polarion ids typically consist of a
+ * project prefix plus a number (e.g., EL-1234), so ids are grouped by prefix and their numbers are
+ * run-length encoded as ranges. For example, the ids EL-1, EL-2, EL-3, EL-7 and MyId are
+ * represented as:
+ *
+ * <pre>{"ranges": {"EL-": [1, 3, 7, 7]}, "ids": ["MyId"]}</pre>
+ *
+ * Ids that do not follow the prefix-number pattern (or whose number has leading zeros) are listed
+ * as they are.
+ */
+public class CompactIdSet {
+
+  /**
+   * Per id prefix, the numbers as flat list of inclusive ranges: [first1, last1, first2, last2,
+   * ...]
+   */
+  private final Map<String, int[]> ranges;
+
+  /** Ids that cannot be represented as prefix plus number */
+  private final List<String> ids;
+
+  public CompactIdSet(Map<String, int[]> ranges, List<String> ids) {
+    this.ranges = ranges;
+    this.ids = ids;
+  }
+
+  public Map<String, int[]> getRanges() {
+    return ranges;
+  }
+
+  public List<String> getIds() {
+    return ids;
+  }
+}
@@ -0,0 +1,48 @@
+package com.teamscale.polarion.plugin.model;
+
+/**
+ * Response of the changes-since probe: a cheap summary of the current state of a document, which
+ * tells the client whether requesting the work item updates is worth it.
+ */
+public class DocumentChanges {
+
+  /**
+   * True if any of the (requested) work items of the document changed after lastUpdate, i.e. a
+   * work-item-updates request for the same lastUpdate would have items. Edits of the document
+   * itself don't count. Items removed from the document don't either, they show in the item count.
+   */
+  private final boolean changed;
+
+  /** Number of (requested) work items in the document */
+  private final int itemCount;
+
+  /** Latest revision any of the (requested) work items changed in. Null if there are no items. */
+  private final String maxItemRevision;
+
+  /** Last revision of the document itself, which changes when items are added, moved or removed */
+  private final String documentRevision;
+
+  public DocumentChanges(
+      boolean changed, int itemCount, String maxItemRevision, String documentRevision) {
+    this.changed = changed;
+    this.itemCount = itemCount;
+    this.maxItemRevision = maxItemRevision;
+    this.documentRevision = documentRevision;
+  }
+
+  public boolean isChanged() {
+    return changed;
+  }
+
+  public int getItemCount() {
+    return itemCount;
+  }
+
+  public String getMaxItemRevision() {
+    return maxItemRevision;
+  }
+
+  public String getDocumentRevision() {
+    return documentRevision;
+  }
+}
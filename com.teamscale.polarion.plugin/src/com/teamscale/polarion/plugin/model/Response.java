@@ -21,6 +21,12 @@ public class Response {
 
   private final String toRevision;
 
+  /**
+   * Only present in partial responses. Passing it back (request parameter continuationCursor) makes
+   * the next request resume right after the items processed in this response.
+   */
+  private final String continuationCursor;
+
   /** All items that have changed in the proj/folder/doc given (lastUpdate, endRevision] */
   private final Collection<WorkItemForJson> workItems;
 
@@ -38,13 +44,15 @@ public class Response {
       Collection<WorkItemForJson> workItems,
       ResponseType responseType,
       String fromRevision,
-      String toRevision) {
+      String toRevision,
+      String continuationCursor) {
     this.allItemsIds = allItemsIds;
     this.itemsIdsProcessed = itemsIdsProcessed;
     this.workItems = workItems;
     this.responseType = responseType;
     this.fromRevision = fromRevision;
     this.toRevision = toRevision;
+    this.continuationCursor = continuationCursor;
   }
 
   public Collection<String> getAllItemsIds() {
@@ -70,4 +78,8 @@ public class Response {
   public String getToRevision() {
     return toRevision;
   }
+
+  public String getContinuationCursor() {
+    return continuationCursor;
+  }
 }
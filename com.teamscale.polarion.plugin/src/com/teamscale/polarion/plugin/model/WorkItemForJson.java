@@ -60,6 +60,48 @@ public class WorkItemForJson {
     this.updateType = updateType;
   }
 
+  /**
+   * Shallow copy of the given work item, without its work item changes. The field values (including
+   * collections) are shared with the original, so they must not be modified afterwards.
+   */
+  public WorkItemForJson(WorkItemForJson other) {
+    this.id = other.id;
+    this.uri = other.uri;
+    this.updateType = other.updateType;
+    this.revision = other.revision;
+    this.description = other.description;
+    this.created = other.created;
+    this.dueDate = other.dueDate;
+    this.hyperLinks = other.hyperLinks;
+    this.initialEstimate = other.initialEstimate;
+    this.outlineNumber = other.outlineNumber;
+    this.plannedEnd = other.plannedEnd;
+    this.plannedStart = other.plannedStart;
+    this.plannedIn = other.plannedIn;
+    this.priority = other.priority;
+    this.remainingEstimate = other.remainingEstimate;
+    this.resolution = other.resolution;
+    this.resolvedOn = other.resolvedOn;
+    this.severity = other.severity;
+    this.status = other.status;
+    this.timeSpent = other.timeSpent;
+    this.title = other.title;
+    this.type = other.type;
+    this.updated = other.updated;
+    this.moduleId = other.moduleId;
+    this.moduleTitle = other.moduleTitle;
+    this.moduleFolder = other.moduleFolder;
+    this.projectId = other.projectId;
+    this.customFields = other.customFields;
+    this.assignees = other.assignees;
+    this.attachments = other.attachments;
+    this.author = other.author;
+    this.categories = other.categories;
+    this.comments = other.comments;
+    this.linkedWorkItems = other.linkedWorkItems;
+    this.watchers = other.watchers;
+  }
+
   public String getId() {
     return id;
   }
@@ -0,0 +1,39 @@
+package com.teamscale.polarion.plugin.utils;
+
+/**
+ * Parses http headers that list values with optional quality weights, like Accept or
+ * Accept-Encoding (e.g., "gzip;q=0.8, deflate").
+ */
+public class AcceptHeader {
+
+  /**
+   * Returns the quality (0-1) the header assigns to the given value (compared case-insensitively,
+   * without wildcard matching), or null if the value is not listed in the header.
+   */
+  public static Double getQuality(String header, String value) {
+    if (header == null) {
+      return null;
+    }
+    for (String element : header.split(",")) {
+      String[] parts = element.split(";");
+      if (value.equalsIgnoreCase(parts[0].trim())) {
+        return parseQuality(parts);
+      }
+    }
+    return null;
+  }
+
+  private static double parseQuality(String[] parameters) {
+    for (int i = 1; i < parameters.length; i++) {
+      String parameter = parameters[i].trim();
+      if (parameter.startsWith("q=")) {
+        try {
+          return Double.parseDouble(parameter.substring(2));
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
+  }
+}
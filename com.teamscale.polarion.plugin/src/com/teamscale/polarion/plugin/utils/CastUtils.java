@@ -36,10 +36,14 @@ public class CastUtils {
 
   /**
    * Takes a Polarion work item object and converts to a model object that will be further
-   * serialized into json.
+   * serialized into json. If the document (module) of the work item is already known, it can be
+   * passed along, so it is not resolved again for each work item. Otherwise, it can be null. Only
+   * the standard fields of the given projection are read from the work item.
    */
   public static WorkItemForJson castWorkItem(
       IWorkItem workItem,
+      IModule document,
+      FieldProjection fields,
       String[] includeCustomFields,
       String[] includeLinkRoles,
       Map<String, ILinkRoleOpt> linkNamesMap,
@@ -48,79 +52,93 @@ public class CastUtils {
     WorkItemForJson workItemForJson =
         new WorkItemForJson(workItem.getId(), workItem.getUri().toString(), updateType);
 
-    if (workItem.getRevision() != null) {
+    if (fields.includes("revision") && workItem.getRevision() != null) {
       workItemForJson.setRevision(workItem.getRevision());
     }
-    if (workItem.getDescription() != null) {
+    if (fields.includes("description") && workItem.getDescription() != null) {
       workItemForJson.setDescription(workItem.getDescription().getContent());
     }
-    if (workItem.getCreated() != null) {
+    if (fields.includes("created") && workItem.getCreated() != null) {
       workItemForJson.setCreated(workItem.getCreated().toInstant().toString());
     }
-    if (workItem.getDueDate() != null) {
+    if (fields.includes("dueDate") && workItem.getDueDate() != null) {
       workItemForJson.setDueDate(workItem.getDueDate().getDate().toInstant().toString());
     }
-    if (workItem.getInitialEstimate() != null) {
+    if (fields.includes("initialEstimate") && workItem.getInitialEstimate() != null) {
       workItemForJson.setInitialEstimate(workItem.getInitialEstimate().toString());
     }
-    if (workItem.getOutlineNumber() != null) {
+    if (fields.includes("outlineNumber") && workItem.getOutlineNumber() != null) {
       workItemForJson.setOutlineNumber(workItem.getOutlineNumber());
     }
-    if (workItem.getPlannedEnd() != null) {
+    if (fields.includes("plannedEnd") && workItem.getPlannedEnd() != null) {
       workItemForJson.setPlannedEnd(workItem.getPlannedEnd().toInstant().toString());
     }
-    if (workItem.getPlannedStart() != null) {
+    if (fields.includes("plannedStart") && workItem.getPlannedStart() != null) {
       workItemForJson.setPlannedStart(workItem.getPlannedStart().toInstant().toString());
     }
-    if (workItem.getPlannedIn() != null && !workItem.getPlannedIn().isEmpty()) {
+    if (fields.includes("plannedIn")
+        && workItem.getPlannedIn() != null
+        && !workItem.getPlannedIn().isEmpty()) {
       workItemForJson.setPlannedIn(
           workItem.getPlannedIn().stream()
               .map(plan -> plan.getId())
               .toArray(size -> new String[size]));
     }
-    if (workItem.getPriority() != null) {
+    if (fields.includes("priority") && workItem.getPriority() != null) {
       workItemForJson.setPriority(workItem.getPriority().getName());
     }
-    if (workItem.getRemainingEstimate() != null) {
+    if (fields.includes("remainingEstimate") && workItem.getRemainingEstimate() != null) {
       workItemForJson.setRemainingEstimate(workItem.getRemainingEstimate().toString());
     }
-    if (workItem.getResolution() != null) {
+    if (fields.includes("resolution") && workItem.getResolution() != null) {
       workItemForJson.setResolution(workItem.getResolution().getId());
     }
-    if (workItem.getResolvedOn() != null) {
+    if (fields.includes("resolvedOn") && workItem.getResolvedOn() != null) {
       workItemForJson.setResolvedOn(workItem.getResolvedOn().toInstant().toString());
     }
-    if (workItem.getSeverity() != null) {
+    if (fields.includes("severity") && workItem.getSeverity() != null) {
       workItemForJson.setSeverity(workItem.getSeverity().getId());
     }
-    if (workItem.getStatus() != null) {
+    if (fields.includes("status") && workItem.getStatus() != null) {
       workItemForJson.setStatus(workItem.getStatus().getId());
     }
-    if (workItem.getTimeSpent() != null) {
+    if (fields.includes("timeSpent") && workItem.getTimeSpent() != null) {
       workItemForJson.setTimeSpent(workItem.getTimeSpent().toString());
     }
-    if (workItem.getTitle() != null) {
+    if (fields.includes("title") && workItem.getTitle() != null) {
       workItemForJson.setTitle(workItem.getTitle());
     }
-    if (workItem.getType() != null) {
+    if (fields.includes("type") && workItem.getType() != null) {
       workItemForJson.setType(workItem.getType().getId());
     }
-    if (workItem.getUpdated() != null) {
+    if (fields.includes("updated") && workItem.getUpdated() != null) {
       workItemForJson.setUpdated(workItem.getUpdated().toInstant().toString());
     }
-    if (workItem.getModule() != null) {
-      IModule module = workItem.getModule();
-      workItemForJson.setModuleId(module.getId());
-      workItemForJson.setModuleTitle(module.getTitleOrName());
-      workItemForJson.setModuleFolder(module.getModuleFolder());
+    if (fields.includes("moduleId")
+        || fields.includes("moduleTitle")
+        || fields.includes("moduleFolder")) {
+      IModule module = document != null ? document : workItem.getModule();
+      if (module != null) {
+        if (fields.includes("moduleId")) {
+          workItemForJson.setModuleId(module.getId());
+        }
+        if (fields.includes("moduleTitle")) {
+          workItemForJson.setModuleTitle(module.getTitleOrName());
+        }
+        if (fields.includes("moduleFolder")) {
+          workItemForJson.setModuleFolder(module.getModuleFolder());
+        }
+      }
     }
-    if (workItem.getProjectId() != null) {
+    if (fields.includes("projectId") && workItem.getProjectId() != null) {
       workItemForJson.setProjectId(workItem.getProjectId());
     }
-    if (workItem.getAuthor() != null) {
+    if (fields.includes("author") && workItem.getAuthor() != null) {
       workItemForJson.setAuthor(workItem.getAuthor().getId());
     }
-    if (workItem.getWatchingUsers() != null && !workItem.getWatchingUsers().isEmpty()) {
+    if (fields.includes("watchers")
+        && workItem.getWatchingUsers() != null
+        && !workItem.getWatchingUsers().isEmpty()) {
       workItemForJson.setWatchers(castCollectionToStrList(workItem.getWatchingUsers()));
     }
     if (includeCustomFields != null
@@ -129,20 +147,30 @@ public class CastUtils {
         && !workItem.getCustomFieldsList().isEmpty()) {
       workItemForJson.setCustomFields(castCustomFields(workItem, includeCustomFields));
     }
-    if (workItem.getAssignees() != null && !workItem.getAssignees().isEmpty()) {
+    if (fields.includes("assignees")
+        && workItem.getAssignees() != null
+        && !workItem.getAssignees().isEmpty()) {
       workItemForJson.setAssignees(castCollectionToStrList(workItem.getAssignees()));
     }
-    if (workItem.getAttachments() != null && !workItem.getAttachments().isEmpty()) {
+    if (fields.includes("attachments")
+        && workItem.getAttachments() != null
+        && !workItem.getAttachments().isEmpty()) {
       workItemForJson.setAttachments(castCollectionToStrList(workItem.getAttachments()));
     }
-    if (workItem.getCategories() != null && !workItem.getCategories().isEmpty()) {
+    if (fields.includes("categories")
+        && workItem.getCategories() != null
+        && !workItem.getCategories().isEmpty()) {
       workItemForJson.setCategories(castCollectionToStrList(workItem.getCategories()));
     }
-    if (workItem.getHyperlinks() != null && !workItem.getHyperlinks().isEmpty()) {
+    if (fields.includes("hyperLinks")
+        && workItem.getHyperlinks() != null
+        && !workItem.getHyperlinks().isEmpty()) {
       workItemForJson.setHyperLinks(
           CollectionsAndEnumsUtils.castHyperlinksToStrList(workItem.getHyperlinks()));
     }
-    if (workItem.getComments() != null && !workItem.getComments().isEmpty()) {
+    if (fields.includes("comments")
+        && workItem.getComments() != null
+        && !workItem.getComments().isEmpty()) {
       workItemForJson.setComments(
           workItem.getComments().stream()
               .map(comment -> comment.getId())
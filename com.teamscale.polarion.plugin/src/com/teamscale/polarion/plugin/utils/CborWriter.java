@@ -0,0 +1,316 @@
+package com.teamscale.polarion.plugin.utils;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link JsonWriter} that encodes the written values as CBOR (RFC 8949) instead of json text.
+ * Gson type adapters only talk to the {@link JsonWriter} API, so any object Gson can serialize can
+ * be serialized as CBOR by passing this writer to {@link com.google.gson.Gson#toJson(Object,
+ * java.lang.reflect.Type, JsonWriter)}. The resulting CBOR has the same structure as the json Gson
+ * would produce (same names, null fields are omitted unless serializeNulls is set). Raw json values
+ * ({@link #jsonValue(String)}) are parsed and written as the equivalent CBOR.
+ *
+ * <p>Arrays and objects are encoded with indefinite length, so they can be streamed without knowing
+ * their size upfront.
+ */
+public class CborWriter extends JsonWriter {
+
+  /** The json text output of the super class is never used */
+  private static final Writer UNWRITABLE_WRITER =
+      new Writer() {
+        @Override
+        public void write(char[] buffer, int offset, int counter) {
+          throw new AssertionError();
+        }
+
+        @Override
+        public void flush() {
+          throw new AssertionError();
+        }
+
+        @Override
+        public void close() {
+          throw new AssertionError();
+        }
+      };
+
+  private static final int MAJOR_TYPE_UNSIGNED_INTEGER = 0;
+
+  private static final int MAJOR_TYPE_NEGATIVE_INTEGER = 1;
+
+  private static final int MAJOR_TYPE_TEXT_STRING = 3;
+
+  private static final int INDEFINITE_ARRAY = 0x9f;
+
+  private static final int INDEFINITE_MAP = 0xbf;
+
+  private static final int BREAK = 0xff;
+
+  private static final int FALSE = 0xf4;
+
+  private static final int TRUE = 0xf5;
+
+  private static final int NULL = 0xf6;
+
+  private static final int DOUBLE = 0xfb;
+
+  private final OutputStream out;
+
+  /** Name of the next map entry, written with its value (and dropped if the value is null) */
+  private String deferredName;
+
+  public CborWriter(OutputStream out) {
+    super(UNWRITABLE_WRITER);
+    this.out = out;
+  }
+
+  @Override
+  public JsonWriter beginArray() throws IOException {
+    writeDeferredName();
+    out.write(INDEFINITE_ARRAY);
+    return this;
+  }
+
+  @Override
+  public JsonWriter endArray() throws IOException {
+    out.write(BREAK);
+    return this;
+  }
+
+  @Override
+  public JsonWriter beginObject() throws IOException {
+    writeDeferredName();
+    out.write(INDEFINITE_MAP);
+    return this;
+  }
+
+  @Override
+  public JsonWriter endObject() throws IOException {
+    if (deferredName != null) {
+      throw new IllegalStateException("Name without value: " + deferredName);
+    }
+    out.write(BREAK);
+    return this;
+  }
+
+  @Override
+  public JsonWriter name(String name) throws IOException {
+    Objects.requireNonNull(name, "name == null");
+    if (deferredName != null) {
+      throw new IllegalStateException("Name without value: " + deferredName);
+    }
+    deferredName = name;
+    return this;
+  }
+
+  @Override
+  public JsonWriter value(String value) throws IOException {
+    if (value == null) {
+      return nullValue();
+    }
+    writeDeferredName();
+    writeText(value);
+    return this;
+  }
+
+  /**
+   * Raw json cannot be embedded into CBOR, so it is parsed and its tokens are written one by one.
+   * Like the raw json text, null values of objects are kept. Throws an {@link IOException} if the
+   * value is not a single valid json value.
+   */
+  @Override
+  public JsonWriter jsonValue(String value) throws IOException {
+    if (value == null) {
+      return nullValue();
+    }
+    JsonReader reader = new JsonReader(new StringReader(value));
+    int depth = 0;
+    do {
+      JsonToken token = reader.peek();
+      switch (token) {
+        case BEGIN_ARRAY:
+          reader.beginArray();
+          beginArray();
+          depth++;
+          break;
+        case END_ARRAY:
+          reader.endArray();
+          endArray();
+          depth--;
+          break;
+        case BEGIN_OBJECT:
+          reader.beginObject();
+          beginObject();
+          depth++;
+          break;
+        case END_OBJECT:
+          reader.endObject();
+          endObject();
+          depth--;
+          break;
+        case NAME:
+          name(reader.nextName());
+          break;
+        case STRING:
+          value(reader.nextString());
+          break;
+        case NUMBER:
+          writeNumber(reader.nextString());
+          break;
+        case BOOLEAN:
+          value(reader.nextBoolean());
+          break;
+        case NULL:
+          reader.nextNull();
+          writeDeferredName();
+          out.write(NULL);
+          break;
+        default:
+          throw new IOException("Unexpected " + token + " in raw json value");
+      }
+    } while (depth > 0);
+    if (reader.peek() != JsonToken.END_DOCUMENT) {
+      throw new IOException("Raw json value is followed by more json");
+    }
+    return this;
+  }
+
+  @Override
+  public JsonWriter nullValue() throws IOException {
+    if (deferredName != null && !getSerializeNulls()) {
+      // Same as JsonWriter: skip the name and the value
+      deferredName = null;
+      return this;
+    }
+    writeDeferredName();
+    out.write(NULL);
+    return this;
+  }
+
+  @Override
+  public JsonWriter value(boolean value) throws IOException {
+    writeDeferredName();
+    out.write(value ? TRUE : FALSE);
+    return this;
+  }
+
+  @Override
+  public JsonWriter value(Boolean value) throws IOException {
+    if (value == null) {
+      return nullValue();
+    }
+    return value(value.booleanValue());
+  }
+
+  @Override
+  public JsonWriter value(double value) throws IOException {
+    if (!isLenient() && (Double.isNaN(value) || Double.isInfinite(value))) {
+      throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+    }
+    writeDeferredName();
+    out.write(DOUBLE);
+    writeBytes(Double.doubleToLongBits(value), 8);
+    return this;
+  }
+
+  @Override
+  public JsonWriter value(long value) throws IOException {
+    writeDeferredName();
+    if (value >= 0) {
+      writeHead(MAJOR_TYPE_UNSIGNED_INTEGER, value);
+    } else {
+      writeHead(MAJOR_TYPE_NEGATIVE_INTEGER, -1 - value);
+    }
+    return this;
+  }
+
+  @Override
+  public JsonWriter value(Number value) throws IOException {
+    if (value == null) {
+      return nullValue();
+    }
+    if (value instanceof Integer
+        || value instanceof Long
+        || value instanceof Short
+        || value instanceof Byte
+        || value instanceof AtomicInteger
+        || value instanceof AtomicLong
+        || (value instanceof BigInteger && ((BigInteger) value).bitLength() < 64)) {
+      return value(value.longValue());
+    }
+    return value(value.doubleValue());
+  }
+
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+
+  /** Writes a json number as integer if it is one within the long range, as double otherwise */
+  private void writeNumber(String number) throws IOException {
+    try {
+      value(Long.parseLong(number));
+    } catch (NumberFormatException notALong) {
+      value(Double.parseDouble(number));
+    }
+  }
+
+  private void writeDeferredName() throws IOException {
+    if (deferredName != null) {
+      writeText(deferredName);
+      deferredName = null;
+    }
+  }
+
+  private void writeText(String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    writeHead(MAJOR_TYPE_TEXT_STRING, bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Writes the initial byte of a data item and its argument (integer value or length) in the
+   * shortest possible form.
+   */
+  private void writeHead(int majorType, long argument) throws IOException {
+    int initialByte = majorType << 5;
+    if (argument < 24) {
+      out.write(initialByte | (int) argument);
+    } else if (argument < 0x100L) {
+      out.write(initialByte | 24);
+      writeBytes(argument, 1);
+    } else if (argument < 0x10000L) {
+      out.write(initialByte | 25);
+      writeBytes(argument, 2);
+    } else if (argument < 0x100000000L) {
+      out.write(initialByte | 26);
+      writeBytes(argument, 4);
+    } else {
+      out.write(initialByte | 27);
+      writeBytes(argument, 8);
+    }
+  }
+
+  /** Writes the given number of low order bytes of the value, in network byte order */
+  private void writeBytes(long value, int count) throws IOException {
+    for (int shift = (count - 1) * 8; shift >= 0; shift -= 8) {
+      out.write((int) (value >>> shift) & 0xff);
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package com.teamscale.polarion.plugin.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * HTTP content encodings (compression) supported for request and response bodies: gzip and deflate
+ * (zlib format, as specified for HTTP).
+ */
+public class ContentEncoding {
+
+  public static final String GZIP = "gzip";
+
+  public static final String DEFLATE = "deflate";
+
+  private static final String IDENTITY = "identity";
+
+  /** Size of the buffer of the compressing/decompressing streams */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Checks if a request body with the given Content-Encoding header can be decompressed. */
+  public static boolean isSupported(String contentEncoding) {
+    return contentEncoding == null
+        || contentEncoding.isBlank()
+        || IDENTITY.equalsIgnoreCase(contentEncoding.trim())
+        || GZIP.equalsIgnoreCase(contentEncoding.trim())
+        || DEFLATE.equalsIgnoreCase(contentEncoding.trim());
+  }
+
+  /**
+   * Wraps the request body according to its Content-Encoding header. The encoding must be
+   * supported, see {@link #isSupported(String)}.
+   */
+  public static InputStream decompress(InputStream body, String contentEncoding)
+      throws IOException {
+    if (contentEncoding == null) {
+      return body;
+    }
+    if (GZIP.equalsIgnoreCase(contentEncoding.trim())) {
+      return new GZIPInputStream(body, BUFFER_SIZE);
+    }
+    if (DEFLATE.equalsIgnoreCase(contentEncoding.trim())) {
+      return new InflaterInputStream(body);
+    }
+    return body;
+  }
+
+  /**
+   * Picks the encoding of the response based on the Accept-Encoding header of the request. Returns
+   * null if the response should not be compressed. If gzip and deflate are equally acceptable, gzip
+   * is preferred since it is more widely supported.
+   */
+  public static String negotiate(String acceptEncoding) {
+    // Null if the coding is not listed
+    Double gzipQuality = AcceptHeader.getQuality(acceptEncoding, GZIP);
+    Double deflateQuality = AcceptHeader.getQuality(acceptEncoding, DEFLATE);
+    Double wildcardQuality = AcceptHeader.getQuality(acceptEncoding, "*");
+    // Codings not listed are acceptable with the quality of the wildcard (if any)
+    double defaultQuality = wildcardQuality == null ? 0 : wildcardQuality;
+    if (gzipQuality == null) {
+      gzipQuality = defaultQuality;
+    }
+    if (deflateQuality == null) {
+      deflateQuality = defaultQuality;
+    }
+    if (gzipQuality > 0 && gzipQuality >= deflateQuality) {
+      return GZIP;
+    }
+    if (deflateQuality > 0) {
+      return DEFLATE;
+    }
+    return null;
+  }
+
+  /**
+   * Wraps the response body to compress it with the given encoding ({@link #GZIP} or {@link
+   * #DEFLATE}) and compression level (0-9, or -1 for the default level). The returned stream must
+   * be closed to write the end of the compressed data. With syncFlush, flushing the stream also
+   * flushes the data compressed so far, so the client can decompress everything written up to that
+   * point (at the cost of a slightly worse compression ratio).
+   */
+  public static DeflaterOutputStream compress(
+      OutputStream body, String encoding, int level, boolean syncFlush) throws IOException {
+    if (GZIP.equals(encoding)) {
+      return new LeveledGzipOutputStream(body, level, syncFlush);
+    }
+    return new LeveledDeflaterOutputStream(body, level, syncFlush);
+  }
+
+  private static class LeveledGzipOutputStream extends GZIPOutputStream {
+
+    private LeveledGzipOutputStream(OutputStream out, int level, boolean syncFlush)
+        throws IOException {
+      super(out, BUFFER_SIZE, syncFlush);
+      def.setLevel(level);
+    }
+  }
+
+  /**
+   * Unlike with its default deflater, a {@link DeflaterOutputStream} does not release the native
+   * memory of a deflater passed to it, so this is done on close.
+   */
+  private static class LeveledDeflaterOutputStream extends DeflaterOutputStream {
+
+    private LeveledDeflaterOutputStream(OutputStream out, int level, boolean syncFlush) {
+      super(out, new Deflater(level), BUFFER_SIZE, syncFlush);
+    }
+
+    @Override
+    public void close() throws IOException {
+      try {
+        super.close();
+      } finally {
+        def.end();
+      }
+    }
+  }
+}
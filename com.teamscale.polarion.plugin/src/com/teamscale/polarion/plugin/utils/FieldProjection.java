@@ -0,0 +1,137 @@
+package com.teamscale.polarion.plugin.utils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Standard work item fields requested by the client (request parameter includedWorkItemFields).
+ * Fields that are not part of the projection are never read from the Polarion work item, which
+ * saves the (lazy) persistence loads some of the getters trigger, e.g. for comments, attachments or
+ * the title of the document.
+ *
+ * <p>The field names are the ones of the json response (see {@link #STANDARD_FIELDS}). The id, uri
+ * and update type are always part of a work item. Custom fields and links are selected by their own
+ * parameters (includedWorkItemCustomFields, includedWorkItemLinkRoles).
+ */
+public class FieldProjection {
+
+  /** Standard fields of a work item in the response, in the order of the json model */
+  public static final Set<String> STANDARD_FIELDS =
+      Collections.unmodifiableSet(
+          new LinkedHashSet<>(
+              Arrays.asList(
+                  "revision",
+                  "description",
+                  "created",
+                  "dueDate",
+                  "hyperLinks",
+                  "initialEstimate",
+                  "outlineNumber",
+                  "plannedEnd",
+                  "plannedStart",
+                  "plannedIn",
+                  "priority",
+                  "remainingEstimate",
+                  "resolution",
+                  "resolvedOn",
+                  "severity",
+                  "status",
+                  "timeSpent",
+                  "title",
+                  "type",
+                  "updated",
+                  "moduleId",
+                  "moduleTitle",
+                  "moduleFolder",
+                  "projectId",
+                  "assignees",
+                  "attachments",
+                  "author",
+                  "categories",
+                  "comments",
+                  "watchers")));
+
+  /**
+   * Response fields of the Polarion fields whose id differs from the name of the response field.
+   * The ids of the other standard fields are the same as their response field names.
+   */
+  private static final Map<String, List<String>> RESPONSE_FIELDS_OF_POLARION_FIELDS =
+      Map.of(
+          "assignee",
+          List.of("assignees"),
+          "hyperlinks",
+          List.of("hyperLinks"),
+          "module",
+          List.of("moduleId", "moduleTitle", "moduleFolder"));
+
+  /** Projection of all standard fields, used if the request doesn't select any */
+  public static final FieldProjection ALL = new FieldProjection(STANDARD_FIELDS);
+
+  private final Set<String> fields;
+
+  private FieldProjection(Set<String> fields) {
+    this.fields = fields;
+  }
+
+  /**
+   * Creates the projection of the requested fields. Returns {@link #ALL} if no fields are requested
+   * and null if any of the requested fields is not a standard field.
+   */
+  public static FieldProjection of(String[] requestedFields) {
+    if (requestedFields == null || requestedFields.length == 0) {
+      return ALL;
+    }
+    Set<String> fields = new TreeSet<>(Arrays.asList(requestedFields));
+    if (!STANDARD_FIELDS.containsAll(fields)) {
+      return null;
+    }
+    return fields.size() == STANDARD_FIELDS.size() ? ALL : new FieldProjection(fields);
+  }
+
+  public boolean includes(String field) {
+    return fields.contains(field);
+  }
+
+  /**
+   * Checks if changes of the given Polarion field (field id as in the field diffs) touch a field of
+   * this projection. The projection of all fields includes all Polarion fields, also the ones that
+   * are not standard fields of the response.
+   */
+  public boolean includesPolarionField(String fieldId) {
+    if (this == ALL) {
+      return true;
+    }
+    return RESPONSE_FIELDS_OF_POLARION_FIELDS.getOrDefault(fieldId, List.of(fieldId)).stream()
+        .anyMatch(fields::contains);
+  }
+
+  /**
+   * Returns the projection of the fields of this projection that are touched by changes of the
+   * given Polarion fields (field ids as in the field diffs), plus the revision.
+   */
+  public FieldProjection retainTouched(Set<String> polarionFieldIds) {
+    Set<String> touched = new TreeSet<>();
+    touched.add("revision");
+    for (String fieldId : polarionFieldIds) {
+      touched.addAll(RESPONSE_FIELDS_OF_POLARION_FIELDS.getOrDefault(fieldId, List.of(fieldId)));
+    }
+    touched.retainAll(fields);
+    return new FieldProjection(touched);
+  }
+
+  /**
+   * Normalized representation of the projection (sorted, "*" for all fields) for cache keys and
+   * parameter hashes.
+   */
+  public String key() {
+    if (this == ALL) {
+      return "*";
+    }
+    return String.join(",", fields);
+  }
+}
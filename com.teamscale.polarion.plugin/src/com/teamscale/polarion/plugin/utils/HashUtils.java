@@ -0,0 +1,29 @@
+package com.teamscale.polarion.plugin.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/** Utilities for hashing request parameters into short, stable identifiers. */
+public class HashUtils {
+
+  /**
+   * Hash (SHA-256, hex) of the given values. The values are separated by a character that is not
+   * part of any of them, so different splits of the same characters have different hashes.
+   */
+  public static String sha256Hex(String... values) {
+    try {
+      byte[] hash =
+          MessageDigest.getInstance("SHA-256")
+              .digest(String.join("\u0000", values).getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder();
+      for (byte b : hash) {
+        hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-256
+      throw new IllegalStateException(e);
+    }
+  }
+}
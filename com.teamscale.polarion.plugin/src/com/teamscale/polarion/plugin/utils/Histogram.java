@@ -0,0 +1,96 @@
+package com.teamscale.polarion.plugin.utils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram with fixed buckets, in the form of a Prometheus histogram. Observations only increment
+ * {@link LongAdder}s, so recording is lock-free and cheap enough for the hot path. Reads while
+ * observations are recorded may be slightly inconsistent (e.g., the count already includes an
+ * observation the sum doesn't), which is acceptable for monitoring.
+ */
+public class Histogram {
+
+  /** Upper bounds of the buckets of durations in seconds */
+  private static final double[] DURATION_BUCKETS = {
+    0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30, 60
+  };
+
+  /** Upper bounds of the buckets of byte counts */
+  private static final double[] BYTE_BUCKETS = {
+    1 << 16, 1 << 18, 1 << 20, 1 << 22, 1 << 24, 1 << 26, 1 << 28, 1 << 30, 1L << 32
+  };
+
+  /** Upper bounds of the buckets as exported (the +Inf bucket is the count) */
+  private final double[] bucketBounds;
+
+  /** Upper bounds of the buckets in the unit of the observed values */
+  private final long[] observedBounds;
+
+  /** Observed values per exported unit */
+  private final double unit;
+
+  /** Observations per bucket (not cumulative, they are summed up when written) */
+  private final LongAdder[] buckets;
+
+  private final LongAdder count = new LongAdder();
+
+  private final LongAdder sum = new LongAdder();
+
+  private Histogram(double[] bucketBounds, double unit) {
+    this.bucketBounds = bucketBounds;
+    this.unit = unit;
+    observedBounds = new long[bucketBounds.length];
+    buckets = new LongAdder[bucketBounds.length];
+    for (int i = 0; i < bucketBounds.length; i++) {
+      observedBounds[i] = (long) (bucketBounds[i] * unit);
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  /** Histogram of durations, observed in nanoseconds and exported in seconds. */
+  public static Histogram forDurations() {
+    return new Histogram(DURATION_BUCKETS, 1_000_000_000d);
+  }
+
+  /** Histogram of byte counts. */
+  public static Histogram forBytes() {
+    return new Histogram(BYTE_BUCKETS, 1);
+  }
+
+  /** Records a value (nanoseconds for durations). */
+  public void observe(long value) {
+    for (int i = 0; i < observedBounds.length; i++) {
+      if (value <= observedBounds[i]) {
+        buckets[i].increment();
+        break;
+      }
+    }
+    count.increment();
+    sum.add(value);
+  }
+
+  /** Appends the histogram in the Prometheus text format. */
+  public void writeTo(StringBuilder out, String name, String help) {
+    out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    out.append("# TYPE ").append(name).append(" histogram\n");
+    long cumulative = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      cumulative += buckets[i].sum();
+      out.append(name)
+          .append("_bucket{le=\"")
+          .append(formatBound(bucketBounds[i]))
+          .append("\"} ")
+          .append(cumulative)
+          .append('\n');
+    }
+    long total = count.sum();
+    out.append(name).append("_bucket{le=\"+Inf\"} ").append(total).append('\n');
+    out.append(name).append("_sum ").append(sum.sum() / unit).append('\n');
+    out.append(name).append("_count ").append(total).append('\n');
+  }
+
+  /** Whole bounds (e.g., byte counts) are written without exponent and fraction */
+  private static String formatBound(double bound) {
+    return bound == Math.rint(bound) ? String.valueOf((long) bound) : String.valueOf(bound);
+  }
+}
@@ -0,0 +1,104 @@
+package com.teamscale.polarion.plugin.utils;
+
+import com.teamscale.polarion.plugin.model.CompactIdSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Encodes and decodes sets of work item ids in the {@link CompactIdSet} representation. Clients opt
+ * into this representation with the request parameter idEncoding=compact.
+ */
+public class IdSetEncoding {
+
+  /** Value of the idEncoding request parameter to use the {@link CompactIdSet} representation */
+  public static final String COMPACT = "compact";
+
+  /**
+   * Numbers above this limit are not range encoded. This bounds the memory the decoded bit sets can
+   * take (2 MB per prefix), also for ranges sent by clients.
+   */
+  static final int MAX_ENCODED_NUMBER = (1 << 24) - 1;
+
+  /** Ids with numbers of more digits could exceed the int range */
+  private static final int MAX_DIGITS = 9;
+
+  /** Encodes the given ids. Duplicated ids are encoded only once. */
+  public static CompactIdSet encode(Collection<String> ids) {
+    Map<String, List<Integer>> numbersByPrefix = new HashMap<>();
+    List<String> otherIds = new ArrayList<>();
+    for (String id : ids) {
+      int numberStart = numberStart(id);
+      if (numberStart < 0) {
+        otherIds.add(id);
+      } else {
+        numbersByPrefix
+            .computeIfAbsent(id.substring(0, numberStart), prefix -> new ArrayList<>())
+            .add(Integer.parseInt(id.substring(numberStart)));
+      }
+    }
+
+    // Sorted by prefix, so the same set is always encoded the same way
+    Map<String, int[]> ranges = new TreeMap<>();
+    numbersByPrefix.forEach((prefix, numbers) -> ranges.put(prefix, toRanges(numbers)));
+    return new CompactIdSet(ranges, otherIds);
+  }
+
+  /**
+   * Decodes an id set sent by the client. Throws an {@link IllegalArgumentException} if the ranges
+   * are malformed.
+   */
+  public static KnownIdSet decode(CompactIdSet compactIdSet) {
+    KnownIdSet knownIdSet = new KnownIdSet();
+    if (compactIdSet.getRanges() != null) {
+      compactIdSet.getRanges().forEach(knownIdSet::addRanges);
+    }
+    if (compactIdSet.getIds() != null) {
+      compactIdSet.getIds().forEach(knownIdSet::add);
+    }
+    return knownIdSet;
+  }
+
+  /**
+   * Returns the index where the number of an id in the prefix-number format starts, or -1 if the id
+   * cannot be range encoded. Numbers with leading zeros are not range encoded, as the id could not
+   * be restored from the number.
+   */
+  static int numberStart(String id) {
+    if (id == null) {
+      return -1;
+    }
+    int start = id.length();
+    while (start > 0 && id.charAt(start - 1) >= '0' && id.charAt(start - 1) <= '9') {
+      start--;
+    }
+    int digits = id.length() - start;
+    if (digits == 0 || digits > MAX_DIGITS || (digits > 1 && id.charAt(start) == '0')) {
+      return -1;
+    }
+    if (Integer.parseInt(id.substring(start)) > MAX_ENCODED_NUMBER) {
+      return -1;
+    }
+    return start;
+  }
+
+  /** Sorts the numbers and run-length encodes them as flat list of inclusive ranges */
+  private static int[] toRanges(List<Integer> numbers) {
+    int[] sorted = numbers.stream().mapToInt(Integer::intValue).sorted().distinct().toArray();
+    int[] ranges = new int[sorted.length * 2];
+    int size = 0;
+    for (int i = 0; i < sorted.length; i++) {
+      if (size > 0 && ranges[size - 1] + 1 == sorted[i]) {
+        ranges[size - 1] = sorted[i];
+      } else {
+        ranges[size++] = sorted[i];
+        ranges[size++] = sorted[i];
+      }
+    }
+    return Arrays.copyOf(ranges, size);
+  }
+}
@@ -0,0 +1,117 @@
+package com.teamscale.polarion.plugin.utils;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Set of the work item ids known by the client with O(1) membership checks. Ids in the
+ * prefix-number format (e.g., EL-1234) are kept in a bit set per prefix, all other ids in a hash
+ * set. Not thread safe for writing, the set is filled once while reading the request.
+ */
+public class KnownIdSet {
+
+  /**
+   * Max. total size of the bit sets of all prefixes (8 MB). The size of a bit set depends on the
+   * largest number of its prefix, so this bounds the memory of the sets sent by clients, regardless
+   * of how many prefixes they use.
+   */
+  static final long MAX_TOTAL_BITS = 1L << 26;
+
+  private final Map<String, BitSet> numbersByPrefix = new HashMap<>();
+
+  /** Total size of the bit sets, in bits (rounded up to words of 64 bits per prefix) */
+  private long totalBits = 0;
+
+  private final Set<String> otherIds = new HashSet<>();
+
+  /** Creates the set out of a plain list of ids */
+  public static KnownIdSet of(String[] ids) {
+    KnownIdSet knownIdSet = new KnownIdSet();
+    for (String id : ids) {
+      knownIdSet.add(id);
+    }
+    return knownIdSet;
+  }
+
+  public void add(String id) {
+    int numberStart = IdSetEncoding.numberStart(id);
+    if (numberStart < 0) {
+      otherIds.add(id);
+    } else {
+      int number = Integer.parseInt(id.substring(numberStart));
+      numbers(id.substring(0, numberStart), number).set(number);
+    }
+  }
+
+  /** Adds the ids of a flat list of inclusive ranges: [first1, last1, first2, last2, ...] */
+  void addRanges(String prefix, int[] ranges) {
+    if (ranges == null || ranges.length % 2 != 0) {
+      throw new IllegalArgumentException("Ranges of prefix " + prefix + " are not pairs");
+    }
+    for (int i = 0; i < ranges.length; i += 2) {
+      int first = ranges[i];
+      int last = ranges[i + 1];
+      if (first < 0 || first > last || last > IdSetEncoding.MAX_ENCODED_NUMBER) {
+        throw new IllegalArgumentException(
+            "Invalid range [" + first + ", " + last + "] of prefix " + prefix);
+      }
+      numbers(prefix, last).set(first, last + 1);
+    }
+  }
+
+  /**
+   * Returns the bit set of the prefix, which is about to hold the given number. Throws an {@link
+   * IllegalArgumentException} if the bit sets would exceed {@link #MAX_TOTAL_BITS}.
+   */
+  private BitSet numbers(String prefix, int number) {
+    BitSet numbers = numbersByPrefix.get(prefix);
+    long wordsBefore = numbers == null ? 0 : (numbers.length() + 63) / 64;
+    long wordsAfter = Math.max(wordsBefore, number / 64 + 1);
+    if (totalBits + (wordsAfter - wordsBefore) * 64 > MAX_TOTAL_BITS) {
+      throw new IllegalArgumentException(
+          "The known ids exceed the limit of " + MAX_TOTAL_BITS + " bits");
+    }
+    totalBits += (wordsAfter - wordsBefore) * 64;
+    if (numbers == null) {
+      numbers = new BitSet();
+      numbersByPrefix.put(prefix, numbers);
+    }
+    return numbers;
+  }
+
+  public boolean isEmpty() {
+    return otherIds.isEmpty() && numbersByPrefix.values().stream().allMatch(BitSet::isEmpty);
+  }
+
+  public boolean contains(String id) {
+    int numberStart = IdSetEncoding.numberStart(id);
+    if (numberStart < 0) {
+      return otherIds.contains(id);
+    }
+    BitSet numbers = numbersByPrefix.get(id.substring(0, numberStart));
+    return numbers != null && numbers.get(Integer.parseInt(id.substring(numberStart)));
+  }
+
+  /**
+   * Hash of the ids in the set, independent of the order they were added in and of their encoding
+   * in the request.
+   */
+  public String fingerprint() {
+    StringBuilder ids = new StringBuilder();
+    new TreeMap<>(numbersByPrefix)
+        .forEach(
+            (prefix, numbers) -> {
+              // Empty ranges of a prefix don't add any ids
+              if (!numbers.isEmpty()) {
+                ids.append(prefix).append(Arrays.toString(numbers.toLongArray())).append('\n');
+              }
+            });
+    return HashUtils.sha256Hex(ids.toString(), String.join("\n", new TreeSet<>(otherIds)));
+  }
+}
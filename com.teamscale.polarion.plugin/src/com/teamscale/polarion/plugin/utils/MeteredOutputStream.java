@@ -0,0 +1,59 @@
+package com.teamscale.polarion.plugin.utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written through it and the time spent writing them to the underlying stream
+ * (including the time the underlying stream takes to pass them on).
+ */
+public class MeteredOutputStream extends FilterOutputStream {
+
+  private long byteCount = 0;
+
+  private long writeNanos = 0;
+
+  public MeteredOutputStream(OutputStream out) {
+    super(out);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    long start = System.nanoTime();
+    out.write(b);
+    writeNanos += System.nanoTime() - start;
+    byteCount++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    // FilterOutputStream would write the bytes one by one
+    long start = System.nanoTime();
+    out.write(b, off, len);
+    writeNanos += System.nanoTime() - start;
+    byteCount += len;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    long start = System.nanoTime();
+    out.flush();
+    writeNanos += System.nanoTime() - start;
+  }
+
+  @Override
+  public void close() throws IOException {
+    long start = System.nanoTime();
+    out.close();
+    writeNanos += System.nanoTime() - start;
+  }
+
+  public long getByteCount() {
+    return byteCount;
+  }
+
+  public long getWriteNanos() {
+    return writeNanos;
+  }
+}
@@ -0,0 +1,68 @@
+package com.teamscale.polarion.plugin.utils;
+
+import com.teamscale.polarion.plugin.model.WorkItemChange;
+import com.teamscale.polarion.plugin.model.WorkItemFieldDiff;
+import com.teamscale.polarion.plugin.model.WorkItemForJson;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Rough estimations (in bytes) of the heap used by the objects of a response. The text fields
+ * dominate the size, the other fields are accounted for by a fixed amount per field/element. Since
+ * strings take 2 bytes per char on the heap, the estimations are also a rough upper bound of the
+ * serialized size.
+ */
+public class SizeEstimation {
+
+  /** Estimates the size of a work item without its changes (e.g., a snapshot). */
+  public static long estimateSize(WorkItemForJson workItem) {
+    long size = 1024;
+    size += estimateSize(workItem.getDescription());
+    size += estimateSize(workItem.getTitle());
+    size += 64L * count(workItem.getHyperLinks());
+    size += 64L * count(workItem.getAssignees());
+    size += 64L * count(workItem.getAttachments());
+    size += 64L * count(workItem.getCategories());
+    size += 64L * count(workItem.getWatchers());
+    size += 128L * count(workItem.getLinkedWorkItems());
+    if (workItem.getCustomFields() != null) {
+      for (Map.Entry<String, Object> customField : workItem.getCustomFields().entrySet()) {
+        size += 64 + estimateSize(String.valueOf(customField.getValue()));
+      }
+    }
+    return size;
+  }
+
+  /** Estimates the size of a work item including its changes. */
+  public static long estimateSizeWithChanges(WorkItemForJson workItem) {
+    long size = estimateSize(workItem);
+    if (workItem.getWorkItemChanges() != null) {
+      for (WorkItemChange change : workItem.getWorkItemChanges()) {
+        size += estimateSize(change);
+      }
+    }
+    return size;
+  }
+
+  public static long estimateSize(WorkItemChange change) {
+    long size = 128;
+    if (change.getFieldChanges() != null) {
+      for (WorkItemFieldDiff fieldChange : change.getFieldChanges()) {
+        size += 128;
+        size += estimateSize(fieldChange.getFieldValueBefore());
+        size += estimateSize(fieldChange.getFieldValueAfter());
+        size += 64L * count(fieldChange.getElementsAdded());
+        size += 64L * count(fieldChange.getElementsRemoved());
+      }
+    }
+    return size;
+  }
+
+  private static long estimateSize(String value) {
+    return value == null ? 0 : 2L * value.length();
+  }
+
+  private static int count(Collection<?> collection) {
+    return collection == null ? 0 : collection.size();
+  }
+}
@@ -0,0 +1,129 @@
+package com.teamscale.polarion.plugin.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Thread safe LRU cache bounded by the total weight of its values (e.g., their estimated size in
+ * bytes) rather than by the number of entries. When adding an entry exceeds the max weight, the
+ * least recently used entries are evicted. A max weight of 0 disables the cache.
+ *
+ * <p>Values are computed outside of the cache, so two threads missing the same key at the same time
+ * both compute the value (the last one wins). This is fine for values that are the same no matter
+ * who computes them.
+ */
+public class WeightedLruCache<K, V> {
+
+  private final long maxWeight;
+
+  private final ToLongFunction<V> weigher;
+
+  /** Access ordered, so the eldest entry is the least recently used one */
+  private final LinkedHashMap<K, WeightedValue<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+  private long totalWeight = 0;
+
+  private final LongAdder hits = new LongAdder();
+
+  private final LongAdder misses = new LongAdder();
+
+  private final LongAdder evictions = new LongAdder();
+
+  public WeightedLruCache(long maxWeight, ToLongFunction<V> weigher) {
+    this.maxWeight = maxWeight;
+    this.weigher = weigher;
+  }
+
+  /** Returns the cached value or null if there is none. */
+  public synchronized V get(K key) {
+    WeightedValue<V> entry = entries.get(key);
+    if (entry == null) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return entry.value;
+  }
+
+  /**
+   * Checks if there is a value for the key. Unlike {@link #get(Object)}, this neither counts as hit
+   * or miss nor marks the entry as recently used.
+   */
+  public synchronized boolean contains(K key) {
+    return entries.containsKey(key);
+  }
+
+  /** Adds the value, unless it alone is heavier than the max weight of the cache. */
+  public synchronized void put(K key, V value) {
+    long weight = weigher.applyAsLong(value);
+    if (weight > maxWeight) {
+      return;
+    }
+    WeightedValue<V> previous = entries.put(key, new WeightedValue<>(value, weight));
+    if (previous != null) {
+      totalWeight -= previous.weight;
+    }
+    totalWeight += weight;
+
+    Iterator<Map.Entry<K, WeightedValue<V>>> eldest = entries.entrySet().iterator();
+    while (totalWeight > maxWeight && eldest.hasNext()) {
+      totalWeight -= eldest.next().getValue().weight;
+      eldest.remove();
+      evictions.increment();
+    }
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    totalWeight = 0;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized long getWeight() {
+    return totalWeight;
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  /** Human readable statistics, for logging */
+  public String getStatistics() {
+    return "entries: "
+        + size()
+        + ", weight: "
+        + getWeight()
+        + ", hits: "
+        + getHitCount()
+        + ", misses: "
+        + getMissCount()
+        + ", evictions: "
+        + getEvictionCount();
+  }
+
+  private static class WeightedValue<V> {
+
+    private final V value;
+
+    private final long weight;
+
+    private WeightedValue(V value, long weight) {
+      this.value = value;
+      this.weight = weight;
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package com.teamscale.polarion.plugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+/** Tests the {@link ChangeIndex} fed by an in-memory {@link ChangeEventSource}. */
+public class ChangeIndexTest {
+
+  @Test
+  public void committedRevisionsAdvanceTheWatermark() {
+    InMemorySource source = new InMemorySource();
+    ChangeIndex index = new ChangeIndex(100);
+    index.start(source, 10);
+    source.commit(11, "A");
+    source.commit(12, "B", "C");
+
+    assertEquals(set("A", "B", "C"), index.getItemsChangedAfter(10, 12));
+    assertEquals(set("B", "C"), index.getItemsChangedAfter(11, 12));
+    assertEquals(set(), index.getItemsChangedAfter(12, 12));
+    assertEquals(0, source.queries);
+    assertEquals(3, index.getHits());
+  }
+
+  @Test
+  public void skippedRevisionIsResyncedByTheNextRequest() {
+    InMemorySource source = new InMemorySource();
+    ChangeIndex index = new ChangeIndex(100);
+    index.start(source, 10);
+    source.commit(11, "A");
+    source.commitUnreported(12, "B");
+    source.commit(13, "C");
+    // The listener callbacks never query
+    assertEquals(0, source.queries);
+
+    assertEquals(set("A", "B", "C"), index.getItemsChangedAfter(10, 13));
+    assertEquals(1, source.queries);
+    assertEquals(set("B", "C"), index.getItemsChangedAfter(11, 13));
+    assertEquals(1, source.queries);
+    assertEquals(1, index.getResyncs());
+
+    // Revisions following the resynced watermark are taken from the listener again
+    source.commit(14, "A");
+    assertEquals(set("A"), index.getItemsChangedAfter(13, 14));
+    assertEquals(1, source.queries);
+  }
+
+  @Test
+  public void revisionNotReportedYetIsResynced() {
+    InMemorySource source = new InMemorySource();
+    ChangeIndex index = new ChangeIndex(100);
+    index.start(source, 10);
+    source.commitUnreported(11, "A");
+
+    assertEquals(set("A"), index.getItemsChangedAfter(10, 11));
+    assertEquals(1, source.queries);
+  }
+
+  @Test
+  public void evictionMovesTheStart() {
+    InMemorySource source = new InMemorySource();
+    ChangeIndex index = new ChangeIndex(2);
+    index.start(source, 10);
+    source.commit(11, "A");
+    source.commit(12, "B");
+    source.commit(13, "C");
+
+    // Revision 11 was dropped, so its changes are unknown
+    assertNull(index.getItemsChangedAfter(10, 13));
+    assertEquals(set("B", "C"), index.getItemsChangedAfter(11, 13));
+    assertEquals(1, index.getMisses());
+    assertEquals(1, index.getHits());
+  }
+
+  @Test
+  public void lastUpdateBeforeTheStartIsMissed() {
+    InMemorySource source = new InMemorySource();
+    ChangeIndex index = new ChangeIndex(100);
+    index.start(source, 10);
+    source.commit(11, "A");
+
+    assertNull(index.getItemsChangedAfter(9, 11));
+    assertEquals(set("A"), index.getItemsChangedAfter(10, 11));
+    assertEquals(1, index.getMisses());
+  }
+
+  @Test
+  public void failedResyncStartsOver() {
+    InMemorySource source = new InMemorySource();
+    ChangeIndex index = new ChangeIndex(100);
+    index.start(source, 10);
+    source.commit(11, "A");
+    source.failQueries = true;
+    source.commitUnreported(12, "B");
+
+    assertNull(index.getItemsChangedAfter(10, 12));
+    assertEquals(set(), index.getItemsChangedAfter(12, 12));
+    source.commit(13, "C");
+    assertEquals(set("C"), index.getItemsChangedAfter(12, 13));
+  }
+
+  @Test
+  public void disabledOrStoppedIndexMisses() {
+    InMemorySource source = new InMemorySource();
+    ChangeIndex disabled = new ChangeIndex(0);
+    disabled.start(source, 10);
+    assertNull(source.sink);
+    assertNull(disabled.getItemsChangedAfter(10, 10));
+
+    ChangeIndex index = new ChangeIndex(100);
+    index.start(source, 10);
+    source.commit(11, "A");
+    index.stop();
+    assertTrue(source.stopped);
+    assertNull(index.getItemsChangedAfter(10, 11));
+  }
+
+  private static Set<String> set(String... uris) {
+    return new HashSet<>(Arrays.asList(uris));
+  }
+
+  /** Source whose changes are committed by the test, with a table of the items' last revisions */
+  private static class InMemorySource implements ChangeEventSource {
+
+    private ChangeEventSource.Sink sink;
+
+    private boolean stopped;
+
+    private boolean failQueries;
+
+    private int queries;
+
+    /** Last revision per item URI, as queried by {@link #loadItemsChangedAfter(int)} */
+    private final Map<String, Integer> lastRevisions = new HashMap<>();
+
+    @Override
+    public void start(ChangeEventSource.Sink sink) {
+      this.sink = sink;
+    }
+
+    @Override
+    public void stop() {
+      stopped = true;
+    }
+
+    @Override
+    public Map<Integer, Set<String>> loadItemsChangedAfter(int revision) {
+      queries++;
+      if (failQueries) {
+        throw new IllegalStateException("Query failed");
+      }
+      Map<Integer, Set<String>> itemsByRevision = new HashMap<>();
+      lastRevisions.forEach(
+          (uri, lastRevision) -> {
+            if (lastRevision > revision) {
+              itemsByRevision.computeIfAbsent(lastRevision, key -> new HashSet<>()).add(uri);
+            }
+          });
+      return itemsByRevision;
+    }
+
+    /** Commits a revision and reports its changes */
+    private void commit(int revision, String... uris) {
+      commitUnreported(revision, uris);
+      for (String uri : uris) {
+        sink.workItemChanged(revision, uri);
+      }
+      sink.revisionCommitted(revision);
+    }
+
+    /** Commits a revision without reporting it, like a revision missed by the listener */
+    private void commitUnreported(int revision, String... uris) {
+      for (String uri : uris) {
+        lastRevisions.put(uri, revision);
+      }
+    }
+  }
+}
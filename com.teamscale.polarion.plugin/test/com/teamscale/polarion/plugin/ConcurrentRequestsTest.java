@@ -0,0 +1,670 @@
+package com.teamscale.polarion.plugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.polarion.alm.projects.IProjectService;
+import com.polarion.alm.projects.model.IProject;
+import com.polarion.alm.tracker.IFolderManager;
+import com.polarion.alm.tracker.ITrackerService;
+import com.polarion.alm.tracker.model.IModule;
+import com.polarion.alm.tracker.model.IWorkItem;
+import com.polarion.platform.persistence.IDataService;
+import com.polarion.platform.persistence.IEnumOption;
+import com.polarion.platform.persistence.diff.IDiffManager;
+import com.polarion.platform.persistence.diff.IFieldDiff;
+import com.polarion.platform.persistence.model.IPObject;
+import com.polarion.platform.persistence.model.IPObjectList;
+import com.polarion.platform.persistence.model.IRevision;
+import com.polarion.platform.security.ISecurityService;
+import com.polarion.subterra.base.SubterraURI;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.security.Principal;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import javax.security.auth.Subject;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Stress test of the state shared by the requests: many requests of different users with different
+ * parameters run through a single servlet instance at the same time (as in Tomcat), sharing the
+ * {@link HistoryProcessingPool}, {@link HistoryCache}, {@link MetadataCache} and {@link
+ * RevisionMetadataIndex}. Polarion is replaced by in-memory fakes whose work item titles depend on
+ * the current user, so every response must only reflect its own request and user.
+ */
+public class ConcurrentRequestsTest {
+
+  private static final int THREADS = 8;
+
+  private static final int REQUESTS_PER_THREAD = 40;
+
+  private static final int DOCUMENTS = 4;
+
+  private static final int ITEMS_PER_DOCUMENT = 12;
+
+  private static final int LATEST_REVISION = 25;
+
+  private static final String[] USERS = {"user-a", "user-b", "user-c"};
+
+  private static final int[] LAST_UPDATES = {0, 7, 12, 17, 20};
+
+  private static final String[][] TYPES = {null, {"req"}, {"task"}};
+
+  private static final String[][] CUSTOM_FIELDS = {null, {"cfA"}, {"cfA", "cfB"}};
+
+  private static final List<String> ALL_CUSTOM_FIELDS = Arrays.asList("cfA", "cfB");
+
+  private static final Pattern DOCUMENT_CLAUSE = Pattern.compile("M\\.C_ID = '([^']*)'");
+
+  private static final Pattern TYPES_CLAUSE = Pattern.compile("WI\\.C_TYPE in \\(([^)]*)\\)");
+
+  private static final Pattern REVISION_CLAUSE = Pattern.compile("WI\\.C_REV > (\\d+)");
+
+  private static final Pattern REVISION_NAMES_CLAUSE = Pattern.compile("C_NAME in \\(([^)]*)\\)");
+
+  /** User bound to the current thread, as by Polarion's security service */
+  private static final ThreadLocal<String> currentUser = new ThreadLocal<>();
+
+  /** Items by document id, ordered by item id */
+  private static final Map<String, List<FakeItem>> itemsByDocument = new TreeMap<>();
+
+  private static final Map<String, FakeItem> itemsByUri = new HashMap<>();
+
+  private static final Map<String, IModule> documents = new LinkedHashMap<>();
+
+  private static final WorkItemUpdatesServlet servlet;
+
+  static {
+    for (int document = 0; document < DOCUMENTS; document++) {
+      String documentId = "D" + document;
+      documents.put(documentId, fakeDocument(documentId));
+      List<FakeItem> items = new ArrayList<>();
+      for (int item = 0; item < ITEMS_PER_DOCUMENT; item++) {
+        items.add(new FakeItem(documentId, document, item));
+      }
+      itemsByDocument.put(documentId, items);
+      items.forEach(item -> itemsByUri.put(item.uri, item));
+    }
+    PlatformServices.setLookup(ConcurrentRequestsTest::lookupService);
+    // Items are processed on the workers of the pool, also on machines with few cores
+    System.setProperty("com.teamscale.polarion.plugin.history-worker-threads", "4");
+    servlet = new WorkItemUpdatesServlet();
+  }
+
+  @Test
+  public void concurrentRequestsProduceIsolatedResponses() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    CyclicBarrier start = new CyclicBarrier(THREADS);
+    try {
+      List<Future<Integer>> threads = new ArrayList<>();
+      for (int thread = 0; thread < THREADS; thread++) {
+        int threadIndex = thread;
+        threads.add(
+            executor.submit(
+                () -> {
+                  start.await();
+                  for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+                    runRequest(threadIndex * REQUESTS_PER_THREAD + i);
+                  }
+                  return REQUESTS_PER_THREAD;
+                }));
+      }
+      int requests = 0;
+      for (Future<Integer> thread : threads) {
+        // Rethrows the assertion errors of the request threads
+        requests += thread.get();
+      }
+      assertEquals(THREADS * REQUESTS_PER_THREAD, requests);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Sends a request with parameters derived from its number and checks its response. */
+  private static void runRequest(int request) throws Exception {
+    String user = USERS[request % USERS.length];
+    String documentId = "D" + (request % DOCUMENTS);
+    int lastUpdate = LAST_UPDATES[request % LAST_UPDATES.length];
+    String[] types = TYPES[(request / 2) % TYPES.length];
+    String[] customFields = CUSTOM_FIELDS[(request / 3) % CUSTOM_FIELDS.length];
+    String description = "request " + request + " of " + user + " for " + documentId;
+
+    List<FakeItem> documentItems =
+        itemsByDocument.get(documentId).stream()
+            .filter(item -> types == null || Arrays.asList(types).contains(item.type))
+            .collect(Collectors.toList());
+    // Every fourth item is known by the client, plus an id that is not part of the document
+    Set<String> knownIds = new HashSet<>(Collections.singleton("EL-999"));
+    for (int i = 1; i < documentItems.size(); i += 4) {
+      knownIds.add(documentItems.get(i).id);
+    }
+
+    Map<String, String[]> parameters = new HashMap<>();
+    parameters.put("lastUpdate", new String[] {String.valueOf(lastUpdate)});
+    if (types != null) {
+      parameters.put("includedWorkItemTypes", types);
+    }
+    if (customFields != null) {
+      parameters.put("includedWorkItemCustomFields", customFields);
+    }
+    FakeResponse response = new FakeResponse();
+
+    currentUser.set(user);
+    try {
+      servlet.service(
+          fakeRequest(documentId, parameters, new Gson().toJson(knownIds)), response.proxy());
+    } finally {
+      currentUser.remove();
+    }
+
+    assertNull(response.error, description);
+    assertEquals(
+        ResponseETag.OPEN_RANGE_CACHE_CONTROL, response.headers.get("Cache-Control"), description);
+    String json = new String(response.body.toByteArray(), StandardCharsets.UTF_8);
+    JsonObject body = new Gson().fromJson(json, JsonObject.class);
+    assertEquals("COMPLETE", body.get("responseType").getAsString(), description);
+    assertEquals(String.valueOf(lastUpdate + 1), body.get("fromRevision").getAsString());
+    assertEquals(String.valueOf(LATEST_REVISION), body.get("toRevision").getAsString());
+    assertEquals(
+        documentItems.stream().map(item -> item.id).collect(Collectors.toSet()),
+        strings(body.getAsJsonArray("allItemsIds")),
+        description);
+
+    List<FakeItem> expectedItems =
+        documentItems.stream()
+            .filter(item -> item.lastRevision() > lastUpdate && !knownIds.contains(item.id))
+            .collect(Collectors.toList());
+    JsonArray workItems = body.getAsJsonArray("workItems");
+    // The items are streamed before the remaining fields
+    assertTrue(expectedItems.isEmpty() || json.startsWith("{\"workItems\":["), description);
+    assertEquals(
+        expectedItems.stream().map(item -> item.id).collect(Collectors.toList()),
+        ids(workItems),
+        description);
+    for (int i = 0; i < expectedItems.size(); i++) {
+      assertItem(
+          expectedItems.get(i),
+          workItems.get(i).getAsJsonObject(),
+          user,
+          lastUpdate,
+          customFields,
+          description);
+    }
+  }
+
+  /** Checks a sent work item against its versions in the window after lastUpdate. */
+  private static void assertItem(
+      FakeItem item,
+      JsonObject workItem,
+      String user,
+      int lastUpdate,
+      String[] customFields,
+      String description) {
+    String itemDescription = item.id + " in " + description;
+    int lastRevision = item.lastRevision();
+    assertEquals(item.uri, workItem.get("uri").getAsString(), itemDescription);
+    assertEquals(String.valueOf(lastRevision), workItem.get("revision").getAsString());
+    assertEquals(item.type, workItem.get("type").getAsString(), itemDescription);
+    assertEquals(
+        item.value("title", lastRevision, user),
+        workItem.get("title").getAsString(),
+        itemDescription);
+
+    Map<String, String> expectedCustomFields = new HashMap<>();
+    if (customFields != null) {
+      for (String customField : customFields) {
+        expectedCustomFields.put(customField, item.value(customField, lastRevision, user));
+      }
+    }
+    Map<String, String> actualCustomFields = new HashMap<>();
+    if (workItem.has("customFields")) {
+      workItem
+          .getAsJsonObject("customFields")
+          .entrySet()
+          .forEach(entry -> actualCustomFields.put(entry.getKey(), entry.getValue().getAsString()));
+    }
+    assertEquals(expectedCustomFields, actualCustomFields, itemDescription);
+
+    // The base version is the last one at or before lastUpdate (or the created one)
+    int base = 0;
+    while (base + 1 < item.revisions.length && item.revisions[base + 1] <= lastUpdate) {
+      base++;
+    }
+    if (item.revisions.length == 1) {
+      assertEquals("CREATED", workItem.get("updateType").getAsString(), itemDescription);
+      return;
+    }
+    assertEquals("UPDATED", workItem.get("updateType").getAsString(), itemDescription);
+    JsonArray changes = workItem.getAsJsonArray("workItemChanges");
+    assertEquals(item.revisions.length - base - 1, changes.size(), itemDescription);
+    for (int i = 0; i < changes.size(); i++) {
+      int previousRevision = item.revisions[base + i];
+      int revision = item.revisions[base + i + 1];
+      JsonObject change = changes.get(i).getAsJsonObject();
+      assertEquals(String.valueOf(revision), change.get("revision").getAsString());
+      assertEquals("author-" + revision, change.get("revAuthorId").getAsString());
+      Set<String> changedFields = new HashSet<>();
+      for (JsonElement element : change.getAsJsonArray("fieldChanges")) {
+        JsonObject fieldChange = element.getAsJsonObject();
+        String field = fieldChange.get("fieldName").getAsString();
+        changedFields.add(field);
+        assertEquals(
+            item.value(field, previousRevision, user),
+            fieldChange.get("fieldValueBefore").getAsString(),
+            itemDescription);
+        assertEquals(
+            item.value(field, revision, user),
+            fieldChange.get("fieldValueAfter").getAsString(),
+            itemDescription);
+      }
+      assertTrue(changedFields.remove("title"), itemDescription);
+      assertEquals(expectedCustomFields.keySet(), changedFields, itemDescription);
+    }
+  }
+
+  private static Set<String> strings(JsonArray array) {
+    Set<String> strings = new HashSet<>();
+    array.forEach(element -> strings.add(element.getAsString()));
+    return strings;
+  }
+
+  private static List<String> ids(JsonArray workItems) {
+    List<String> ids = new ArrayList<>();
+    workItems.forEach(item -> ids.add(item.getAsJsonObject().get("id").getAsString()));
+    return ids;
+  }
+
+  /**
+   * A work item of a document with its versions. Items of every third position are created within
+   * the windows of most requests, the last item of each document has a single version.
+   */
+  private static class FakeItem {
+
+    private final String id;
+
+    private final String uri;
+
+    private final String type;
+
+    private final IModule document;
+
+    /** Revisions the item was changed in, ascending */
+    private final int[] revisions;
+
+    private FakeItem(String documentId, int document, int item) {
+      int number = document * ITEMS_PER_DOCUMENT + item;
+      id = "EL-" + (100 * (document + 1) + item);
+      uri = "subterra:data-service:objects:/default/P${WorkItem}" + id;
+      type = item % 2 == 0 ? "req" : "task";
+      this.document = documents.get(documentId);
+      if (item == ITEMS_PER_DOCUMENT - 1) {
+        revisions = new int[] {20 + document};
+      } else if (item % 3 == 0) {
+        revisions = new int[] {13, 16 + number % 4};
+      } else {
+        revisions = new int[] {1 + number % 6, 8 + number % 5, 16 + number % 4};
+      }
+    }
+
+    private int lastRevision() {
+      return revisions[revisions.length - 1];
+    }
+
+    /** The title depends on the user, like values Polarion hides from users without permission */
+    private String value(String field, int revision, String user) {
+      if ("title".equals(field)) {
+        return id + "@" + revision + " for " + user;
+      }
+      return field + "@" + id + "@" + revision;
+    }
+
+    /** Returns the version as of the given revision or null if the item didn't exist yet. */
+    private IWorkItem versionAt(int revision) {
+      IWorkItem version = null;
+      for (int changeRevision : revisions) {
+        if (changeRevision <= revision) {
+          version = version(changeRevision);
+        }
+      }
+      return version;
+    }
+
+    private IWorkItem version(int revision) {
+      Map<String, Answer> answers = new HashMap<>();
+      answers.put("getId", args -> id);
+      answers.put("getUri", args -> new SubterraURI(uri));
+      answers.put("getRevision", args -> String.valueOf(revision));
+      answers.put("getLastRevision", args -> String.valueOf(revision));
+      answers.put("getTitle", args -> value("title", revision, currentUser.get()));
+      answers.put("getType", args -> fake(IEnumOption.class, Map.of("getId", typeArgs -> type)));
+      answers.put("getCustomFieldsList", args -> ALL_CUSTOM_FIELDS);
+      answers.put("getCustomField", args -> value((String) args[0], revision, null));
+      answers.put("getModule", args -> document);
+      answers.put("getProjectId", args -> "P");
+      return fake(IWorkItem.class, answers);
+    }
+
+    private IPObjectList<IWorkItem> history() {
+      return list(Arrays.stream(revisions).mapToObj(this::version).collect(Collectors.toList()));
+    }
+  }
+
+  private static Object lookupService(Class<?> type) {
+    if (type == ITrackerService.class) {
+      IDataService dataService = fakeDataService();
+      IProject project = fake(IProject.class, Map.of("getId", args -> "P"));
+      return fake(
+          ITrackerService.class,
+          Map.of(
+              "getDataService", args -> dataService,
+              "getProjectsService",
+                  args -> fake(IProjectService.class, Map.of("getProject", projectArgs -> project)),
+              "getFolderManager",
+                  args ->
+                      fake(
+                          IFolderManager.class,
+                          Map.of("existFolder", folderArgs -> "S".equals(folderArgs[1])))));
+    }
+    if (type == ISecurityService.class) {
+      return fakeSecurityService();
+    }
+    throw new IllegalArgumentException("No fake for " + type);
+  }
+
+  /** Binds the users to threads. Subjects carry the user as their principal. */
+  private static ISecurityService fakeSecurityService() {
+    Map<String, Answer> answers = new HashMap<>();
+    answers.put("getCurrentUser", args -> currentUser.get());
+    answers.put(
+        "getCurrentSubject",
+        args -> {
+          String user = currentUser.get();
+          Principal principal = () -> user;
+          return new Subject(
+              true,
+              Collections.singleton(principal),
+              Collections.emptySet(),
+              Collections.emptySet());
+        });
+    answers.put(
+        "doAsUser",
+        args ->
+            runAs(
+                ((Subject) args[0]).getPrincipals().iterator().next().getName(),
+                (PrivilegedAction<?>) args[1]));
+    answers.put("doAsSystemUser", args -> runAs("system", (PrivilegedAction<?>) args[0]));
+    return fake(ISecurityService.class, answers);
+  }
+
+  private static Object runAs(String user, PrivilegedAction<?> action) {
+    String previousUser = currentUser.get();
+    currentUser.set(user);
+    try {
+      return action.run();
+    } finally {
+      currentUser.set(previousUser);
+    }
+  }
+
+  private static IDataService fakeDataService() {
+    Map<String, Answer> answers = new HashMap<>();
+    answers.put("getLastStorageRevision", args -> revision(String.valueOf(LATEST_REVISION)));
+    answers.put("sqlSearch", args -> sqlSearch((String) args[0]));
+    answers.put(
+        "getObjectHistory", args -> itemsByUri.get(((IWorkItem) args[0]).getUri() + "").history());
+    answers.put(
+        "getVersionedInstance",
+        args -> itemsByUri.get(args[0].toString()).versionAt(Integer.parseInt((String) args[1])));
+    answers.put("getRevision", args -> revision((String) args[1]));
+    answers.put(
+        "getDiffManager",
+        args -> fake(IDiffManager.class, Map.of("generateDiff", diffArgs -> diff(diffArgs))));
+    return fake(IDataService.class, answers);
+  }
+
+  /** Answers the queries of the servlet: documents of the space, revisions and work items. */
+  private static IPObjectList<?> sqlSearch(String query) {
+    if (query.contains("from MODULE M")) {
+      return list(new ArrayList<>(documents.values()));
+    }
+    if (query.contains("from REVISION REV")) {
+      Matcher names = REVISION_NAMES_CLAUSE.matcher(query);
+      assertTrue(names.find(), query);
+      return list(
+          Arrays.stream(names.group(1).split(","))
+              .map(name -> revision(name.replace("'", "").trim()))
+              .collect(Collectors.toList()));
+    }
+    Matcher document = DOCUMENT_CLAUSE.matcher(query);
+    assertTrue(document.find(), query);
+    Matcher types = TYPES_CLAUSE.matcher(query);
+    List<String> typeIds =
+        types.find() ? Arrays.asList(types.group(1).replace("'", "").split(",")) : null;
+    Matcher revision = REVISION_CLAUSE.matcher(query);
+    int minRevision = revision.find() ? Integer.parseInt(revision.group(1)) : -1;
+    List<FakeItem> items =
+        itemsByDocument.get(document.group(1)).stream()
+            .filter(item -> typeIds == null || typeIds.contains(item.type))
+            .filter(item -> item.lastRevision() > minRevision)
+            .collect(Collectors.toList());
+    if (query.contains("max(WI2.C_REV)")) {
+      int maxRevision = items.stream().mapToInt(FakeItem::lastRevision).max().orElse(0);
+      items.removeIf(item -> item.lastRevision() != maxRevision);
+    }
+    return list(
+        items.stream().map(item -> item.version(item.lastRevision())).collect(Collectors.toList()));
+  }
+
+  /** Diffs the title and the custom fields which are not ignored */
+  private static IFieldDiff[] diff(Object[] args) {
+    IWorkItem previous = (IWorkItem) args[0];
+    IWorkItem next = (IWorkItem) args[1];
+    @SuppressWarnings("unchecked")
+    Set<String> ignored = (Set<String>) args[2];
+    List<IFieldDiff> diffs = new ArrayList<>();
+    diffs.add(fieldDiff("title", previous.getTitle(), next.getTitle()));
+    for (String customField : ALL_CUSTOM_FIELDS) {
+      if (!ignored.contains(customField)) {
+        diffs.add(
+            fieldDiff(
+                customField,
+                previous.getCustomField(customField),
+                next.getCustomField(customField)));
+      }
+    }
+    return diffs.toArray(new IFieldDiff[0]);
+  }
+
+  private static IFieldDiff fieldDiff(String fieldName, Object before, Object after) {
+    return fake(
+        IFieldDiff.class,
+        Map.of(
+            "getFieldName", args -> fieldName,
+            "getBefore", args -> before,
+            "getAfter", args -> after));
+  }
+
+  private static IRevision revision(String name) {
+    return fake(
+        IRevision.class,
+        Map.of("getName", args -> name, "getStringAuthor", args -> "author-" + name));
+  }
+
+  private static IModule fakeDocument(String documentId) {
+    Map<String, Answer> answers = new HashMap<>();
+    answers.put("getId", args -> documentId);
+    answers.put("getModuleFolder", args -> "S");
+    answers.put("getProjectId", args -> "P");
+    answers.put("getTitleOrName", args -> "Document " + documentId);
+    answers.put("getLastRevision", args -> "5");
+    answers.put("containsWorkItem", args -> true);
+    return fake(IModule.class, answers);
+  }
+
+  private static HttpServletRequest fakeRequest(
+      String documentId, Map<String, String[]> parameters, String body) {
+    Map<String, Object> attributes = new HashMap<>();
+    attributes.put("project", "P");
+    attributes.put("space", "S");
+    attributes.put("document", documentId);
+    ByteArrayInputStream input = new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8));
+    ServletInputStream inputStream =
+        new ServletInputStream() {
+          @Override
+          public int read() {
+            return input.read();
+          }
+
+          @Override
+          public boolean isFinished() {
+            return input.available() == 0;
+          }
+
+          @Override
+          public boolean isReady() {
+            return true;
+          }
+
+          @Override
+          public void setReadListener(ReadListener readListener) {}
+        };
+    Map<String, Answer> answers = new HashMap<>();
+    answers.put("getMethod", args -> "GET");
+    answers.put("getAttribute", args -> attributes.get(args[0]));
+    answers.put("getParameterValues", args -> parameters.get(args[0]));
+    answers.put(
+        "getParameter",
+        args -> parameters.containsKey(args[0]) ? parameters.get(args[0])[0] : null);
+    answers.put("getInputStream", args -> inputStream);
+    return fake(HttpServletRequest.class, answers);
+  }
+
+  /** Response which records its body, headers and the error sent (if any) */
+  private static class FakeResponse {
+
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+    private final Map<String, String> headers = new ConcurrentHashMap<>();
+
+    private volatile String error;
+
+    private HttpServletResponse proxy() {
+      ServletOutputStream outputStream =
+          new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+              body.write(b);
+            }
+
+            @Override
+            public boolean isReady() {
+              return true;
+            }
+
+            @Override
+            public void setWriteListener(WriteListener writeListener) {}
+          };
+      Map<String, Answer> answers = new HashMap<>();
+      answers.put("getOutputStream", args -> outputStream);
+      answers.put("setHeader", args -> headers.put((String) args[0], (String) args[1]));
+      answers.put("sendError", args -> error = Arrays.toString(args));
+      answers.put(
+          "setStatus",
+          args -> {
+            if ((int) args[0] != HttpServletResponse.SC_OK) {
+              error = "Status " + args[0];
+            }
+            return null;
+          });
+      return fake(HttpServletResponse.class, answers);
+    }
+  }
+
+  /** Answer of a faked method, called with the arguments of the call */
+  private interface Answer {
+    Object answer(Object[] args);
+  }
+
+  /**
+   * Creates a fake of the given interface which answers the given methods (by name) and returns the
+   * default value of the return type for all others.
+   */
+  private static <T> T fake(Class<T> type, Map<String, Answer> answers) {
+    return type.cast(
+        Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] {type},
+            (proxy, method, args) -> {
+              Answer answer = answers.get(method.getName());
+              if (answer != null) {
+                return answer.answer(args == null ? new Object[0] : args);
+              }
+              return defaultAnswer(proxy, method, args);
+            }));
+  }
+
+  private static Object defaultAnswer(Object proxy, Method method, Object[] args) {
+    switch (method.getName()) {
+      case "equals":
+        return proxy == args[0];
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      case "toString":
+        return method.getDeclaringClass().getSimpleName() + "@" + System.identityHashCode(proxy);
+      default:
+        break;
+    }
+    Class<?> returnType = method.getReturnType();
+    if (returnType == boolean.class) {
+      return false;
+    } else if (returnType == int.class) {
+      return 0;
+    } else if (returnType == long.class) {
+      return 0L;
+    }
+    return null;
+  }
+
+  /** Polarion's object lists are plain lists for the servlet */
+  @SuppressWarnings("unchecked")
+  private static <T extends IPObject> IPObjectList<T> list(List<?> elements) {
+    List<Object> delegate = new ArrayList<>(elements);
+    return (IPObjectList<T>)
+        Proxy.newProxyInstance(
+            IPObjectList.class.getClassLoader(),
+            new Class<?>[] {IPObjectList.class},
+            (proxy, method, args) -> method.invoke(delegate, args));
+  }
+}
@@ -0,0 +1,138 @@
+package com.teamscale.polarion.plugin;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.polarion.alm.tracker.model.IWorkItem;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Property-based tests of the revision lookups of {@link WorkItemHistoryView}: for random histories
+ * and revisions, the binary searches must return the same indices as a linear scan. An off-by-one
+ * in these lookups silently drops or duplicates changes.
+ */
+public class WorkItemHistoryViewTest {
+
+  private static final long SEED = 20_22_2L;
+
+  private static final int HISTORIES = 2000;
+
+  private static final int MAX_VERSIONS = 40;
+
+  @Test
+  public void firstIndexAfterMatchesLinearScan() {
+    Random random = new Random(SEED);
+    for (int i = 0; i < HISTORIES; i++) {
+      int[] revisions = randomRevisions(random);
+      WorkItemHistoryView view = view(revisions);
+      for (int revision = -1; revision <= maxRevision(revisions) + 1; revision++) {
+        assertEquals(
+            linearFirstIndexAfter(revisions, revision),
+            view.firstIndexAfter(revision),
+            () -> Arrays.toString(revisions));
+      }
+    }
+  }
+
+  @Test
+  public void lastIndexAtOrBelowMatchesLinearScan() {
+    Random random = new Random(SEED + 1);
+    for (int i = 0; i < HISTORIES; i++) {
+      int[] revisions = randomRevisions(random);
+      WorkItemHistoryView view = view(revisions);
+      for (int revision = -1; revision <= maxRevision(revisions) + 1; revision++) {
+        assertEquals(
+            linearLastIndexAtOrBelow(revisions, revision),
+            view.lastIndexAtOrBelow(revision),
+            () -> Arrays.toString(revisions));
+      }
+    }
+  }
+
+  @Test
+  public void baseIndexMatchesLinearScan() {
+    Random random = new Random(SEED + 2);
+    for (int i = 0; i < HISTORIES; i++) {
+      int[] revisions = randomRevisions(random);
+      WorkItemHistoryView view = view(revisions);
+      int maxRevision = maxRevision(revisions) + 1;
+      for (int lastUpdate = -1; lastUpdate <= maxRevision; lastUpdate++) {
+        for (int endRevision = lastUpdate + 1; endRevision <= maxRevision; endRevision++) {
+          int expected = linearBaseIndex(revisions, lastUpdate, endRevision);
+          int actual = view.baseIndex(lastUpdate, endRevision);
+          int window = lastUpdate;
+          int end = endRevision;
+          assertEquals(
+              expected,
+              actual,
+              () -> Arrays.toString(revisions) + " window (" + window + ", " + end + "]");
+        }
+      }
+      // Open windows of requests without endRevision
+      assertEquals(
+          linearBaseIndex(revisions, 0, Integer.MAX_VALUE),
+          view.baseIndex(0, Integer.MAX_VALUE),
+          () -> Arrays.toString(revisions));
+    }
+  }
+
+  /** Ascending, distinct revisions with random gaps, possibly empty. */
+  private static int[] randomRevisions(Random random) {
+    int[] revisions = new int[random.nextInt(MAX_VERSIONS + 1)];
+    int revision = random.nextInt(3);
+    for (int i = 0; i < revisions.length; i++) {
+      revision += 1 + random.nextInt(4);
+      revisions[i] = revision;
+    }
+    return revisions;
+  }
+
+  private static int maxRevision(int[] revisions) {
+    return revisions.length == 0 ? 0 : revisions[revisions.length - 1];
+  }
+
+  private static WorkItemHistoryView view(int[] revisions) {
+    return new WorkItemHistoryView(new IWorkItem[revisions.length], revisions);
+  }
+
+  private static int linearFirstIndexAfter(int[] revisions, int revision) {
+    for (int i = 0; i < revisions.length; i++) {
+      if (revisions[i] > revision) {
+        return i;
+      }
+    }
+    return revisions.length;
+  }
+
+  private static int linearLastIndexAtOrBelow(int[] revisions, int revision) {
+    int result = -1;
+    for (int i = 0; i < revisions.length; i++) {
+      if (revisions[i] <= revision) {
+        result = i;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The specification of baseIndex: -1 if no version is in (lastUpdate, endRevision], otherwise the
+   * last version at or before lastUpdate, or the first version if there is none.
+   */
+  private static int linearBaseIndex(int[] revisions, int lastUpdate, int endRevision) {
+    boolean versionInWindow = false;
+    int lastAtOrBefore = -1;
+    for (int i = 0; i < revisions.length; i++) {
+      if (revisions[i] > lastUpdate && revisions[i] <= endRevision) {
+        versionInWindow = true;
+      }
+      if (revisions[i] <= lastUpdate) {
+        lastAtOrBefore = i;
+      }
+    }
+    if (!versionInWindow) {
+      return -1;
+    }
+    return Math.max(0, lastAtOrBefore);
+  }
+}